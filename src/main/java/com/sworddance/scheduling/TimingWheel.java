@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.scheduling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * Runs {@link Runnable}s at a future {@link TimeServer#nanoTime()}. Time is divided into ticks; timers are kept in a
+ * hierarchy of wheels of 256 slots each, the first wheel holding the timers due in the next 256 ticks, the second
+ * the timers due in the next 256*256 ticks and so on. Scheduling and cancelling a timer are constant time no matter
+ * how many timers are pending. As time advances, the timers in a slot of an outer wheel are moved to the inner wheels
+ * once they come within range.
+ *
+ * Nothing happens until {@link #advance()} is called, so the owner decides which thread runs the timers and a
+ * FakeTimeServer can drive the wheel in tests. Timers run up to one tick late.
+ */
+public class TimingWheel {
+    private static final int WHEEL_BITS = 8;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final int LEVELS = 4;
+
+    private final TimeServer timeServer;
+
+    private final long tickNanos;
+
+    private final long startNanos;
+
+    /**
+     * the first timer in each slot of each wheel. The last entry holds timers too far in the future for the
+     * outermost wheel.
+     */
+    private final Timeout[][] wheels = new Timeout[LEVELS + 1][WHEEL_SIZE];
+
+    /**
+     * all the timers due at or before this tick have run.
+     */
+    private long currentTick;
+
+    private int size;
+
+    public TimingWheel(TimeServer timeServer, long tickDuration, TimeUnit unit) {
+        ApplicationIllegalArgumentException.notNull(timeServer, "timeServer");
+        ApplicationIllegalArgumentException.valid(tickDuration > 0, "tickDuration must be positive: ", tickDuration);
+        this.timeServer = timeServer;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startNanos = timeServer.nanoTime();
+    }
+
+    /**
+     * @param runnable
+     * @param deadline the {@link TimeServer#nanoTime()} to run runnable at. If already passed, runnable is run at
+     * the next tick.
+     * @return used to cancel the timer.
+     */
+    public synchronized Timeout schedule(Runnable runnable, long deadline) {
+        ApplicationIllegalArgumentException.notNull(runnable, "runnable");
+        Timeout timeout = new Timeout(this, runnable, deadline);
+        long elapsed = deadline - startNanos;
+        // round up so the timer never runs early.
+        long tick = elapsed <= 0 ? 0 : elapsed / tickNanos + (elapsed % tickNanos == 0 ? 0 : 1);
+        timeout.tick = Math.max(currentTick + 1, tick);
+        insert(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * @param runnable
+     * @param delay
+     * @param unit
+     * @return used to cancel the timer.
+     */
+    public Timeout schedule(Runnable runnable, long delay, TimeUnit unit) {
+        return schedule(runnable, timeServer.nanoTime() + unit.toNanos(delay));
+    }
+
+    /**
+     * Put timeout in the slot for its tick.
+     */
+    private void insert(Timeout timeout) {
+        long delta = timeout.tick - currentTick;
+        int level = 0;
+        for (long limit = WHEEL_SIZE; level < LEVELS && delta >= limit; limit <<= WHEEL_BITS) {
+            level++;
+        }
+        int slot = level < LEVELS ? (int) ((timeout.tick >>> (WHEEL_BITS * level)) & WHEEL_MASK) : 0;
+        Timeout head = wheels[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        wheels[level][slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous == null) {
+            wheels[timeout.level][timeout.slot] = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+    /**
+     * Run the timers that are due, in the calling thread.
+     * @return the number of timers run.
+     */
+    public int advance() {
+        List<Timeout> expired = null;
+        synchronized (this) {
+            long targetTick = (timeServer.nanoTime() - startNanos) / tickNanos;
+            if (size == 0 && targetTick > currentTick) {
+                currentTick = targetTick;
+            }
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                int slot = (int) (currentTick & WHEEL_MASK);
+                Timeout timeout = wheels[0][slot];
+                wheels[0][slot] = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.previous = null;
+                    timeout.next = null;
+                    timeout.level = -1;
+                    if (expired == null) {
+                        expired = new ArrayList<Timeout>();
+                    }
+                    expired.add(timeout);
+                    size--;
+                    timeout = next;
+                }
+            }
+        }
+        if (expired == null) {
+            return 0;
+        }
+        for (Timeout timeout : expired) {
+            timeout.runnable.run();
+        }
+        return expired.size();
+    }
+
+    /**
+     * When the lower bits of currentTick wrap to 0, the matching slots of the outer wheels come within range of the
+     * inner wheels. The outermost are moved first so their timers can be moved again in the same tick.
+     */
+    private void cascade() {
+        int level = 0;
+        while (level < LEVELS && (currentTick & ((1L << (WHEEL_BITS * (level + 1))) - 1)) == 0) {
+            level++;
+        }
+        for (; level > 0; level--) {
+            int slot = level < LEVELS ? (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK) : 0;
+            Timeout timeout = wheels[level][slot];
+            wheels[level][slot] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * @return how long until {@link #advance()} may have a timer to run, {@link Long#MAX_VALUE} if there are no timers.
+     */
+    public synchronized long getNanosUntilNextTick() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, startNanos + (currentTick + 1) * tickNanos - timeServer.nanoTime());
+    }
+
+    /**
+     * @return the number of timers waiting to run.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public long getTickDuration(TimeUnit unit) {
+        return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public TimeServer getTimeServer() {
+        return timeServer;
+    }
+
+    /**
+     * A timer in a {@link TimingWheel}.
+     */
+    public static final class Timeout {
+        private final TimingWheel timingWheel;
+
+        private final Runnable runnable;
+
+        private final long deadline;
+
+        private long tick;
+
+        /**
+         * the wheel the timer is in, -1 if it has run or been cancelled.
+         */
+        private int level = -1;
+
+        private int slot;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        private boolean cancelled;
+
+        Timeout(TimingWheel timingWheel, Runnable runnable, long deadline) {
+            this.timingWheel = timingWheel;
+            this.runnable = runnable;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the timer has already run or been cancelled.
+         */
+        public boolean cancel() {
+            synchronized (timingWheel) {
+                if (level < 0) {
+                    return false;
+                }
+                timingWheel.unlink(this);
+                timingWheel.size--;
+                cancelled = true;
+                return true;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (timingWheel) {
+                return cancelled;
+            }
+        }
+
+        public TimingWheel getTimingWheel() {
+            return timingWheel;
+        }
+
+        /**
+         * @return the {@link TimeServer#nanoTime()} the timer was scheduled for.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
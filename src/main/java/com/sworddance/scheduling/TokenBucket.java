@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.scheduling;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * Limits the rate of some activity: a token is added every interval, up to burst tokens, and each use takes a token.
+ * Time is measured with a {@link TimeServer} so a FakeTimeServer can drive the bucket in tests. The bucket starts
+ * full.
+ *
+ * Checking and taking are separate so that something needing tokens from several buckets can check them all before
+ * taking any. Another thread may take the last token in between; the bucket then goes into debt that is paid off
+ * before any more tokens are available, so the rate is still not exceeded over time.
+ */
+public class TokenBucket {
+    private final TimeServer timeServer;
+
+    private final long intervalNanos;
+
+    private final long burst;
+
+    /**
+     * negative when in debt.
+     */
+    private long tokens;
+
+    /**
+     * {@link TimeServer#nanoTime()} the tokens were last brought up to date.
+     */
+    private long refilled;
+
+    /**
+     * @param timeServer
+     * @param interval between tokens being added.
+     * @param unit
+     * @param burst the most tokens that can be saved up.
+     */
+    public TokenBucket(TimeServer timeServer, long interval, TimeUnit unit, long burst) {
+        ApplicationIllegalArgumentException.notNull(timeServer, "timeServer");
+        ApplicationIllegalArgumentException.valid(interval > 0, "interval must be positive: ", interval);
+        ApplicationIllegalArgumentException.valid(burst > 0, "burst must be positive: ", burst);
+        this.timeServer = timeServer;
+        this.intervalNanos = unit.toNanos(interval);
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilled = timeServer.nanoTime();
+    }
+
+    /**
+     * @return 0 if a token is available now, otherwise the nanoseconds until one will be.
+     */
+    public synchronized long getNanosUntilAvailable() {
+        long now = refill();
+        if (this.tokens > 0) {
+            return 0;
+        } else {
+            return (1 - this.tokens) * this.intervalNanos - (now - this.refilled);
+        }
+    }
+
+    /**
+     * @return true if a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (this.tokens > 0) {
+            this.tokens--;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Take a token even if none are available, see the class comment.
+     */
+    public synchronized void acquire() {
+        refill();
+        this.tokens--;
+    }
+
+    /**
+     * @return the tokens available now, negative when in debt.
+     */
+    public synchronized long getTokens() {
+        refill();
+        return this.tokens;
+    }
+
+    public long getInterval(TimeUnit unit) {
+        return unit.convert(this.intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getBurst() {
+        return this.burst;
+    }
+
+    /**
+     * @return now.
+     */
+    private long refill() {
+        long now = this.timeServer.nanoTime();
+        long added = (now - this.refilled) / this.intervalNanos;
+        if (added > 0) {
+            this.tokens += added;
+            this.refilled += added * this.intervalNanos;
+        }
+        if (this.tokens >= this.burst) {
+            // a full bucket does not save up time towards the next token.
+            this.tokens = this.burst;
+            this.refilled = now;
+        }
+        return now;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket(" + getTokens() + "/" + this.burst + " every " + this.intervalNanos + "ns)";
+    }
+}
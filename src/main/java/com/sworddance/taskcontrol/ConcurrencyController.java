@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+/**
+ * Decides how many tasks a {@link TaskControl} runs at once, between 1 and the TaskControl's maxThreads. The
+ * TaskControl collects measurements of the tasks that complete and, once every {@link #getSampleIntervalNanos()},
+ * asks for the concurrency to use next.
+ *
+ * With {@link TaskExecutorType#threadPool} the concurrency is the number of worker threads; with the other executor
+ * types the TaskControl only dispatches a task when fewer than concurrency tasks are running.
+ *
+ * Calls are made from the worker threads, one at a time.
+ */
+public interface ConcurrencyController {
+    /**
+     * @param maxThreads the TaskControl's maxThreads.
+     * @return the concurrency to start with.
+     */
+    int getInitialConcurrency(int maxThreads);
+
+    /**
+     * @return how long to measure before {@link #adjustConcurrency(int, int, long, long, long)} is called.
+     */
+    long getSampleIntervalNanos();
+
+    /**
+     * @param concurrency the current concurrency.
+     * @param completedTasks the number of tasks that completed during the sample.
+     * @param intervalNanos how long the sample lasted.
+     * @param queueWaitNanos total time the completed tasks waited between being dispatched and starting to run.
+     * @param runNanos total time the completed tasks ran.
+     * @return the concurrency to use next. The TaskControl keeps it between 1 and its maxThreads.
+     */
+    int adjustConcurrency(int concurrency, int completedTasks, long intervalNanos, long queueWaitNanos, long runNanos);
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Comparator;
+
+/**
+ * Orders the ready tasks of a {@link TaskGroup} so that the task at the head of the longest chain of remaining work,
+ * {@link PrioritizedTask#getCriticalPath()}, starts first. Starting long chains early shortens the time until the
+ * whole TaskGroup completes. Ties are broken by priority and then sequence.
+ *
+ * The critical paths are only computed if the TaskGroup has a {@link TaskDurationHistory}, see
+ * {@link TaskGroup#setTaskDurationHistory(TaskDurationHistory)}; otherwise this orders by priority.
+ */
+public class CriticalPathWorkItemComparator implements Comparator<PrioritizedTask> {
+    public int compare(PrioritizedTask left, PrioritizedTask right) {
+        long difference = right.getCriticalPath() - left.getCriticalPath();
+        if (difference != 0) {
+            return difference < 0 ? -1 : 1;
+        } else if (left.getEffectivePriority() != right.getEffectivePriority()) {
+            return right.getEffectivePriority() - left.getEffectivePriority();
+        } else {
+            return left.getSequence() - right.getSequence();
+        }
+    }
+}
@@ -13,11 +13,18 @@
  */
 package com.sworddance.taskcontrol;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.sworddance.util.CUtilities.*;
 
@@ -26,6 +33,35 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
 
     protected final Set<FutureResult> cleanUpAfterTasks = new CopyOnWriteArraySet<FutureResult>();
 
+    /**
+     * dependencies that have not completed. Each dependency notifies this task through a {@link DependencyListener}
+     * when it completes so that dependencies do not need to be polled.
+     */
+    private final Set<FutureResult> pendingDependencies = Collections.newSetFromMap(new ConcurrentHashMap<FutureResult, Boolean>());
+
+    private final AtomicInteger pendingDependencyCount = new AtomicInteger(0);
+
+    /**
+     * dependencies that can not notify this task when they complete, these are checked each time.
+     */
+    private final Set<FutureResult> polledDependencies = new CopyOnWriteArraySet<FutureResult>();
+
+    /**
+     * {@link FutureListenerProcessor} only holds weak references to the listeners.
+     */
+    private final Collection<DependencyListener> dependencyListeners = new ConcurrentLinkedQueue<DependencyListener>();
+
+    /**
+     * the tasks that added this task as a dependency, so that {@link TaskGroup#addSubtask(DependentPrioritizedTask, DependentPrioritizedTask)}
+     * does not have to look at every task.
+     */
+    private final Set<DependentPrioritizedTask> dependentTasks = Collections.newSetFromMap(new ConcurrentHashMap<DependentPrioritizedTask, Boolean>());
+
+    /**
+     * first dependency in {@link #dependencyTasks} that completed unsuccessfully.
+     */
+    private volatile FutureResult failedDependency;
+
     protected String completionMsg = "Successful.";
 
     private DependentPrioritizedTask parentTask;
@@ -95,18 +131,26 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
             this.getTaskGroup().debug(this.getName() + ": TaskGroup in error " + this.getTaskGroup().getException().getClass());
             return false;
         }
-        for (FutureResult dependency : this.dependencyTasks) {
-            if (!dependency.isSuccessful()) {
-                if (dependency.isDone()) {
-                    // dependency failed ... this task will never be run
-                    Throwable error = dependency.getException();
-                    this.setException(new RuntimeException("Dependency "+ getDependencyName(dependency) + " failed.", error));
-                    this.getTaskGroup().warning( this.getName() + "Dependency " + getDependencyName(dependency) + " failed. "+ error);
+        FutureResult failed = this.failedDependency;
+        if (failed == null) {
+            for (FutureResult dependency : this.polledDependencies) {
+                if (dependency.isDone() && !dependency.isSuccessful() && this.dependencyTasks.contains(dependency)) {
+                    failed = dependency;
+                    break;
                 }
-                return false;
             }
         }
-        for (FutureResult dependency : this.cleanUpAfterTasks) {
+        if (failed != null) {
+            // dependency failed ... this task will never be run
+            Throwable error = failed.getException();
+            this.setException(new RuntimeException("Dependency "+ getDependencyName(failed) + " failed.", error));
+            this.getTaskGroup().warning( this.getName() + "Dependency " + getDependencyName(failed) + " failed. "+ error);
+            return false;
+        }
+        if (this.pendingDependencyCount.get() > 0) {
+            return false;
+        }
+        for (FutureResult dependency : this.polledDependencies) {
             if (!dependency.isDone()) {
                 return false;
             }
@@ -114,6 +158,64 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
         return true;
     }
 
+    /**
+     * @return true if some dependencies can not notify this task when they complete.
+     */
+    public boolean isDependencyPollingNeeded() {
+        return !this.polledDependencies.isEmpty();
+    }
+
+    /**
+     * Start listening for dependency to complete.
+     * @param dependency
+     */
+    private void watchDependency(FutureResult dependency) {
+        if (dependency == null || !this.pendingDependencies.add(dependency)) {
+            return;
+        }
+        this.pendingDependencyCount.incrementAndGet();
+        DependencyListener listener = new DependencyListener(dependency);
+        this.dependencyListeners.add(listener);
+        try {
+            if (dependency instanceof FutureResultImpl) {
+                ((FutureResultImpl<?>) dependency).addFutureListenerCreatingProcessor(listener);
+            } else {
+                dependency.addFutureListener(listener);
+            }
+        } catch (UnsupportedOperationException e) {
+            this.dependencyListeners.remove(listener);
+            this.polledDependencies.add(dependency);
+            if (this.pendingDependencies.remove(dependency)) {
+                this.pendingDependencyCount.decrementAndGet();
+            }
+            return;
+        }
+        // dependency may have completed while the listener was being added.
+        if (dependency.isDone()) {
+            dependencyDone(dependency);
+        }
+    }
+
+    /**
+     * Called once for each dependency when it completes.
+     * @param dependency
+     */
+    private void dependencyDone(FutureResult dependency) {
+        if (!this.pendingDependencies.remove(dependency)) {
+            return;
+        }
+        if (this.failedDependency == null && !dependency.isSuccessful() && this.dependencyTasks.contains(dependency)) {
+            this.failedDependency = dependency;
+        }
+        int remaining = this.pendingDependencyCount.decrementAndGet();
+        if (remaining == 0 || this.failedDependency != null) {
+            TaskGroup<?> taskGroup = this.getTaskGroup();
+            if (taskGroup != null) {
+                taskGroup.dependenciesChanged(this);
+            }
+        }
+    }
+
     /**
      * Once this method returns true, the method is not allowed to return false.
      * Because of this calling this method cause dependencies not to be able to
@@ -173,6 +275,8 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
     public void addDependency(FutureResult dependency) {
         this.checkCanAddDependency(dependency);
         add(this.dependencyTasks, dependency);
+        this.addDependentTask(dependency);
+        this.watchDependency(dependency);
     }
 
     /**
@@ -186,6 +290,28 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
         }
     }
 
+    private void addDependentTask(FutureResult<?> dependency) {
+        if (dependency instanceof DefaultDependentPrioritizedTask<?>) {
+            ((DefaultDependentPrioritizedTask<?>) dependency).dependentTasks.add(this);
+        }
+    }
+
+    /**
+     * @return the tasks that depend on this task.
+     */
+    public Collection<DependentPrioritizedTask> getDependentTasks() {
+        return Collections.unmodifiableSet(this.dependentTasks);
+    }
+
+    /**
+     * @return the dependencies, both those that must succeed and those that only must complete.
+     */
+    public Collection<FutureResult> getDependencies() {
+        List<FutureResult> dependencies = new ArrayList<FutureResult>(this.dependencyTasks);
+        dependencies.addAll(this.cleanUpAfterTasks);
+        return dependencies;
+    }
+
     private void checkCanAddDependency(FutureResult dependency) {
         if ( dependency == null) {
             return;
@@ -218,6 +344,8 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
     public void addAlwaysDependency(FutureResult dependency) {
         this.checkCanAddDependency(dependency);
         add(this.cleanUpAfterTasks, dependency);
+        this.addDependentTask(dependency);
+        this.watchDependency(dependency);
     }
 
     public void addAlwaysDependencies(Collection<? extends FutureResult> dependencies) {
@@ -296,4 +424,23 @@ public class DefaultDependentPrioritizedTask<R> extends DefaultPrioritizedTask<R
     public boolean isIgnoreTaskGroupFailure() {
         return this.ignoreTaskGroupFailure;
     }
+
+    /**
+     * Notified when a dependency completes, successfully or not.
+     */
+    private class DependencyListener implements FutureListener<Object> {
+        private final FutureResult dependency;
+
+        DependencyListener(FutureResult dependency) {
+            this.dependency = dependency;
+        }
+
+        public <P extends Future<Object>> void futureSet(P future, Object value) {
+            dependencyDone(this.dependency);
+        }
+
+        public <P extends Future<Object>> void futureSetException(P future, Throwable throwable) {
+            dependencyDone(this.dependency);
+        }
+    }
 }
@@ -25,6 +25,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.sworddance.util.ApplicationIllegalArgumentException;
 import com.sworddance.util.ApplicationIllegalStateException;
 import com.sworddance.util.perf.LapTimer;
 
@@ -52,6 +53,24 @@ public class DefaultPrioritizedTask<R> implements PrioritizedTask, Callable<R> {
 
     private final Integer priority;
 
+    private volatile long deadline = NO_DEADLINE;
+
+    /**
+     * nanoseconds this task may run before the {@link TaskWatchdog} reports it as hung, 0 to use the TaskGroup's.
+     */
+    private volatile long executionTimeout;
+
+    /**
+     * true if {@link #callBody()} can safely be run more than once at the same time.
+     */
+    private volatile boolean idempotent;
+
+    private volatile long submitTime;
+
+    private volatile long criticalPath;
+
+    private volatile int inheritedPriority = Thread.MIN_PRIORITY;
+
     private String status;
 
     private final FutureResultImplementor<R> result;
@@ -299,6 +318,91 @@ public class DefaultPrioritizedTask<R> implements PrioritizedTask, Callable<R> {
         return priority == null ? Thread.NORM_PRIORITY : priority.intValue();
     }
 
+    public int getEffectivePriority() {
+        return Math.max(getPriority(), inheritedPriority);
+    }
+
+    /**
+     * Set by the {@link TaskGroup}, only while this task is not in a queue ordered by priority.
+     * @param inheritedPriority the priority of a task waiting for this task's locks.
+     */
+    void setInheritedPriority(int inheritedPriority) {
+        this.inheritedPriority = inheritedPriority;
+    }
+
+    /**
+     * @param deadline the {@link TaskGroup#getTimeServer()} nanoTime by which this task should complete, or
+     * {@link #NO_DEADLINE}.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param executionTimeout how long this task may run before it is treated as hung, 0 to use the TaskGroup's
+     * {@link TaskGroup#setExecutionTimeout(long, TimeUnit)}.
+     * @param unit
+     */
+    public void setExecutionTimeout(long executionTimeout, TimeUnit unit) {
+        ApplicationIllegalArgumentException.valid(executionTimeout >= 0, "executionTimeout must not be negative: ",
+            executionTimeout);
+        this.executionTimeout = unit.toNanos(executionTimeout);
+    }
+
+    public long getExecutionTimeout(TimeUnit unit) {
+        return unit.convert(executionTimeout, NANOSECONDS);
+    }
+
+    /**
+     * @param idempotent true if {@link #callBody()} can safely be run more than once, even at the same time. Only
+     * idempotent tasks are hedged when they run slowly, see {@link TaskGroup#setHedgePercentile(int)}.
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Run {@link #callBody()} a second time while the first run is taking too long. Whichever run finishes first
+     * sets the result. An exception thrown here is dropped, because the first run may still succeed, whereas an
+     * exception thrown by the first run is the result unless this run has already succeeded.
+     * @return true if this run finished without an exception.
+     */
+    boolean hedge() {
+        R callBodyValue;
+        try {
+            callBodyValue = callBody();
+        } catch (Exception e) {
+            // the first run may still succeed.
+            return false;
+        }
+        set(callBodyValue);
+        return true;
+    }
+
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    public long getCriticalPath() {
+        return criticalPath;
+    }
+
+    /**
+     * Set by the {@link TaskGroup}, only while this task is not in a queue ordered by the critical path.
+     * @param criticalPath
+     */
+    void setCriticalPath(long criticalPath) {
+        this.criticalPath = criticalPath;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -316,8 +420,16 @@ public class DefaultPrioritizedTask<R> implements PrioritizedTask, Callable<R> {
         return exception;
     }
 
+    /**
+     * Tasks are not serialized while waiting to run so a {@link FutureListenerProcessor} is created if needed.
+     * @see com.sworddance.taskcontrol.FutureListenerNotifier#addFutureListener(com.sworddance.taskcontrol.FutureListener)
+     */
     public void addFutureListener(FutureListener futureListener) {
-        this.result.addFutureListener(futureListener);
+        if (this.result instanceof FutureResultImpl) {
+            ((FutureResultImpl<R>) this.result).addFutureListenerCreatingProcessor(futureListener);
+        } else {
+            this.result.addFutureListener(futureListener);
+        }
     }
 
     public boolean isFailed() {
@@ -389,6 +501,7 @@ public class DefaultPrioritizedTask<R> implements PrioritizedTask, Callable<R> {
         if (wrapped instanceof TaskGroupAware) {
             ((TaskGroupAware) wrapped).setTaskGroup(taskGroup);
         }
+        this.submitTime = taskGroup.getTimeServer().nanoTime();
         this.taskGroup = taskGroup;
     }
 
@@ -424,6 +537,62 @@ public class DefaultPrioritizedTask<R> implements PrioritizedTask, Callable<R> {
                 && !this.getResourceLocksNeeded().isEmpty();
     }
 
+    /**
+     * Release this task's lock on resourceName before the task completes so that the tasks waiting on the resource
+     * can start now. Only call from the running task, which must not use the resource afterwards. If the task still
+     * has locks on parts of resourceName, see {@link ResourceLock#PATH_SEPARATOR}, the tasks waiting on the whole
+     * resource keep waiting for those locks.
+     *
+     * @param resourceName
+     * @return false if this task has no unreleased lock on resourceName.
+     */
+    public boolean releaseLock(String resourceName) {
+        ResourceLock lock = getUnreleasedLock(resourceName);
+        if (lock == null) {
+            return false;
+        }
+        if (getTaskGroup() != null) {
+            getTaskGroup().releaseTaskLock(lock);
+        } else {
+            lock.releaseLock();
+        }
+        return true;
+    }
+
+    /**
+     * Reduce this task's lock on resourceName before the task completes, for example from exclusive to nonexclusive
+     * when it only needs to read the resource from now on. The tasks that can share the weaker lock can start now.
+     * Only call from the running task.
+     *
+     * @param resourceName
+     * @param lockTypeMask the lock types to keep, see {@link ResourceLock#downGrade(int)}.
+     * @return false if this task has no unreleased lock on resourceName.
+     */
+    public boolean downgradeLock(String resourceName, int lockTypeMask) {
+        ResourceLock lock = getUnreleasedLock(resourceName);
+        if (lock == null) {
+            return false;
+        }
+        if (getTaskGroup() != null) {
+            getTaskGroup().downgradeTaskLock(lock, lockTypeMask);
+        } else {
+            lock.downGrade(lockTypeMask);
+        }
+        return true;
+    }
+
+    private ResourceLock getUnreleasedLock(String resourceName) {
+        String name = resourceName.toUpperCase();
+        for (ResourceLock lock : getResourceLocksNeeded()) {
+            // generated and intention locks only stand for the task's locks on other resources.
+            if (lock.getResourceName().equals(name) && !lock.isGenerated() && !lock.isIntentionLock()
+                && !lock.isLockReleased()) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
     public void setLockTypeUsed(String resourceName, int lockTypeUsed) {
         resourceName = resourceName.toUpperCase();
         Integer value = resourceLocksUsed.get(resourceName);
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * Earliest deadline first ordering of the tasks that are ready to run. Can be used in place of
+ * {@link PriorityEligibleWorkItemComparator} for the {@link TaskControl} or in place of
+ * {@link PossibleWorkItemComparator} for a {@link TaskGroup}'s ready tasks.
+ *
+ * A task with a {@link PrioritizedTask#getDeadline()} is ordered by that deadline. A task without a deadline is given
+ * one: its {@link PrioritizedTask#getSubmitTime()} plus one agingInterval for each priority level below
+ * {@link Thread#MAX_PRIORITY} (plus one). So a waiting low priority task ages: a task submitted long enough ago
+ * will run before a newly submitted higher priority task, and low priority tasks can not starve under sustained
+ * load.
+ *
+ * The effective deadline of a task does not change while it is queued, so the ordering is stable.
+ * Ties are broken by priority and then sequence.
+ */
+public class EarliestDeadlineWorkItemComparator implements Comparator<PrioritizedTask> {
+    /**
+     * default agingInterval, 100ms.
+     */
+    public static final long DEFAULT_AGING_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long agingInterval;
+
+    public EarliestDeadlineWorkItemComparator() {
+        this.agingInterval = DEFAULT_AGING_INTERVAL;
+    }
+
+    /**
+     * @param agingInterval how long a waiting task takes to gain the equivalent of one priority level.
+     * @param unit
+     */
+    public EarliestDeadlineWorkItemComparator(long agingInterval, TimeUnit unit) {
+        ApplicationIllegalArgumentException.valid(agingInterval > 0, "agingInterval must be positive: ", agingInterval);
+        this.agingInterval = unit.toNanos(agingInterval);
+    }
+
+    public int compare(PrioritizedTask left, PrioritizedTask right) {
+        // nanoTime values may wrap so compare the difference.
+        long difference = getEffectiveDeadline(left) - getEffectiveDeadline(right);
+        if (difference != 0) {
+            return difference < 0 ? -1 : 1;
+        } else if (left.getEffectivePriority() != right.getEffectivePriority()) {
+            return right.getEffectivePriority() - left.getEffectivePriority();
+        } else {
+            return left.getSequence() - right.getSequence();
+        }
+    }
+
+    /**
+     * @param task
+     * @return the deadline used to order task.
+     */
+    public long getEffectiveDeadline(PrioritizedTask task) {
+        long deadline = task.getDeadline();
+        if (deadline != PrioritizedTask.NO_DEADLINE) {
+            return deadline;
+        } else {
+            return task.getSubmitTime() + (Thread.MAX_PRIORITY + 1 - task.getEffectivePriority()) * agingInterval;
+        }
+    }
+
+    public long getAgingInterval(TimeUnit unit) {
+        return unit.convert(agingInterval, TimeUnit.NANOSECONDS);
+    }
+}
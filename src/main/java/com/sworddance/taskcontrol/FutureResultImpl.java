@@ -16,6 +16,7 @@ package com.sworddance.taskcontrol;
 
 import java.io.Serializable;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
@@ -50,7 +51,7 @@ public class FutureResultImpl<T> extends FutureTask<T> implements FutureResultIm
      * The FutureListenerProcessor is not serialized and thus serialization would break the notification mechanism.
      * However, the futureListenerProcessor is still useful for cases where serialization is not performed.
      */
-    private transient FutureListenerProcessor futureListenerProcessor;
+    private transient volatile FutureListenerProcessor futureListenerProcessor;
     public FutureResultImpl() {
         this(new StaticCallable<T>(null));
     }
@@ -89,12 +90,41 @@ public class FutureResultImpl<T> extends FutureTask<T> implements FutureResultIm
             throw new UnsupportedOperationException("Use FutureListenerProcessorMap - when the Future has not yet been set ( this enables serialization of Futures )");
         }
     }
+    /**
+     * Like {@link #addFutureListener(FutureListener)} but creates the {@link FutureListenerProcessor} if needed rather than throwing
+     * {@link UnsupportedOperationException}. Only for FutureResults that will not be serialized before they are set.
+     * @param futureListener
+     */
+    public void addFutureListenerCreatingProcessor(FutureListener futureListener) {
+        synchronized (this) {
+            if ( this.getFutureListenerProcessor() == null && !this.isDone()) {
+                this.setFutureListenerProcessor(new FutureListenerProcessor());
+            }
+        }
+        this.addFutureListener(futureListener);
+    }
+
+    /**
+     * Notifies the {@link FutureListenerProcessor} exactly once, however this future became done ( set, exception or cancel ).
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done() {
+        FutureListenerProcessor processor = this.getFutureListenerProcessor();
+        if ( processor != null) {
+            if ( this.isCancelled()) {
+                processor.futureSetException(this, new CancellationException());
+            } else if ( this.getException() != null) {
+                processor.futureSetException(this, this.getException());
+            } else {
+                processor.futureSet(this, this.getUnchecked(1L, TimeUnit.NANOSECONDS, false));
+            }
+        }
+    }
+
     @Override
 	public void set(T value) {
         super.set(value);
-        if ( this.getFutureListenerProcessor() != null) {
-            getFutureListenerProcessor().futureSet(this, value);
-        }
     }
     public Throwable getException() {
         if ( super.isDone()) {
@@ -107,6 +137,8 @@ public class FutureResultImpl<T> extends FutureTask<T> implements FutureResultIm
                 return cause;
             } catch (InterruptedException e) {
                 return e;
+            } catch (CancellationException e) {
+                return e;
             } catch(TimeoutException e) {
                 return null;
             }
@@ -120,9 +152,6 @@ public class FutureResultImpl<T> extends FutureTask<T> implements FutureResultIm
     @Override
 	public void setException(Throwable throwable) {
         super.setException(throwable);
-        if ( getFutureListenerProcessor() != null ) {
-            getFutureListenerProcessor().futureSetException(this, throwable);
-        }
     }
     @Override
 	public T get(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException, ExecutionException {
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Hill climbing on throughput: after each sample the concurrency is moved one step. If the throughput improved by
+ * more than the tolerance since the previous sample, the next step is in the same direction; if it got worse, the
+ * direction reverses. When the throughput did not change significantly, the concurrency grows if the tasks are
+ * waiting in the queue longer than they run and shrinks otherwise, so that threads that do not add throughput are
+ * given back. At a bound, the direction reverses.
+ *
+ * Samples with no completed tasks say nothing about throughput and leave the concurrency unchanged.
+ */
+public class HillClimbingConcurrencyController implements ConcurrencyController {
+    private final int minConcurrency;
+
+    private final int maxConcurrency;
+
+    private long sampleInterval = MILLISECONDS.toNanos(500);
+
+    /**
+     * relative change in throughput that is treated as significant.
+     */
+    private double tolerance = 0.1;
+
+    private int step = 1;
+
+    /**
+     * tasks per second in the previous sample, negative before the first sample.
+     */
+    private double previousThroughput = -1;
+
+    /**
+     * +1 to grow, -1 to shrink.
+     */
+    private int direction = 1;
+
+    /**
+     * @param minConcurrency
+     * @param maxConcurrency also limited by the TaskControl's maxThreads.
+     */
+    public HillClimbingConcurrencyController(int minConcurrency, int maxConcurrency) {
+        ApplicationIllegalArgumentException.valid(minConcurrency > 0, "minConcurrency must be positive: ", minConcurrency);
+        ApplicationIllegalArgumentException.valid(maxConcurrency >= minConcurrency,
+            "maxConcurrency must be at least minConcurrency: ", maxConcurrency);
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getInitialConcurrency(int maxThreads) {
+        return Math.min(minConcurrency, maxThreads);
+    }
+
+    public synchronized int adjustConcurrency(int concurrency, int completedTasks, long intervalNanos,
+        long queueWaitNanos, long runNanos) {
+        if (completedTasks == 0 || intervalNanos <= 0) {
+            return concurrency;
+        }
+        double throughput = completedTasks * (double) SECONDS.toNanos(1) / intervalNanos;
+        if (previousThroughput < 0 || Math.abs(throughput - previousThroughput) <= tolerance * previousThroughput) {
+            // nothing learned from the last step: grow only if the tasks are backing up.
+            direction = queueWaitNanos > runNanos ? 1 : -1;
+        } else if (throughput < previousThroughput) {
+            direction = -direction;
+        }
+        previousThroughput = throughput;
+        int next = Math.max(minConcurrency, Math.min(maxConcurrency, concurrency + direction * step));
+        if (next == concurrency) {
+            direction = -direction;
+        }
+        return next;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getSampleIntervalNanos() {
+        return sampleInterval;
+    }
+
+    /**
+     * @param sampleInterval long enough for many tasks to complete, otherwise the throughput is mostly noise.
+     * @param unit
+     */
+    public void setSampleInterval(long sampleInterval, TimeUnit unit) {
+        ApplicationIllegalArgumentException.valid(sampleInterval > 0, "sampleInterval must be positive: ", sampleInterval);
+        this.sampleInterval = unit.toNanos(sampleInterval);
+    }
+
+    /**
+     * @param tolerance relative change in throughput treated as significant, for example 0.1 for 10%.
+     */
+    public void setTolerance(double tolerance) {
+        ApplicationIllegalArgumentException.valid(tolerance >= 0, "tolerance must not be negative: ", tolerance);
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @param step how much the concurrency changes after each sample.
+     */
+    public void setStep(int step) {
+        ApplicationIllegalArgumentException.valid(step > 0, "step must be positive: ", step);
+        this.step = step;
+    }
+
+    public int getStep() {
+        return step;
+    }
+}
@@ -65,9 +65,9 @@ public class PossibleWorkItemComparator implements Comparator<PrioritizedTask>,
         // both are ready to run or neither is ready to run...
         // notice that with priority, the larger number should go first.
         // if all else fails ... the order submitted wins out.
-        return left.getPriority() == right.getPriority() ? left.getSequence()
-                - right.getSequence() : right.getPriority()
-                - left.getPriority();
+        return left.getEffectivePriority() == right.getEffectivePriority() ? left.getSequence()
+                - right.getSequence() : right.getEffectivePriority()
+                - left.getEffectivePriority();
     }
 
     public void setCompleteSort(boolean completeSort) {
@@ -28,6 +28,11 @@ import java.util.concurrent.Callable;
 public interface PrioritizedTask extends Runnable, TaskGroupAware,
         ResourceLocker, FutureResult {
 
+    /**
+     * {@link #getDeadline()} of a task that does not have a deadline.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
     /**
      * @return true if ready to run
      */
@@ -55,6 +60,31 @@ public interface PrioritizedTask extends Runnable, TaskGroupAware,
      */
     public int getPriority();
 
+    /**
+     * @return the larger of {@link #getPriority()} and the priority inherited from higher priority tasks waiting for
+     * this task's {@link ResourceLock}s. Tasks are ordered by this priority so a low priority task holding a lock does
+     * not hold up more urgent work.
+     */
+    public int getEffectivePriority();
+
+    /**
+     * @return the {@link com.sworddance.scheduling.TimeServer#nanoTime()} by which this task should complete or
+     * {@link #NO_DEADLINE}.
+     */
+    public long getDeadline();
+
+    /**
+     * @return the {@link com.sworddance.scheduling.TimeServer#nanoTime()} when this task was added to its
+     * {@link TaskGroup}.
+     */
+    public long getSubmitTime();
+
+    /**
+     * @return the estimated milliseconds from the start of this task until the end of the longest chain of unfinished
+     * tasks that depend on it, 0 if not known. See {@link CriticalPathWorkItemComparator}.
+     */
+    public long getCriticalPath();
+
     public String getStatus();
 
     public String getName();
@@ -20,6 +20,12 @@ import java.util.Comparator;
  *
  * The prioritization rules when comparing Task t1 to Task t2 are as follows ('<'
  * means comes before).
+ * <ol>
+ * <li>t1 (higher {@link PrioritizedTask#getEffectivePriority()}) < t2 (lower effective priority)</li>
+ * <li>t1.sequenceId < t2.sequenceId</li>
+ * </ol>
+ * The effective priority includes the priority inherited from higher priority tasks waiting for t1's
+ * {@link ResourceLock}s, so a low priority task does not hold up more urgent work.
  *
  * @author pmoore
  *
@@ -31,8 +37,8 @@ public class PriorityEligibleWorkItemComparator implements Comparator<Prioritize
     }
 
     public int compare(PrioritizedTask left, PrioritizedTask right) {
-        if (left.getPriority() != right.getPriority()) {
-            return right.getPriority() - left.getPriority();
+        if (left.getEffectivePriority() != right.getEffectivePriority()) {
+            return right.getEffectivePriority() - left.getEffectivePriority();
         } else {
             return left.getSequence() - right.getSequence();
         }
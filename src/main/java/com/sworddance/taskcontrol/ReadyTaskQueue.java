@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tasks of a {@link TaskGroup} that are ready to run, as a binary heap that also keeps the position of each task.
+ * Unlike {@link java.util.PriorityQueue}, removing a task that is not at the head, and checking if a task is queued,
+ * do not scan the queue. Tasks are removed before their priority changes and added back afterwards, so this happens
+ * often. A task is only queued once.
+ *
+ * Not thread safe, the TaskGroup only uses it while holding its lock.
+ */
+class ReadyTaskQueue {
+    private final Comparator<PrioritizedTask> comparator;
+
+    private PrioritizedTask[] heap = new PrioritizedTask[16];
+
+    private int size;
+
+    /**
+     * Map&lt;task, index of the task in heap&gt;
+     */
+    private final Map<PrioritizedTask, Integer> positions = new HashMap<PrioritizedTask, Integer>();
+
+    ReadyTaskQueue(Comparator<PrioritizedTask> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @param task
+     * @return false if task was already queued.
+     */
+    boolean add(PrioritizedTask task) {
+        if (positions.containsKey(task)) {
+            return false;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        siftUp(size++, task);
+        return true;
+    }
+
+    PrioritizedTask peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    PrioritizedTask poll() {
+        if (size == 0) {
+            return null;
+        }
+        PrioritizedTask first = heap[0];
+        removeAt(0);
+        return first;
+    }
+
+    /**
+     * @param task
+     * @return true if task was queued.
+     */
+    boolean remove(Object task) {
+        Integer index = positions.get(task);
+        if (index == null) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    boolean contains(Object task) {
+        return positions.containsKey(task);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+        positions.clear();
+    }
+
+    private void removeAt(int index) {
+        positions.remove(heap[index]);
+        int last = --size;
+        PrioritizedTask moved = heap[last];
+        heap[last] = null;
+        if (index != last) {
+            siftDown(index, moved);
+            if (heap[index] == moved) {
+                siftUp(index, moved);
+            }
+        }
+    }
+
+    private void siftUp(int index, PrioritizedTask task) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (comparator.compare(task, heap[parent]) >= 0) {
+                break;
+            }
+            place(index, heap[parent]);
+            index = parent;
+        }
+        place(index, task);
+    }
+
+    private void siftDown(int index, PrioritizedTask task) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && comparator.compare(heap[right], heap[child]) < 0) {
+                child = right;
+            }
+            if (comparator.compare(task, heap[child]) <= 0) {
+                break;
+            }
+            place(index, heap[child]);
+            index = child;
+        }
+        place(index, task);
+    }
+
+    private void place(int index, PrioritizedTask task) {
+        heap[index] = task;
+        positions.put(task, index);
+    }
+}
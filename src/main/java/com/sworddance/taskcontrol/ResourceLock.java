@@ -37,6 +37,11 @@ public class ResourceLock implements Cloneable {
 
     private boolean generatedLock;
 
+    /**
+     * set by the {@link ResourceLockQueue} when no lock in front of this lock blocks it.
+     */
+    private volatile boolean granted;
+
     public static final int NONEXCLUSIVE = 0;
 
     public static final int EXCLUSIVE = 1 << 1;
@@ -86,6 +91,24 @@ public class ResourceLock implements Cloneable {
     public static final int GLOBALLOCKTYPE_NOWRITE = SHARE_SIBLING
             | SHARE_ONLY_CHILDREN | READ | EXCLUSIVE;
 
+    /**
+     * Separates the parts of a hierarchical resource name, for example "db/orders/123". A lock on a resource also locks
+     * all the resources whose names start with the resource's name and the separator.
+     */
+    public static final char PATH_SEPARATOR = '/';
+
+    /**
+     * Generated on the ancestors of a resource that is locked nonexclusively. Only conflicts with exclusive locks on
+     * the ancestor.
+     */
+    public static final int INTENTION_SHARED = 1 << 8;
+
+    /**
+     * Generated on the ancestors of a resource that is locked exclusively. Conflicts with exclusive and nonexclusive
+     * locks on the ancestor but not with other intention locks.
+     */
+    public static final int INTENTION_EXCLUSIVE = INTENTION_SHARED | 1 << 9;
+
     public ResourceLock(String resourceName, int lockType) {
         this.resourceName = resourceName.toUpperCase();
         originalLockType = this.lockType = lockType;
@@ -103,6 +126,53 @@ public class ResourceLock implements Cloneable {
         return resourceName;
     }
 
+    /**
+     * @return the name of the resource that this lock's resource is part of, null if the resource name has no
+     * {@link #PATH_SEPARATOR}.
+     */
+    public String getParentResourceName() {
+        return getParentResourceName(resourceName);
+    }
+
+    static String getParentResourceName(String resourceName) {
+        int index = resourceName.lastIndexOf(PATH_SEPARATOR);
+        return index > 0 ? resourceName.substring(0, index) : null;
+    }
+
+    /**
+     * @return true if this lock only stands for locks on descendants of the resource, see {@link #INTENTION_SHARED}.
+     */
+    public boolean isIntentionLock() {
+        return !isExclusiveLock() && (lockType & INTENTION_SHARED) != 0;
+    }
+
+    /**
+     * @return true if this lock stands for exclusive locks on descendants of the resource.
+     */
+    public boolean isIntentionExclusiveLock() {
+        return !isExclusiveLock() && (lockType & INTENTION_EXCLUSIVE) == INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * Sharing between subtasks is beyond the scope of ResourceLock.
+     *
+     * @param other lock on the same resource.
+     * @return true if this lock and other can be held at the same time.
+     */
+    public boolean isCompatible(ResourceLock other) {
+        if (isExclusiveLock() || other.isExclusiveLock()) {
+            return false;
+        } else if (isIntentionLock() && other.isIntentionLock()) {
+            return true;
+        } else if (isIntentionLock()) {
+            return !isIntentionExclusiveLock();
+        } else if (other.isIntentionLock()) {
+            return !other.isIntentionExclusiveLock();
+        } else {
+            return true;
+        }
+    }
+
     public ResourceLocker getTask() {
         return task;
     }
@@ -127,6 +197,17 @@ public class ResourceLock implements Cloneable {
         lockReleased.countDown();
     }
 
+    /**
+     * @return true if the lock is at the front of the resource's lock queue and can be acquired.
+     */
+    public boolean isGranted() {
+        return granted;
+    }
+
+    void setGranted(boolean granted) {
+        this.granted = granted;
+    }
+
     public boolean isLockReleased() {
         try {
             return lockReleased.await(0, MILLISECONDS);
@@ -241,6 +322,11 @@ public class ResourceLock implements Cloneable {
             // this will reduce the noise in the output.
             sb.append('N');
         } else {
+            if ((lockTypeVal & INTENTION_EXCLUSIVE) == INTENTION_EXCLUSIVE) {
+                sb.append("IX");
+            } else if ((lockTypeVal & INTENTION_SHARED) == INTENTION_SHARED) {
+                sb.append("IS");
+            }
             if ((lockTypeVal & READ) == READ) {
                 sb.append('R');
             }
@@ -282,6 +368,13 @@ public class ResourceLock implements Cloneable {
         this.generatedLock = true;
     }
 
+    /**
+     * @return true if the lock was created by the {@link ResourceLockManager} rather than asked for by the task.
+     */
+    public boolean isGenerated() {
+        return generatedLock;
+    }
+
     /**
      * @param lock
      * @return successor lock
@@ -23,21 +23,50 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.sworddance.util.ApplicationGeneralException;
 
 /**
  * Manages the lock lists for each resource.
+ *
+ * Each resource's locks are kept in a {@link ResourceLockQueue} which tracks which locks at the front of the queue have
+ * been granted. Releasing locks only locks the affected resource queues. Adding locks may affect every resource (global
+ * exclusive locks) so adding locks excludes all other operations.
+ *
+ * Resource names can be hierarchical paths such as "db/orders/123", see {@link ResourceLock#PATH_SEPARATOR}. A lock on
+ * a path is also a lock on everything below it, so "db/orders" can be locked without locks being created on any of
+ * the orders. Locks on different orders do not block each other.
  */
 public class ResourceLockManager {
-    private ConcurrentMap<String, LinkedList<ResourceLock>> lockLists = new ConcurrentHashMap<String, LinkedList<ResourceLock>>();
+    private final ConcurrentMap<String, ResourceLockQueue> lockQueues = new ConcurrentHashMap<String, ResourceLockQueue>();
+
+    /**
+     * read lock for operations on individual resource queues, write lock for changes that span resources.
+     */
+    private final ReadWriteLock queuesLock = new ReentrantReadWriteLock();
+
+    /**
+     * tasks with locks that have been granted since the last {@link #drainUnblockedTasks()}.
+     */
+    private final Queue<ResourceLocker> unblockedTasks = new ConcurrentLinkedQueue<ResourceLocker>();
+
+    /**
+     * tasks with locks that have stopped being granted, because a subtask's lock was inserted in front of them, since
+     * the last {@link #drainBlockedTasks()}.
+     */
+    private final Queue<ResourceLocker> blockedTasks = new ConcurrentLinkedQueue<ResourceLocker>();
 
     private Set<PrioritizedTask> tasksAdded = new HashSet<PrioritizedTask>();
 
@@ -56,12 +85,11 @@ public class ResourceLockManager {
      * If a task does not have an explicit lock on the {@link #GLOBALRESOURCE}
      * resource, then an nonexclusive lock is created.
      *
-     * If a task has a global ({@link #GLOBALRESOURCE}), exclusive lock as
-     * part of its list then there is additional behavior. All existing
-     * resources have a exclusive lock created for 'task' and inserted at the
-     * end of the resource's lock list. If any new resources are created, then
-     * the tasks with global, exclusive locks have additional exclusive locks
-     * created on those new resources.
+     * The {@link #GLOBALRESOURCE} resource is the root of all the other
+     * resources. Every task has a lock on it, so a global exclusive lock
+     * blocks, and is blocked by, every other task without locks being
+     * created on the other resources. The subtasks of a task with a global
+     * exclusive lock may lock any resource.
      *
      * @param task
      */
@@ -69,7 +97,35 @@ public class ResourceLockManager {
         addTaskLocks(task, new DefaultInsertionPoint());
     }
 
-    public synchronized void addTaskLocks(PrioritizedTask task,
+    public void addTaskLocks(PrioritizedTask task,
+            Comparator<ResourceLock> insertionComparator) {
+        queuesLock.writeLock().lock();
+        try {
+            addTaskLocksImpl(task, insertionComparator);
+        } finally {
+            queuesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the locks for all of tasks, in order, as if {@link #addTaskLocks(PrioritizedTask)} was called for each
+     * task. The lock excluding other operations is only acquired once.
+     *
+     * @param tasks
+     */
+    public void addTaskLocks(Collection<? extends PrioritizedTask> tasks) {
+        Comparator<ResourceLock> insertionComparator = new DefaultInsertionPoint();
+        queuesLock.writeLock().lock();
+        try {
+            for (PrioritizedTask task : tasks) {
+                addTaskLocksImpl(task, insertionComparator);
+            }
+        } finally {
+            queuesLock.writeLock().unlock();
+        }
+    }
+
+    private void addTaskLocksImpl(PrioritizedTask task,
             Comparator<ResourceLock> insertionComparator) {
         synchronized (tasksAdded) {
             // avoid possible circular dependency
@@ -89,37 +145,122 @@ public class ResourceLockManager {
         for (ResourceLock lock: taskLocks) {
             lock.setTask(task);
         }
+        // a subtask's locks are a subset of its parent's, so the parent's intention locks already cover them.
+        Map<String, Boolean> intentions = null;
+        if (!(task instanceof DependentPrioritizedTask) || ((DependentPrioritizedTask) task).getParentTask() == null) {
+            intentions = getIntentions(taskLocks);
+            // decided before the locks are queued so that each lock is granted in its final mode.
+            for (ResourceLock lock : taskLocks) {
+                if (Boolean.TRUE.equals(intentions.get(lock.getResourceName())) && !lock.isExclusiveLock()) {
+                    // others reading the ancestor would be reading the descendant task is changing.
+                    lock.setLockType(lock.getLockType() | ResourceLock.EXCLUSIVE);
+                }
+            }
+        }
         for (ResourceLock lock : taskLocks) {
             if (GLOBALRESOURCE.equals(lock.getResourceName())) {
                 globalLock = lock;
-                // an explicit global lock is being added, so existing resources
-                // need to have
-                // placeholder locks added. -- bug if there are 2 global locks
-                // for the task
-                if (globalLock.isExclusiveLock()
-                        && !globalLock.isLockReleased()) {
-                    for (Map.Entry<?, ?> entry: lockLists.entrySet()) {
-                        String resourceName = entry.getKey().toString();
-                        if (!GLOBALRESOURCE.equals(resourceName)) {
-                            ResourceLock newLock = new ResourceLock(
-                                    resourceName, globalLock.getLockType());
-                            addGeneratedLock(task, newLock, insertionComparator);
-                        }
-                    }
-                }
             }
             addLock(lock, insertionComparator);
         }
+        if (intentions != null) {
+            addIntentionLocks(task, taskLocks, intentions, insertionComparator);
+        }
 
-        // if explicit global lock not specified then create a nop lock that
-        // will be use to preserve relative ordering when global exclusive locks
-        // are added.
+        // if explicit global lock not specified then create a nonexclusive lock
+        // so that global exclusive locks block and are blocked by this task.
         if (globalLock == null) {
             globalLock = createGlobalResourceNonexclusiveLock();
             addGeneratedLock(task, globalLock, insertionComparator);
         }
     }
 
+    /**
+     * Lock the ancestors of each of task's hierarchical resources with an intention lock, the strongest one needed
+     * if several of task's resources share an ancestor. The ancestors are found by walking up the resource names
+     * rather than by creating locks on the descendants of locked resources. No intention lock is added on an
+     * ancestor that task locks itself; that lock was made exclusive, if needed, before it was queued.
+     *
+     * @param task
+     * @param taskLocks the locks task asked for.
+     * @param intentions from {@link #getIntentions(Collection)}
+     * @param insertionComparator
+     */
+    private void addIntentionLocks(PrioritizedTask task, List<ResourceLock> taskLocks, Map<String, Boolean> intentions,
+            Comparator<ResourceLock> insertionComparator) {
+        if (intentions.isEmpty()) {
+            return;
+        }
+        Set<String> explicitResources = new HashSet<String>();
+        for (ResourceLock lock : taskLocks) {
+            explicitResources.add(lock.getResourceName());
+        }
+        for (Map.Entry<String, Boolean> intention : intentions.entrySet()) {
+            if (!explicitResources.contains(intention.getKey())) {
+                addGeneratedLock(task, new ResourceLock(intention.getKey(), intention.getValue()
+                    ? ResourceLock.INTENTION_EXCLUSIVE : ResourceLock.INTENTION_SHARED), insertionComparator);
+            }
+        }
+    }
+
+    /**
+     * @param taskLocks
+     * @return the intention lock needed on each ancestor of the resources locked by the unreleased, not generated
+     * locks of taskLocks, true if {@link ResourceLock#INTENTION_EXCLUSIVE} is needed.
+     */
+    private static Map<String, Boolean> getIntentions(Collection<ResourceLock> taskLocks) {
+        Map<String, Boolean> intentions = new LinkedHashMap<String, Boolean>();
+        for (ResourceLock lock : taskLocks) {
+            if (lock.isGenerated() || lock.isLockReleased()) {
+                continue;
+            }
+            boolean exclusive = lock.isExclusiveLock() || lock.isIntentionExclusiveLock();
+            String ancestor = lock.getParentResourceName();
+            for (; ancestor != null; ancestor = ResourceLock.getParentResourceName(ancestor)) {
+                Boolean previous = intentions.get(ancestor);
+                if (previous != null && (previous || !exclusive)) {
+                    // this ancestor and so all of its ancestors already have a strong enough intention.
+                    break;
+                }
+                intentions.put(ancestor, exclusive);
+            }
+        }
+        return intentions;
+    }
+
+    /**
+     * Release or weaken task's intention locks that are stronger than its remaining locks need, called after one of
+     * task's locks was released or downgraded while task is running.
+     *
+     * @param task
+     */
+    private void updateIntentionLocks(ResourceLocker task) {
+        Collection<ResourceLock> taskLocks = task.getResourceLocksNeeded();
+        boolean changed;
+        do {
+            // a lock that was weakened to an intention lock needs intentions on its own ancestors.
+            changed = false;
+            Map<String, Boolean> intentions = getIntentions(taskLocks);
+            for (ResourceLock lock : taskLocks) {
+                if (!lock.isIntentionLock() || lock.isLockReleased()) {
+                    continue;
+                }
+                Boolean exclusive = intentions.get(lock.getResourceName());
+                ResourceLockQueue queue = lockQueues.get(lock.getResourceName());
+                if (exclusive == null) {
+                    lock.releaseLock();
+                    if (queue != null) {
+                        queue.release(lock, unblockedTasks);
+                    }
+                    changed = true;
+                } else if (!exclusive && lock.isIntentionExclusiveLock() && queue != null) {
+                    queue.downgrade(lock, ResourceLock.INTENTION_SHARED, unblockedTasks);
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+
     public static ResourceLock createGlobalResourceNonexclusiveLock() {
         return new ResourceLock(GLOBALRESOURCE, ResourceLock.NONEXCLUSIVE);
     }
@@ -154,125 +295,131 @@ public class ResourceLockManager {
      * Insert a lock for a subtask. NOtice that it is very dangerous to add a
      * subtask lock
      *
+     * The parent's lock may be on an ancestor of the resource, or be a global
+     * exclusive lock. The subtask then also gets intention locks on the
+     * resources between the resource and the parent's lock.
+     *
      * @param lock
      * @param insertionComparator
      */
     private void addSubtaskLock(ResourceLock lock,
             Comparator<ResourceLock> insertionComparator) {
-        // TODO get rid of this cast
-        PrioritizedTask task = (PrioritizedTask) lock.getTask();
-        List<ResourceLock> lockList = getResourceLockList(lock.getResourceName());
-        // find insertion point of lock for subtasks
-        // non-subtasks are always add to the end.
-        // first find parent.
-        ListIterator<ResourceLock> iter;
-        ResourceLock currentLock = null;
-        boolean foundInsertPoint = false;
-        for (iter = lockList.listIterator(); iter.hasNext();) {
-            currentLock = iter.next();
-            // TODO get rid of this cast
-            PrioritizedTask currentTask = (PrioritizedTask) currentLock.getTask();
-            if (currentTask == task) {
-                combineLocks(iter, lock, currentLock);
-                return;
-            }
-            // thread safety note: task could change its parent task.
-            else if (((DependentPrioritizedTask) task).getParentTask() == currentTask) {
-                // found starting potential insertion point
-                foundInsertPoint = true;
+        ResourceLocker task = lock.getTask();
+        DependentPrioritizedTask parentTask = ((DependentPrioritizedTask) task).getParentTask();
+        ResourceLockQueue queue = getResourceLockQueue(lock.getResourceName());
+        ResourceLock parentLock = queue.getLock(parentTask);
+        if (GLOBALRESOURCE.equals(lock.getResourceName()) || (parentLock != null && !parentLock.isIntentionLock())) {
+            queue.addSubtaskLock(lock, insertionComparator, null, unblockedTasks, blockedTasks);
+            return;
+        }
+        List<ResourceLockQueue> intermediates = new ArrayList<ResourceLockQueue>();
+        ResourceLockQueue ancestor = queue.getParent();
+        for (; ancestor != null; ancestor = ancestor.getParent()) {
+            parentLock = ancestor.getLock(parentTask);
+            if (parentLock != null && !parentLock.isIntentionLock()) {
                 break;
             }
+            intermediates.add(ancestor);
+        }
+        if (ancestor == null) {
+            ancestor = lockQueues.get(GLOBALRESOURCE);
+            parentLock = ancestor == null ? null : ancestor.getLock(parentTask);
+            if (parentLock != null && !parentLock.isExclusiveLock()) {
+                parentLock = null;
+            }
         }
         // subtasks are not allowed to have any more locks or stronger locks
-        // than
-        // the parent. Nor are they allowed to have locks on any resource that a
-        // parent
-        // does not have a lock on. This is
-        if (!foundInsertPoint) {
+        // than the parent. Nor are they allowed to have locks on any resource that a
+        // parent does not have a lock on.
+        if (parentLock == null) {
             throw new RuntimeException(lock + ":could not find a parent lock");
+        } else if (!lock.isSubset(parentLock)) {
+            throw new RuntimeException(lock + ": subtask not a subset of parent lock " + parentLock);
         }
-        if (!lock.isSubset(currentLock)) {
-            throw new RuntimeException(lock
-                    + ": subtask not a subset of parent lock " + currentLock);
-        }
-        if (iter.hasNext()) {
-            // there are more locks after the parent. let the comparator search
-            // for the correct insertion point
-            for (; iter.hasNext();) {
-                currentLock = iter.next();
-                int compareValue = insertionComparator.compare(lock,
-                        currentLock);
-                if (compareValue == 0) {
-                    combineLocks(iter, lock, currentLock);
-                    return;
-                } else if (compareValue < 0) {
-                    // went too far go back and exit.
-                    iter.previous();
-                    break;
-                }
+        // the tasks that are not in front of the parent wait for the parent and so must also wait for the subtask.
+        Set<ResourceLocker> predecessors = ancestor.getTasksBefore(parentLock);
+        queue.addSubtaskLock(lock, insertionComparator, predecessors, unblockedTasks, blockedTasks);
+        if (!lock.isLockReleased()) {
+            int intentionLockType = lock.isExclusiveLock() ? ResourceLock.INTENTION_EXCLUSIVE : ResourceLock.INTENTION_SHARED;
+            for (ResourceLockQueue intermediate : intermediates) {
+                ResourceLock intentionLock = new ResourceLock(intermediate.getResourceName(), intentionLockType);
+                intentionLock.setGenerated();
+                intentionLock.setTask(task);
+                task.getResourceLocksNeeded().add(intentionLock);
+                intermediate.addSubtaskLock(intentionLock, insertionComparator, predecessors, unblockedTasks,
+                    blockedTasks);
             }
         }
-        iter.add(lock);
     }
 
     /**
      * This is used to add the task lock to the end of the list.
      *
-     * @param lockList
-     *
+     * @param lock
      */
     private void addNonsubtaskLock(ResourceLock lock) {
-        List<ResourceLock> lockList = getResourceLockList(lock.getResourceName());
-        // TODO get rid of this cast
-        PrioritizedTask task = (PrioritizedTask) lock.getTask();
-        // the only place that there should be a lock that is found by this loop
-        // is at the
-        // end of the list. The code does this extra work to make sure that this
-        // condition is held.
-        for (ListIterator<ResourceLock> iter = lockList.listIterator(); iter.hasNext();) {
-            ResourceLock currentLock = iter.next();
-            if (currentLock.getTask() == task) {
-                combineLocks(iter, lock, currentLock);
-                if (iter.hasNext()) {
-                    throw new RuntimeException(
-                            "Should only be modifying lock at the end of the list");
+        // the only place that there should be a lock for the same task is at the end of the list.
+        getResourceLockQueue(lock.getResourceName()).addLast(lock, unblockedTasks);
+    }
+
+    /**
+     * Release one lock of a task that is still running, see {@link DefaultPrioritizedTask#releaseLock(String)}.
+     * If the task still holds locks on descendants of the resource then the lock is only weakened to the intention
+     * lock those locks need. The task's intention locks on the ancestors of the resource are weakened or released to
+     * match the task's remaining locks.
+     *
+     * @param lock
+     */
+    public void releaseLock(ResourceLock lock) {
+        queuesLock.readLock().lock();
+        try {
+            ResourceLocker task = lock.getTask();
+            ResourceLockQueue queue = lockQueues.get(lock.getResourceName());
+            Boolean exclusive = task == null ? null : getIntentions(task.getResourceLocksNeeded()).get(lock.getResourceName());
+            if (exclusive != null && queue != null) {
+                queue.weakenToIntention(lock, exclusive ? ResourceLock.INTENTION_EXCLUSIVE : ResourceLock.INTENTION_SHARED,
+                    unblockedTasks);
+            } else {
+                lock.releaseLock();
+                if (queue != null) {
+                    queue.release(lock, unblockedTasks);
                 }
-                return;
             }
+            if (task != null) {
+                updateIntentionLocks(task);
+            }
+        } finally {
+            queuesLock.readLock().unlock();
         }
-        lockList.add(lock);
     }
 
     /**
-     * Each task is allowed one and only one lock per resource. Two locks need
-     * to be combined. This method combines them. The surviving lock is inserted
-     * into the current position into iter.
+     * Reduce one lock of a task that is still running, see {@link DefaultPrioritizedTask#downgradeLock(String, int)}.
+     * The lock stays exclusive while the task holds exclusive locks on descendants of the resource. The task's
+     * intention locks on the ancestors of the resource are weakened to match.
      *
-     * @param iter
      * @param lock
-     *            lock that is attempting to be added.
-     * @param currentLock
-     *            link in the list being iterated through by iter
+     * @param lockTypeMask the lock types to keep.
      */
-    private void combineLocks(ListIterator<ResourceLock> iter, ResourceLock lock,
-            ResourceLock currentLock) {
-        // all locks for same task get combined at the same point.
-        // locks may be created by task or added by ResourceLockManager in
-        // response to
-        // global locks
-        ResourceLock successorLock = currentLock.combine(lock);
-        ResourceLocker task = lock.getTask();
-        if (successorLock == lock) {
-            task.getResourceLocksNeeded().remove(currentLock);
-            iter.remove();
-            iter.add(lock);
-        } else {
-            task.getResourceLocksNeeded().remove(lock);
-            if (task.getResourceLocksNeeded().contains(lock)) {
-                throw new RuntimeException("Tried to combine lock " + lock
-                        + "(id=" + System.identityHashCode(lock)
-                        + ") but actually removed something else");
+    public void downgradeLock(ResourceLock lock, int lockTypeMask) {
+        queuesLock.readLock().lock();
+        try {
+            ResourceLocker task = lock.getTask();
+            if (task != null && Boolean.TRUE.equals(getIntentions(task.getResourceLocksNeeded()).get(lock.getResourceName()))) {
+                // others reading the resource would be reading the descendants task is changing.
+                lockTypeMask |= ResourceLock.EXCLUSIVE;
+            }
+            ResourceLockQueue queue = lockQueues.get(lock.getResourceName());
+            if (queue != null) {
+                queue.downgrade(lock, lockTypeMask, unblockedTasks);
+            } else {
+                lock.downGrade(lockTypeMask);
             }
+            if (task != null) {
+                updateIntentionLocks(task);
+            }
+        } finally {
+            queuesLock.readLock().unlock();
         }
     }
 
@@ -282,12 +429,70 @@ public class ResourceLockManager {
      * @param task
      */
     public void releaseTaskLocks(ResourceLocker task) {
+        Collection<ResourceLock> taskLocks = task.getResourceLocksNeeded();
+        if (taskLocks != null) {
+            queuesLock.readLock().lock();
+            try {
+                for (ResourceLock lock : taskLocks) {
+                    lock.releaseLock();
+                    ResourceLockQueue queue = lockQueues.get(lock.getResourceName());
+                    if (queue != null) {
+                        queue.release(lock, unblockedTasks);
+                    }
+                }
+            } finally {
+                queuesLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Same blocking rules as {@link #getUnblockedTasks()} but for a single task.
+     * Each lock is checked in constant time.
+     *
+     * @param task
+     * @return true if no lock in front of any of task's locks blocks task from running.
+     */
+    public boolean isTaskUnblocked(ResourceLocker task) {
         Collection<ResourceLock> taskLocks = task.getResourceLocksNeeded();
         if (taskLocks != null) {
             for (ResourceLock lock : taskLocks) {
-                lock.releaseLock();
+                if (!lock.isGranted() && !lock.isLockReleased()) {
+                    return false;
+                }
             }
         }
+        return true;
+    }
+
+    /**
+     * Callers need to confirm with {@link #isTaskUnblocked(ResourceLocker)} as the tasks may still be blocked on other
+     * resources.
+     *
+     * @return tasks that have had a lock granted since the last call. These tasks may now be unblocked.
+     */
+    public Collection<ResourceLocker> drainUnblockedTasks() {
+        Set<ResourceLocker> candidates = new LinkedHashSet<ResourceLocker>();
+        ResourceLocker task;
+        while ((task = unblockedTasks.poll()) != null) {
+            candidates.add(task);
+        }
+        return candidates;
+    }
+
+    /**
+     * Only a subtask's locks are inserted in front of other locks, so only adding a subtask can block a task that was
+     * not blocked before.
+     *
+     * @return tasks that have had a lock stop being granted since the last call. These tasks may now be blocked.
+     */
+    public Collection<ResourceLocker> drainBlockedTasks() {
+        Set<ResourceLocker> candidates = new LinkedHashSet<ResourceLocker>();
+        ResourceLocker task;
+        while ((task = blockedTasks.poll()) != null) {
+            candidates.add(task);
+        }
+        return candidates;
     }
 
     /**
@@ -313,9 +518,7 @@ public class ResourceLockManager {
                 current = iter0.next();
                 if (current == lock) {
                     break;
-                } else if (lock.isExclusiveLock()) {
-                    return false;
-                } else if (current.isExclusiveLock()) {
+                } else if (!lock.isCompatible(current)) {
                     return false;
                 }
             }
@@ -327,59 +530,40 @@ public class ResourceLockManager {
     }
 
     /**
-     * return the list of locks for the given resource. copy over exclusive,
-     * unreleased locks from the global list. This will allow the tasks with
-     * global exclusive locks to be able to create subtasks that insert
-     * selective locks. If released locks are not pruned then the actual list is
-     * returned. This is important for combineLocks. combineLocks should be
-     * changed to remove this dependency.
+     * return the lock queue for the given resource. The queues of the ancestors
+     * of a hierarchical resource are created too so that each queue can be
+     * linked to its parent's queue. Only called while holding the write lock.
      *
      * @param resourceName
-     * @return actual list
+     * @return actual queue
      */
-    private List<ResourceLock> getResourceLockList(String resourceName) {
-        // TODO : remove sync block.
-        synchronized (lockLists) {
-            LinkedList<ResourceLock> list = lockLists.get(resourceName);
-            if (list == null) {
-                list = new LinkedList<ResourceLock>();
-                lockLists.put(resourceName, list);
-
-                LinkedList<ResourceLock> globalList = lockLists.get(GLOBALRESOURCE);
-                if (globalList != null) {
-                    for (ListIterator<ResourceLock> iter = globalList.listIterator(); iter.hasNext();) {
-                        ResourceLock lock = iter.next();
-                        if (lock.isExclusiveLock()) {
-                            ResourceLock newLock = new ResourceLock(resourceName, lock.getLockType());
-                            ResourceLocker task = lock.getTask();
-                            newLock.setTask(task);
-                            // if the lock is released then a released lock is
-                            // added so the resource map has the complete history.
-                            if (lock.isLockReleased()) {
-                                newLock.releaseLock();
-                            }
-                            task.addLock(newLock);
-                            list.add(newLock);
-                        }
-                    }
-                }
-            }
-            return list;
+    private ResourceLockQueue getResourceLockQueue(String resourceName) {
+        ResourceLockQueue queue = lockQueues.get(resourceName);
+        if (queue == null) {
+            String parentName = ResourceLock.getParentResourceName(resourceName);
+            queue = new ResourceLockQueue(resourceName, parentName == null ? null : getResourceLockQueue(parentName));
+            lockQueues.put(resourceName, queue);
         }
+        return queue;
     }
 
+    /**
+     * @param resourceName
+     * @param pruneReleasedLocks
+     * @return a copy of the resource's locks, empty if there is no lock queue yet for the resource.
+     */
     private List<ResourceLock> getResourceLockListCopy(String resourceName,
             boolean pruneReleasedLocks) {
-        List<ResourceLock> result = new ArrayList<ResourceLock>(getResourceLockList(resourceName));
-        if (pruneReleasedLocks) {
-            for (Iterator<ResourceLock> iter = result.iterator(); iter.hasNext();) {
-                ResourceLock lock = iter.next();
-                if (lock.isLockReleased()) {
-                    iter.remove();
-                }
+        queuesLock.readLock().lock();
+        try {
+            ResourceLockQueue queue = lockQueues.get(resourceName);
+            if (queue != null) {
+                return queue.getLocks(pruneReleasedLocks);
             }
+            return new ArrayList<ResourceLock>();
+        } finally {
+            queuesLock.readLock().unlock();
         }
-        return result;
     }
 
     /**
@@ -388,7 +572,7 @@ public class ResourceLockManager {
      * @param pruneReleased
      * @return the dependencies if this task was to add its lock requests.
      */
-    public synchronized Collection<ResourceLocker> getDependentTasks(
+    public Collection<ResourceLocker> getDependentTasks(
             DependentPrioritizedTask task, boolean pruneReleased) {
         Set<ResourceLocker> dependencies = new HashSet<ResourceLocker>();
         Collection<?> taskLocks = task.getResourceLocksNeeded();
@@ -421,9 +605,7 @@ public class ResourceLockManager {
                         if (!isLockBeingShared(lock, current)) {
                             dependencies.add(current.getTask());
                         }
-                    } else if (lock.isExclusiveLock()) {
-                        dependencies.add(current.getTask());
-                    } else if (current.isExclusiveLock()) {
+                    } else if (!lock.isCompatible(current)) {
                         dependencies.add(current.getTask());
                     }
                 }
@@ -470,101 +652,36 @@ public class ResourceLockManager {
      *
      * When scanning the list, the locks being examined may be released.
      *
-     * @return tasks available to run.
+     * @return tasks available to run, the tasks blocking the most exclusive locks first.
      */
-    public synchronized List getUnblockedTasks() {
-        List<ResourceLock> globalLocks = getResourceLockListCopy(GLOBALRESOURCE, true);
-        // has first unreleased lock been found?
-        boolean foundOne = false;
+    public List getUnblockedTasks() {
+        ResourceLockQueue globalQueue = lockQueues.get(GLOBALRESOURCE);
         List<Ordering> list = new ArrayList<Ordering>();
-        Set<ResourceLocker> emptyResourceLockers = Collections.emptySet();
-        ELIGIBLES:
-        for (ListIterator<ResourceLock> iter = globalLocks.listIterator(); iter.hasNext();) {
-            ResourceLock currentGlobalLock = iter.next();
-            ResourceLocker currentTask = currentGlobalLock.getTask();
-            if (currentGlobalLock.isExclusiveLock()) {
-                if (foundOne) {
-                    // after a bunch of nonexclusive global lock, lock is now at
-                    // a exclusive lock which will stop the process.
+        if (globalQueue != null) {
+            Set<ResourceLocker> emptyResourceLockers = Collections.emptySet();
+            for (ResourceLock currentGlobalLock : globalQueue.getGrantedLocks()) {
+                ResourceLocker currentTask = currentGlobalLock.getTask();
+                if (currentGlobalLock.isExclusiveLock()) {
+                    // a granted exclusive global lock is the only granted global lock
+                    list.add(new Ordering(currentTask, Integer.MAX_VALUE, emptyResourceLockers));
                     break;
-                } else {
-                    // first unreleased lock is an exclusive lock
-                    list.add(new Ordering(currentGlobalLock.getTask(), Integer.MAX_VALUE, emptyResourceLockers));
-                    break;
-                }
-            } else {
-                foundOne = true;
-                Set<ResourceLocker> blockedSet = new HashSet<ResourceLocker>();
-                int blockedExclusives = 0;
-                // look at current task's nonglobal locks and see if the locks
-                // are available
-                for (ResourceLock currentTaskLock : currentTask.getResourceLocksNeeded()) {
-                    if (GLOBALRESOURCE.equals(currentTaskLock.getResourceName())) {
-                        continue;
-                    } else if (currentTaskLock.isLockReleased()) {
-                        continue;
-                    } else {
-                        // determine if this particular lock that the task is
-                        // requesting causes
-                        // the task not to be eligible to run. Note that there
-                        // may be other locks or reasons
-                        // that the task is blocked by.
-                        List<ResourceLock> otherResources = getResourceLockListCopy(currentTaskLock.getResourceName(), true);
-                        if (currentTaskLock.isLockReleased()) {
-                            // Check for race condition: the lock was just
-                            // released.
-                            // The otherResources list probably doesn't have
-                            // currentTaskLock in it.
+                } else if (isTaskUnblocked(currentTask)) {
+                    Set<ResourceLocker> blockedSet = new HashSet<ResourceLocker>();
+                    int blockedExclusives = 0;
+                    for (ResourceLock currentTaskLock : currentTask.getResourceLocksNeeded()) {
+                        if (GLOBALRESOURCE.equals(currentTaskLock.getResourceName()) || currentTaskLock.isLockReleased()) {
                             continue;
                         }
-                        ResourceLock otherTaskResourcesLock = null;
-                        ListIterator<ResourceLock> iter1;
-                        for (iter1 = otherResources.listIterator(); iter1.hasNext();) {
-                            otherTaskResourcesLock = iter1.next();
-                            ResourceLocker otherTask = otherTaskResourcesLock.getTask();
-                            if (otherTaskResourcesLock == currentTaskLock) {
-                                // found the lock for the current task we are
-                                // currently checking
-                                // there are no locks on this resource blocking
-                                // this task from being run
-                                break;
-                            } else if (otherTaskResourcesLock.getTask() == currentTaskLock.getTask()) {
-                                // TODO should never happen. each task is only
-                                // allowed one lock.
-                                throw new RuntimeException(currentGlobalLock.getTask() + ":Task has multiple locks on resource "
-                                        + currentGlobalLock.getResourceName());
-                            } else if (otherTaskResourcesLock.isExclusiveLock()) {
-                                // found another task's exclusive lock on a
-                                // resources
-                                // needed by this task.
-                                if (otherTaskResourcesLock.isSharedLock()
-                                        && currentTaskLock.isSharedLock()
-                                        && (otherTask instanceof DependentPrioritizedTask)
-                                        && (currentTask instanceof DependentPrioritizedTask)
-                                        && ((DependentPrioritizedTask) otherTask).getParentTask() == ((DependentPrioritizedTask) currentTask)
-                                                .getParentTask()) {
-                                    // they are sharing access.
-                                    continue;
-                                } else {
-                                    // currentTask is blocked by otherTask
-                                    continue ELIGIBLES;
-                                }
-                            } else if (currentTaskLock.isExclusiveLock()) {
-                                // found another task's nonexclusive lock.
-                                // The lock
-                                // currently looking for is an exclusive lock.
-                                // This task is not eligible
-                                continue ELIGIBLES;
-                            }
-                        }
-                        // make sure lock was found on list.
-                        if (otherTaskResourcesLock != currentTaskLock) {
-                            throw new RuntimeException(currentTaskLock + ": lock not found on resource manager list - was it added correctly?");
+                        List<ResourceLock> otherResources = getResourceLockListCopy(currentTaskLock.getResourceName(), true);
+                        int index = otherResources.indexOf(currentTaskLock);
+                        if (index < 0) {
+                            // lock was just released.
+                            continue;
                         }
+                        ListIterator<ResourceLock> iter1 = otherResources.listIterator(index + 1);
                         if (!currentTaskLock.isExclusiveLock()) {
                             // non-exclusive locks block only starting at the
-                            // next
-                            // exclusive lock.
+                            // next exclusive lock.
                             for (; iter1.hasNext();) {
                                 ResourceLock l = iter1.next();
                                 if (l.isExclusiveLock()) {
@@ -582,9 +699,8 @@ public class ResourceLockManager {
                             blockedSet.add(l.getTask());
                         }
                     }
+                    list.add(new Ordering(currentTask, blockedExclusives, blockedSet));
                 }
-                // no blocking tasks
-                list.add(new Ordering(currentGlobalLock.getTask(), blockedExclusives, blockedSet));
             }
         }
         Collections.sort(list, new CompareOrdering());
@@ -595,17 +711,31 @@ public class ResourceLockManager {
         return returnList;
     }
 
+    /**
+     * @param task
+     * @param resourceName
+     * @param lockTypeLookingFor
+     * @return true if a lock of lockTypeLookingFor on resourceName, or a global exclusive lock of lockTypeLookingFor,
+     * is in front of task's lock.
+     */
     public boolean hasPreviousResourceLockOfType(PrioritizedTask task,
             String resourceName, int lockTypeLookingFor) {
         resourceName = resourceName.toUpperCase();
         List<ResourceLock> resourceList = getResourceLockListCopy(resourceName, false);
         for (ResourceLock lock : resourceList) {
             if (lock.getTask() == task) {
-                return false;
+                break;
             } else if (lock.isLock(lockTypeLookingFor)) {
                 return true;
             }
         }
+        for (ResourceLock lock : getResourceLockListCopy(GLOBALRESOURCE, false)) {
+            if (lock.getTask() == task) {
+                break;
+            } else if (lock.isExclusiveLock() && lock.isLock(lockTypeLookingFor)) {
+                return true;
+            }
+        }
         return false;
     }
 
@@ -618,17 +748,16 @@ public class ResourceLockManager {
         List<List<?>> lists = new ArrayList<List<?>>();
         List<String> locksLines = new ArrayList<String>();
         StringBuffer sb = new StringBuffer("Task Name,Global,");
-        for (Map.Entry<?, ?> entry: lockLists.entrySet()) {
-            if (!GLOBALRESOURCE.equalsIgnoreCase((String) entry.getKey())) {
-                sb.append(entry.getKey().toString()).append(',');
-                List<?> l = (List<?>) entry.getValue();
-                lists.add(l);
+        for (Map.Entry<String, ResourceLockQueue> entry: lockQueues.entrySet()) {
+            if (!GLOBALRESOURCE.equalsIgnoreCase(entry.getKey())) {
+                sb.append(entry.getKey()).append(',');
+                lists.add(entry.getValue().getLocks(false));
             }
         }
         int[] indexes = new int[lists.size()];
         locksLines.add(sb.toString());
-        List<?> globalList = lockLists.get(GLOBALRESOURCE);
-        if (globalList != null) {
+        List<?> globalList = getResourceLockListCopy(GLOBALRESOURCE, false);
+        if (!globalList.isEmpty()) {
             for (Object name : globalList) {
                 ResourceLock lock = (ResourceLock) name;
                 sb.setLength(0);
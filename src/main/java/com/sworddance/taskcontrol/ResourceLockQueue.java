@@ -0,0 +1,507 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The locks requested on a single resource in the order they must be acquired. Each ResourceLockQueue is its own
+ * monitor so that operations on different resources do not contend with each other.
+ *
+ * The locks in [head, grantedEnd) are granted or released. A lock is granted when it is compatible with all the
+ * granted, unreleased locks in front of it. The granted locks are summarized by counts so deciding if the next lock
+ * can be granted does not require looking at the locks in front of it. The first lock that can not be granted blocks
+ * all the locks that follow it.
+ *
+ * Released locks in front of head are moved to releasedLocks on a background thread so that the granting code never
+ * has to filter out released locks more than once.
+ *
+ * The queues of hierarchical resources form a trie: each queue links to the queue of its parent resource, see
+ * {@link ResourceLock#PATH_SEPARATOR}. A lock on a resource is accompanied by intention locks on the resource's
+ * ancestors. Intention locks only conflict with real locks on the ancestor, so locks on different descendants do not
+ * block each other while a lock on an ancestor blocks, and is blocked by, the locks on all of its descendants.
+ */
+class ResourceLockQueue {
+    /**
+     * compaction is requested once there are this many released locks in front of head.
+     */
+    static final int COMPACTION_THRESHOLD = 64;
+
+    private static final Executor COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactoryImpl());
+
+    /**
+     * modes locks are granted in, indexes into grantedModes.
+     */
+    private static final int SHARED = 0;
+
+    private static final int EXCLUSIVE = 1;
+
+    private static final int INTENTION_SHARED = 2;
+
+    private static final int INTENTION_EXCLUSIVE = 3;
+
+    private final String resourceName;
+
+    private final boolean global;
+
+    /**
+     * queue of the resource this resource is part of, null if this is a top level resource.
+     */
+    private final ResourceLockQueue parent;
+
+    /**
+     * compacted locks, kept so that the complete lock history is available for reporting.
+     */
+    private final List<ResourceLock> releasedLocks = new ArrayList<ResourceLock>();
+
+    private final List<ResourceLock> locks = new ArrayList<ResourceLock>();
+
+    /**
+     * index of the first lock that may not have been released.
+     */
+    private int head;
+
+    /**
+     * index of the first lock that has not been granted.
+     */
+    private int grantedEnd;
+
+    /**
+     * the granted, unreleased locks and the mode each was granted in (locks can be downgraded).
+     */
+    private final Map<ResourceLock, Integer> grantedLocks = new HashMap<ResourceLock, Integer>();
+
+    /**
+     * the number of granted, unreleased locks in each mode.
+     */
+    private final int[] grantedModes = new int[4];
+
+    /**
+     * true if all of the granted exclusive locks can be shared with subtasks of sharingParent.
+     */
+    private boolean sharing;
+
+    private DependentPrioritizedTask sharingParent;
+
+    private final AtomicBoolean compactionRequested = new AtomicBoolean(false);
+
+    ResourceLockQueue(String resourceName, ResourceLockQueue parent) {
+        this.resourceName = resourceName;
+        this.parent = parent;
+        this.global = ResourceLockManager.GLOBALRESOURCE.equals(resourceName);
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    ResourceLockQueue getParent() {
+        return parent;
+    }
+
+    /**
+     * Add lock to the end of the queue. If the last lock belongs to the same task then the locks are combined.
+     *
+     * @param lock
+     * @param newlyGranted the tasks with locks that were granted as a result are added.
+     */
+    synchronized void addLast(ResourceLock lock, Collection<ResourceLocker> newlyGranted) {
+        int last = locks.size() - 1;
+        if (last >= 0 && locks.get(last).getTask() == lock.getTask()) {
+            combineLocks(last, lock, locks.get(last));
+            regrant(newlyGranted);
+        } else {
+            locks.add(lock);
+            grant(newlyGranted);
+        }
+    }
+
+    /**
+     * Insert a lock for a subtask after the parent's lock. The insertionComparator determines where after the
+     * parent's lock.
+     *
+     * If the parent's lock is on an ancestor of this resource (or is a global exclusive lock) then the parent has no
+     * lock here. The lock is then inserted in front of the locks of the tasks that are not predecessors, that is the
+     * tasks whose locks on that ancestor are behind the parent's lock.
+     *
+     * @param lock
+     * @param insertionComparator
+     * @param predecessors the tasks in front of the parent's lock on the ancestor, null if the parent's lock must be
+     * on this resource.
+     * @param newlyGranted the tasks with locks that were granted as a result are added.
+     * @param newlyBlocked the tasks with locks that are no longer granted because lock is in front of them are added.
+     */
+    synchronized void addSubtaskLock(ResourceLock lock, Comparator<ResourceLock> insertionComparator,
+            Set<ResourceLocker> predecessors, Collection<ResourceLocker> newlyGranted,
+            Collection<ResourceLocker> newlyBlocked) {
+        PrioritizedTask task = (PrioritizedTask) lock.getTask();
+        // find insertion point of lock for subtasks
+        // first find parent.
+        int index = 0;
+        ResourceLock currentLock = null;
+        boolean foundInsertPoint = false;
+        for (; index < locks.size(); index++) {
+            currentLock = locks.get(index);
+            PrioritizedTask currentTask = (PrioritizedTask) currentLock.getTask();
+            if (currentTask == task) {
+                combineLocks(index, lock, currentLock);
+                regrant(newlyGranted, newlyBlocked);
+                return;
+            }
+            // thread safety note: task could change its parent task.
+            else if (predecessors == null && ((DependentPrioritizedTask) task).getParentTask() == currentTask) {
+                // found starting potential insertion point
+                foundInsertPoint = true;
+                index++;
+                break;
+            }
+        }
+        if (predecessors != null) {
+            // the caller checked the parent's lock on the ancestor.
+            index = head;
+            while (index < locks.size() && isPredecessor(locks.get(index).getTask(), predecessors)) {
+                index++;
+            }
+        } else if (!foundInsertPoint) {
+            // subtasks are not allowed to have any more locks or stronger locks
+            // than the parent. Nor are they allowed to have locks on any resource that a
+            // parent does not have a lock on.
+            throw new RuntimeException(lock + ":could not find a parent lock");
+        } else if (!lock.isSubset(currentLock)) {
+            throw new RuntimeException(lock + ": subtask not a subset of parent lock " + currentLock);
+        }
+        // there may be more locks after the parent. let the comparator search
+        // for the correct insertion point
+        for (; index < locks.size(); index++) {
+            currentLock = locks.get(index);
+            int compareValue = insertionComparator.compare(lock, currentLock);
+            if (compareValue == 0) {
+                combineLocks(index, lock, currentLock);
+                regrant(newlyGranted, newlyBlocked);
+                return;
+            } else if (compareValue < 0) {
+                break;
+            }
+        }
+        locks.add(index, lock);
+        if (index < grantedEnd) {
+            regrant(newlyGranted, newlyBlocked);
+        } else {
+            grant(newlyGranted);
+        }
+    }
+
+    /**
+     * @param task
+     * @param predecessors
+     * @return true if task, or the task it is a subtask of, is one of predecessors.
+     */
+    private static boolean isPredecessor(ResourceLocker task, Set<ResourceLocker> predecessors) {
+        for (ResourceLocker current = task; current != null;
+                current = current instanceof DependentPrioritizedTask ? ((DependentPrioritizedTask) current).getParentTask() : null) {
+            if (predecessors.contains(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param task
+     * @return task's lock on this resource, null if task has not added a lock on this resource.
+     */
+    synchronized ResourceLock getLock(ResourceLocker task) {
+        for (ResourceLock lock : locks) {
+            if (lock.getTask() == task) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param lock
+     * @return the tasks with locks, including released locks, in front of lock.
+     */
+    synchronized Set<ResourceLocker> getTasksBefore(ResourceLock lock) {
+        Set<ResourceLocker> tasks = new HashSet<ResourceLocker>();
+        for (ResourceLock current : releasedLocks) {
+            tasks.add(current.getTask());
+        }
+        for (ResourceLock current : locks) {
+            if (current == lock) {
+                break;
+            }
+            tasks.add(current.getTask());
+        }
+        return tasks;
+    }
+
+    /**
+     * Each task is allowed one and only one lock per resource. Two locks need
+     * to be combined. This method combines them. The surviving lock is placed
+     * at index.
+     *
+     * @param index position of currentLock
+     * @param lock lock that is attempting to be added.
+     * @param currentLock
+     */
+    private void combineLocks(int index, ResourceLock lock, ResourceLock currentLock) {
+        // all locks for same task get combined at the same point.
+        // locks may be created by task or added by ResourceLockManager in
+        // response to global locks
+        ResourceLock successorLock = currentLock.combine(lock);
+        ResourceLocker task = lock.getTask();
+        if (successorLock == lock) {
+            task.getResourceLocksNeeded().remove(currentLock);
+            locks.set(index, lock);
+        } else {
+            task.getResourceLocksNeeded().remove(lock);
+            if (task.getResourceLocksNeeded().contains(lock)) {
+                throw new RuntimeException("Tried to combine lock " + lock
+                        + "(id=" + System.identityHashCode(lock)
+                        + ") but actually removed something else");
+            }
+        }
+    }
+
+    /**
+     * Called after lock has been released.
+     *
+     * @param lock
+     * @param newlyGranted the tasks with locks that were granted as a result are added.
+     */
+    synchronized void release(ResourceLock lock, Collection<ResourceLocker> newlyGranted) {
+        Integer mode = grantedLocks.remove(lock);
+        if (mode != null) {
+            lock.setGranted(false);
+            grantedModes[mode]--;
+        }
+        grant(newlyGranted);
+    }
+
+    /**
+     * Called after lock's type has been reduced to lockTypeMask. A granted exclusive lock that is no longer exclusive
+     * stops blocking the nonexclusive locks behind it.
+     *
+     * @param lock
+     * @param lockTypeMask
+     * @param newlyGranted the tasks with locks that were granted as a result are added.
+     */
+    synchronized void downgrade(ResourceLock lock, int lockTypeMask, Collection<ResourceLocker> newlyGranted) {
+        lock.downGrade(lockTypeMask);
+        changeMode(lock, newlyGranted);
+    }
+
+    /**
+     * Called when a task releases its lock on this resource while it still holds locks on descendants of this
+     * resource. The lock becomes the intention lock that the locks on the descendants need.
+     *
+     * @param lock
+     * @param intentionLockType {@link ResourceLock#INTENTION_SHARED} or {@link ResourceLock#INTENTION_EXCLUSIVE}
+     * @param newlyGranted the tasks with locks that were granted as a result are added.
+     */
+    synchronized void weakenToIntention(ResourceLock lock, int intentionLockType,
+            Collection<ResourceLocker> newlyGranted) {
+        lock.setLockType(intentionLockType);
+        changeMode(lock, newlyGranted);
+    }
+
+    private void changeMode(ResourceLock lock, Collection<ResourceLocker> newlyGranted) {
+        Integer mode = grantedLocks.get(lock);
+        int newMode = getMode(lock);
+        if (mode != null && mode != newMode) {
+            grantedLocks.put(lock, newMode);
+            grantedModes[mode]--;
+            grantedModes[newMode]++;
+        }
+        grant(newlyGranted);
+    }
+
+    /**
+     * Grant locks starting at grantedEnd until a lock is found that is blocked.
+     */
+    private void grant(Collection<ResourceLocker> newlyGranted) {
+        for (; grantedEnd < locks.size(); grantedEnd++) {
+            ResourceLock lock = locks.get(grantedEnd);
+            if (lock.isLockReleased()) {
+                continue;
+            } else if (isBlocked(lock)) {
+                break;
+            }
+            int mode = getMode(lock);
+            if (mode == EXCLUSIVE && grantedModes[EXCLUSIVE] == 0) {
+                ResourceLocker task = lock.getTask();
+                sharing = lock.isSharedLock() && task instanceof DependentPrioritizedTask;
+                sharingParent = sharing ? ((DependentPrioritizedTask) task).getParentTask() : null;
+            }
+            grantedModes[mode]++;
+            grantedLocks.put(lock, mode);
+            lock.setGranted(true);
+            newlyGranted.add(lock.getTask());
+        }
+        while (head < grantedEnd && locks.get(head).isLockReleased()) {
+            head++;
+        }
+        if (head >= COMPACTION_THRESHOLD && head * 2 >= locks.size() && compactionRequested.compareAndSet(false, true)) {
+            COMPACTOR.execute(new Runnable() {
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Locks were inserted or changed in front of grantedEnd; recompute the granted locks from head.
+     */
+    private void regrant(Collection<ResourceLocker> newlyGranted) {
+        regrant(newlyGranted, null);
+    }
+
+    /**
+     * @param newlyGranted
+     * @param newlyBlocked if not null, the tasks whose locks were granted before but are not now are added.
+     */
+    private void regrant(Collection<ResourceLocker> newlyGranted, Collection<ResourceLocker> newlyBlocked) {
+        List<ResourceLock> previouslyGranted = newlyBlocked == null ? null
+            : new ArrayList<ResourceLock>(grantedLocks.keySet());
+        for (ResourceLock lock : grantedLocks.keySet()) {
+            lock.setGranted(false);
+        }
+        grantedLocks.clear();
+        Arrays.fill(grantedModes, 0);
+        grantedEnd = head;
+        grant(newlyGranted);
+        if (previouslyGranted != null) {
+            for (ResourceLock lock : previouslyGranted) {
+                if (!lock.isGranted() && !lock.isLockReleased()) {
+                    newlyBlocked.add(lock.getTask());
+                }
+            }
+        }
+    }
+
+    /**
+     * Same rules as {@link ResourceLockManager#getUnblockedTasks()} applied against the granted locks.
+     *
+     * @param lock unreleased lock at grantedEnd
+     * @return true if lock can not be granted.
+     */
+    private boolean isBlocked(ResourceLock lock) {
+        if (global) {
+            // global exclusive locks must be first, nonexclusive global locks can not follow an exclusive global lock.
+            return grantedModes[EXCLUSIVE] > 0 || (lock.isExclusiveLock() && grantedModes[SHARED] > 0);
+        } else if (grantedModes[EXCLUSIVE] > 0) {
+            // sharing access?
+            ResourceLocker task = lock.getTask();
+            if (!(sharing && lock.isSharedLock() && task instanceof DependentPrioritizedTask
+                    && ((DependentPrioritizedTask) task).getParentTask() == sharingParent)) {
+                return true;
+            }
+        }
+        switch (getMode(lock)) {
+        case EXCLUSIVE:
+            return grantedModes[SHARED] > 0 || grantedModes[INTENTION_SHARED] > 0
+                || grantedModes[INTENTION_EXCLUSIVE] > 0;
+        case SHARED:
+            return grantedModes[INTENTION_EXCLUSIVE] > 0;
+        case INTENTION_EXCLUSIVE:
+            return grantedModes[SHARED] > 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param lock
+     * @return the mode lock is granted in; the compatibility of the modes is given by
+     * {@link ResourceLock#isCompatible(ResourceLock)}.
+     */
+    private static int getMode(ResourceLock lock) {
+        if (lock.isExclusiveLock()) {
+            return EXCLUSIVE;
+        } else if (lock.isIntentionExclusiveLock()) {
+            return INTENTION_EXCLUSIVE;
+        } else if (lock.isIntentionLock()) {
+            return INTENTION_SHARED;
+        } else {
+            return SHARED;
+        }
+    }
+
+    /**
+     * move the released locks in front of head out of the active list.
+     */
+    synchronized void compact() {
+        compactionRequested.set(false);
+        if (head > 0) {
+            List<ResourceLock> released = locks.subList(0, head);
+            releasedLocks.addAll(released);
+            released.clear();
+            grantedEnd -= head;
+            head = 0;
+        }
+    }
+
+    /**
+     * @param pruneReleasedLocks
+     * @return a copy of the locks in order. If pruneReleasedLocks is false, the released locks are included.
+     */
+    synchronized List<ResourceLock> getLocks(boolean pruneReleasedLocks) {
+        List<ResourceLock> result;
+        if (pruneReleasedLocks) {
+            result = new ArrayList<ResourceLock>(locks.size() - head);
+            for (ResourceLock lock : locks.subList(head, locks.size())) {
+                if (!lock.isLockReleased()) {
+                    result.add(lock);
+                }
+            }
+        } else {
+            result = new ArrayList<ResourceLock>(releasedLocks.size() + locks.size());
+            result.addAll(releasedLocks);
+            result.addAll(locks);
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the granted, unreleased locks in order.
+     */
+    synchronized List<ResourceLock> getGrantedLocks() {
+        List<ResourceLock> result = new ArrayList<ResourceLock>(grantedLocks.size());
+        for (ResourceLock lock : locks.subList(head, grantedEnd)) {
+            if (!lock.isLockReleased()) {
+                result.add(lock);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return resourceName;
+    }
+}
@@ -27,6 +27,9 @@ public class SingletonTaskControlFactory implements TaskControlFactory {
 
     private String threadName;
     private Log log;
+    private TaskExecutorType executorType = TaskExecutorType.threadPool;
+    private TaskControlThreadBudget threadBudget;
+    private int minimumThreads;
     private AtomicReference<TaskControl> taskControlRef = new AtomicReference<TaskControl>();
     private WeakReference<Thread> taskControlThreadRef;
     public SingletonTaskControlFactory() {
@@ -42,8 +45,11 @@ public class SingletonTaskControlFactory implements TaskControlFactory {
     public TaskControl newTaskControl() {
         TaskControl taskControl = getTaskControl();
         if ( taskControl == null ) {
-            taskControl = new TaskControl(getLog());
+            taskControl = new TaskControl(getExecutorType(), getLog());
             if ( taskControlRef.compareAndSet(null, taskControl)) {
+                if ( getThreadBudget() != null ) {
+                    taskControl.setThreadBudget(getThreadBudget(), getMinimumThreads());
+                }
                 Thread taskControlThread = new Thread(taskControl, getThreadName());
                 taskControlThread.start();
                 taskControlThreadRef = new WeakReference<Thread>(taskControlThread);
@@ -87,6 +93,49 @@ public class SingletonTaskControlFactory implements TaskControlFactory {
         return log;
     }
 
+    /**
+     * @param executorType the executor used by the {@link TaskControl} created by this factory.
+     */
+    public void setExecutorType(TaskExecutorType executorType) {
+        this.executorType = executorType;
+    }
+
+    /**
+     * @return the executorType
+     */
+    public TaskExecutorType getExecutorType() {
+        return executorType;
+    }
+
+    /**
+     * @param threadBudget shared with the other {@link TaskControl}s in the process, for example
+     * {@link TaskControlThreadBudget#getSharedInstance()}.
+     */
+    public void setThreadBudget(TaskControlThreadBudget threadBudget) {
+        this.threadBudget = threadBudget;
+    }
+
+    /**
+     * @return the threadBudget
+     */
+    public TaskControlThreadBudget getThreadBudget() {
+        return threadBudget;
+    }
+
+    /**
+     * @param minimumThreads the number of running tasks reserved in the threadBudget.
+     */
+    public void setMinimumThreads(int minimumThreads) {
+        this.minimumThreads = minimumThreads;
+    }
+
+    /**
+     * @return the minimumThreads
+     */
+    public int getMinimumThreads() {
+        return minimumThreads;
+    }
+
     /**
      * @param threadName the threadName to set
      */
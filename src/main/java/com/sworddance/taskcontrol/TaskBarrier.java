@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A join node that completes when all of its members have completed. A task that must run after a set of tasks
+ * depends on the barrier instead of on each of the tasks, so "run after everything added so far" is one dependency
+ * no matter how many tasks were added.
+ *
+ * Depend on {@link #getSuccess()} to require that all the members succeed (it fails as soon as one member fails) or
+ * on {@link #getCompletion()} to only wait for the members to finish.
+ *
+ * @see TaskGroup#newBarrier()
+ */
+public class TaskBarrier {
+    private final String name;
+
+    private final BarrierResult success;
+
+    private final BarrierResult completion;
+
+    /**
+     * members not yet done, plus one until the barrier is sealed.
+     */
+    private final AtomicInteger remaining = new AtomicInteger(1);
+
+    private volatile FutureResult<?> failedMember;
+
+    private FutureListener<Object> previousListener;
+
+    private final AtomicBoolean previousCounted = new AtomicBoolean(false);
+
+    TaskBarrier(String name) {
+        this.name = name;
+        this.success = new BarrierResult(name);
+        this.completion = new BarrierResult(name + "(completion)");
+    }
+
+    /**
+     * @param member must later be reported to {@link #memberDone(FutureResult)}.
+     * @return false if the barrier has already completed.
+     */
+    boolean addMember(FutureResult<?> member) {
+        for (int current = remaining.get(); current > 0; current = remaining.get()) {
+            if (remaining.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * No members are added after the barrier is sealed except subtasks of members.
+     */
+    void seal() {
+        countDown();
+    }
+
+    /**
+     * Make the previous barrier a member so that this barrier also waits for everything before it.
+     * @param previous
+     */
+    void follow(final TaskBarrier previous) {
+        addMember(previous.success);
+        // FutureListenerProcessor only holds weak references to the listeners.
+        this.previousListener = new FutureListener<Object>() {
+            public <P extends Future<Object>> void futureSet(P future, Object value) {
+                if (future == previous.completion) {
+                    previousDone(previous);
+                }
+            }
+
+            public <P extends Future<Object>> void futureSetException(P future, Throwable throwable) {
+                // fail as soon as previous does, but wait for previous's members to finish.
+                memberFailed(previous.success);
+            }
+        };
+        previous.success.addFutureListenerCreatingProcessor(this.previousListener);
+        previous.completion.addFutureListenerCreatingProcessor(this.previousListener);
+        // previous may have completed while the listener was being added.
+        if (previous.success.isFailed()) {
+            memberFailed(previous.success);
+        }
+        if (previous.completion.isDone()) {
+            previousDone(previous);
+        }
+    }
+
+    private void previousDone(TaskBarrier previous) {
+        if (previousCounted.compareAndSet(false, true)) {
+            memberDone(previous.success);
+        }
+    }
+
+    /**
+     * Called once for each member when it completes or will never run.
+     * @param member
+     */
+    void memberDone(FutureResult<?> member) {
+        if (!member.isSuccessful()) {
+            memberFailed(member);
+        }
+        countDown();
+    }
+
+    private void memberFailed(FutureResult<?> member) {
+        if (failedMember == null) {
+            failedMember = member;
+            success.setException(new RuntimeException(name + ": " + member + " failed.", member.getException()));
+        }
+    }
+
+    private void countDown() {
+        if (remaining.decrementAndGet() == 0) {
+            if (failedMember == null) {
+                success.set(null);
+            }
+            completion.set(null);
+        }
+    }
+
+    /**
+     * @return succeeds when all the members have succeeded, fails as soon as one fails.
+     */
+    public FutureResult<Object> getSuccess() {
+        return success;
+    }
+
+    /**
+     * @return succeeds when all the members are done, whether or not they succeeded.
+     */
+    public FutureResult<Object> getCompletion() {
+        return completion;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * named so that dependency reports show the barrier.
+     */
+    private static class BarrierResult extends FutureResultImpl<Object> {
+        private final String name;
+
+        BarrierResult(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
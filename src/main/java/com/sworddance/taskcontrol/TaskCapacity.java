@@ -0,0 +1,277 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * Counts the tasks that have been added but have not finished and makes producers wait (or not, see
+ * {@link TaskCapacityPolicy}) when there are already capacity tasks. Producers are woken when tasks finish, never by
+ * polling.
+ *
+ * A TaskGroup's capacity has the TaskControl's capacity as its parent so tasks count against both.
+ */
+class TaskCapacity {
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * 0 means unbounded.
+     */
+    private int capacity;
+
+    private TaskCapacityPolicy policy = TaskCapacityPolicy.block;
+
+    private long timeoutNanos;
+
+    private int used;
+
+    private TaskCapacity parent;
+
+    /**
+     * Used with {@link TaskCapacityPolicy#callerRuns}.
+     */
+    interface CallerRunner {
+        /**
+         * @return true if a task was run, false if there was no task ready to run.
+         */
+        boolean runReadyTask();
+    }
+
+    /**
+     * @param permits the number of tasks being added.
+     * @param callerRunner if not null, how the producer's thread can run a task.
+     * @throws RejectedExecutionException if the tasks can not be added.
+     */
+    void acquire(int permits, CallerRunner callerRunner) {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (!fits(permits)) {
+                switch (policy) {
+                case reject:
+                    throw new RejectedExecutionException("at capacity: " + capacity);
+                case blockWithTimeout:
+                    if (nanos <= 0) {
+                        throw new RejectedExecutionException("still at capacity " + capacity + " after waiting");
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                    break;
+                case callerRuns:
+                    if (callerRunner != null) {
+                        boolean ran;
+                        lock.unlock();
+                        try {
+                            ran = callerRunner.runReadyTask();
+                        } finally {
+                            lock.lock();
+                        }
+                        if (ran) {
+                            continue;
+                        }
+                    }
+                    notFull.await();
+                    break;
+                default:
+                    notFull.await();
+                    break;
+                }
+            }
+            used += permits;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for capacity");
+        } finally {
+            lock.unlock();
+        }
+        TaskCapacity parentCapacity = getParent();
+        if (parentCapacity != null) {
+            try {
+                parentCapacity.acquire(permits, callerRunner);
+            } catch (RuntimeException e) {
+                release(permits, false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * a batch larger than the capacity is let in when nothing else is outstanding.
+     */
+    private boolean fits(int permits) {
+        return capacity <= 0 || used == 0 || used + permits <= capacity;
+    }
+
+    /**
+     * @param permits the number of tasks that have finished or will never run.
+     */
+    void release(int permits) {
+        release(permits, true);
+    }
+
+    private void release(int permits, boolean releaseParent) {
+        if (permits <= 0) {
+            return;
+        }
+        TaskCapacity parentCapacity;
+        lock.lock();
+        try {
+            used -= permits;
+            parentCapacity = parent;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (releaseParent && parentCapacity != null) {
+            parentCapacity.release(permits);
+        }
+    }
+
+    /**
+     * From now on, the outstanding and future tasks also count against parent. The outstanding tasks are added to
+     * parent even if that puts parent over capacity.
+     * @param parent
+     */
+    void setParent(TaskCapacity parent) {
+        lock.lock();
+        try {
+            if (this.parent != parent) {
+                this.parent = parent;
+                parent.forceAcquire(used);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TaskCapacity getParent() {
+        lock.lock();
+        try {
+            return parent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many more tasks fit in this capacity and its parents, {@link Integer#MAX_VALUE} if unbounded.
+     */
+    int getAvailable() {
+        int available;
+        TaskCapacity parentCapacity;
+        lock.lock();
+        try {
+            available = capacity <= 0 ? Integer.MAX_VALUE : Math.max(0, capacity - used);
+            parentCapacity = parent;
+        } finally {
+            lock.unlock();
+        }
+        if (parentCapacity != null) {
+            available = Math.min(available, parentCapacity.getAvailable());
+        }
+        return available;
+    }
+
+    /**
+     * Count permits against this capacity and its parents without waiting, even if that is over capacity. For
+     * tasks that must not wait or be rejected: generated tasks, subtasks and the copies made by {@link TaskHedge}.
+     * @param permits
+     */
+    void acquireOverCapacity(int permits) {
+        forceAcquire(permits);
+        TaskCapacity parentCapacity = getParent();
+        if (parentCapacity != null) {
+            parentCapacity.acquireOverCapacity(permits);
+        }
+    }
+
+    private void forceAcquire(int permits) {
+        lock.lock();
+        try {
+            used += permits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param capacity maximum number of unfinished tasks, 0 for unbounded.
+     */
+    void setCapacity(int capacity) {
+        ApplicationIllegalArgumentException.valid(capacity >= 0, "capacity cannot be negative: ", capacity);
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setPolicy(TaskCapacityPolicy policy) {
+        ApplicationIllegalArgumentException.notNull(policy, "policy");
+        lock.lock();
+        try {
+            this.policy = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    TaskCapacityPolicy getPolicy() {
+        lock.lock();
+        try {
+            return policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setTimeout(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            this.timeoutNanos = unit.toNanos(timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of unfinished tasks.
+     */
+    int getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
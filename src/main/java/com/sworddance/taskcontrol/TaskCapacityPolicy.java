@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+/**
+ * What happens to a producer adding tasks to a {@link TaskGroup} or {@link TaskControl} that is at capacity.
+ */
+public enum TaskCapacityPolicy {
+    /**
+     * wait until tasks complete and there is room.
+     */
+    block,
+    /**
+     * wait until there is room, but only for the capacity timeout. Then the tasks are rejected.
+     */
+    blockWithTimeout,
+    /**
+     * throw {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    reject,
+    /**
+     * the producer's thread runs tasks from the TaskGroup that are ready to run until there is room. The tasks still
+     * wait for their resource locks and dependencies, so if none are ready the producer waits as with {@link #block}.
+     */
+    callerRuns;
+}
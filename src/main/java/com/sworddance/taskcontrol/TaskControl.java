@@ -14,15 +14,27 @@
 package com.sworddance.taskcontrol;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,9 +55,16 @@ import com.sworddance.util.ApplicationIllegalArgumentException;
 public class TaskControl implements Runnable {
     private final ThreadFactory threadFactory;
 
+    /**
+     * {@link TaskExecutorType#threadPool} only: the queue shared by the executor's worker threads.
+     */
     private final BlockingQueue<PrioritizedTask> eligibleTasks;
 
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
+
+    private final TaskExecutorType executorType;
+
+    private final int maxThreads;
 
     /**
      * Lock used to signal when new jobs are ready
@@ -67,7 +86,67 @@ public class TaskControl implements Runnable {
      */
     private List<TaskGroup<?>> taskGroups = new CopyOnWriteArrayList<TaskGroup<?>>();
 
-    private List<PrioritizedTask> runningTaskList = new CopyOnWriteArrayList<PrioritizedTask>();
+    private final Set<PrioritizedTask> runningTaskSet = Collections.newSetFromMap(new ConcurrentHashMap<PrioritizedTask, Boolean>());
+
+    /**
+     * Map&lt;task taken from a TaskGroup, what was handed to the executor to run it&gt; for the tasks that have not
+     * completed, see {@link #setInheritedPriority(DefaultPrioritizedTask, int)}.
+     */
+    private final ConcurrentMap<PrioritizedTask, PrioritizedTask> taskRunners =
+        new ConcurrentHashMap<PrioritizedTask, PrioritizedTask>();
+
+    private volatile TaskDispatchMode dispatchMode = TaskDispatchMode.polling;
+
+    /**
+     * {@link TaskDispatchMode#eventDriven} only: the TaskGroups that have reported a state change since the dispatcher
+     * last drained them. A TaskGroup is on this queue at most once.
+     */
+    private final Queue<TaskGroup<?>> readyTaskGroups = new ConcurrentLinkedQueue<TaskGroup<?>>();
+
+    private volatile TaskGroupScheduler taskGroupScheduler;
+
+    /**
+     * with a {@link TaskGroupScheduler}: the TaskGroups that had a task ready to run the last time they were checked.
+     * Only used by the dispatcher thread.
+     */
+    private final Set<TaskGroup<?>> schedulableTaskGroups = new LinkedHashSet<TaskGroup<?>>();
+
+    /**
+     * the unfinished tasks of all the TaskGroups, optionally bounded.
+     */
+    private final TaskCapacity taskCapacity = new TaskCapacity();
+
+    /**
+     * longest the dispatcher waits without checking for tasks that became ready without notifying it.
+     */
+    private static final long IDLE_WAIT = SECONDS.toNanos(60);
+
+    private volatile ConcurrencyController concurrencyController;
+
+    /**
+     * the number of tasks run at once, maxThreads unless there is a {@link ConcurrencyController}.
+     */
+    private volatile int concurrency;
+
+    /**
+     * measurements for the {@link ConcurrencyController} since the last sample.
+     */
+    private final AtomicInteger sampleCompletedTasks = new AtomicInteger();
+
+    private final AtomicLong sampleQueueWait = new AtomicLong();
+
+    private final AtomicLong sampleRunTime = new AtomicLong();
+
+    private volatile long sampleStart;
+
+    private final AtomicBoolean sampling = new AtomicBoolean(false);
+
+    private volatile TaskControlThreadBudget threadBudget;
+
+    /**
+     * this TaskControl's share of the threadBudget.
+     */
+    private volatile TaskControlThreadBudget.Allotment threadBudgetAllotment;
 
     // only needed because no way of finding out from PooledExecutor if there
     // are jobs still running
@@ -77,33 +156,72 @@ public class TaskControl implements Runnable {
 
     private boolean privateThreadFactory;
 
+    /**
+     * @param activeComparator
+     * @param maxThreads for {@link TaskExecutorType#virtualThread}, the number of tasks allowed to run at once.
+     * @param threadFactory
+     * @param executorType
+     * @param log
+     */
     @SuppressWarnings("unchecked")
-    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, ThreadFactory threadFactory, Log log) {
+    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, ThreadFactory threadFactory,
+        TaskExecutorType executorType, Log log) {
         this.log = log;
         ApplicationIllegalArgumentException.notNull(activeComparator, "activeComparator");
+        ApplicationIllegalArgumentException.notNull(executorType, "executorType");
         this.eligibleTasks = new PriorityBlockingQueue<PrioritizedTask>(20, activeComparator);
         this.stateChangeNotificator = new ReentrantLock();
         this.newTasks = this.stateChangeNotificator.newCondition();
         this.runningTasks = new AtomicInteger(0);
         this.threadFactory = threadFactory;
-        int keepAliveTime = 10;
-
-        int corePoolSize = 1;
-        this.executor = new ThreadPoolExecutor(corePoolSize, Math.max(corePoolSize, maxThreads), keepAliveTime,
-            MICROSECONDS, (BlockingQueue) this.eligibleTasks, threadFactory);
+        this.executorType = executorType;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.concurrency = this.maxThreads;
+        switch (executorType) {
+        case workStealing:
+            this.executor = new WorkStealingExecutor(activeComparator, maxThreads, threadFactory);
+            break;
+        case virtualThread:
+            this.executor = new ThreadPerTaskExecutor(activeComparator, maxThreads, threadFactory);
+            break;
+        default:
+            int keepAliveTime = 10;
+
+            int corePoolSize = 1;
+            this.executor = new ThreadPoolExecutor(corePoolSize, Math.max(corePoolSize, maxThreads), keepAliveTime,
+                MICROSECONDS, (BlockingQueue) this.eligibleTasks, threadFactory);
+            break;
+        }
         this.stayActive = true;
     }
 
-    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, Log log) {
-        this(activeComparator, maxThreads, new ThreadFactoryImpl(), log);
+    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, ThreadFactory threadFactory, Log log) {
+        this(activeComparator, maxThreads, threadFactory, TaskExecutorType.threadPool, log);
+    }
+
+    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, TaskExecutorType executorType, Log log) {
+        this(activeComparator, maxThreads, executorType == TaskExecutorType.virtualThread ? new VirtualThreadFactoryImpl()
+            : new ThreadFactoryImpl(), executorType, log);
         this.privateThreadFactory = true;
     }
 
+    public TaskControl(Comparator<PrioritizedTask> activeComparator, int maxThreads, Log log) {
+        this(activeComparator, maxThreads, TaskExecutorType.threadPool, log);
+    }
+
+    public TaskControl(int maxThreads, TaskExecutorType executorType, Log log) {
+        this(new PriorityEligibleWorkItemComparator(), maxThreads, executorType, log);
+    }
+
     public TaskControl(int maxThreads, Log log) {
-        this(new PriorityEligibleWorkItemComparator(), maxThreads, log);
+        this(maxThreads, TaskExecutorType.threadPool, log);
+    }
+    public TaskControl(TaskExecutorType executorType, Log log) {
+        this(5, executorType, log);
     }
+
     public TaskControl(Log log) {
-        this(5, log);
+        this(TaskExecutorType.threadPool, log);
     }
 
 
@@ -126,7 +244,7 @@ public class TaskControl implements Runnable {
         }
         taskGroup.setTaskControl(this);
         this.taskGroups.add(taskGroup);
-        this.stateChanged();
+        this.taskGroupStateChanged(taskGroup);
     }
 
     /**
@@ -135,11 +253,249 @@ public class TaskControl implements Runnable {
      *
      */
     private void taskComplete(PrioritizedTask task) {
-        if (!this.runningTaskList.remove(task)) {
+        if (!this.runningTaskSet.remove(task)) {
             this.getLog().debug("removing task that was not on running list");
         }
-        this.runningTasks.decrementAndGet();
-        this.stateChanged();
+        this.taskRunners.remove(unwrap(task));
+        this.releaseWorker();
+        int stillRunning = this.runningTasks.decrementAndGet();
+        if (this.dispatchMode == TaskDispatchMode.polling || stillRunning == 0 || this.taskGroupScheduler != null
+            || this.isConcurrencyLimited()) {
+            // in eventDriven mode the TaskGroup has already queued itself if the completion made
+            // other tasks ready. Only need to wake the dispatcher so it can check if it should exit
+            // or, with a TaskGroupScheduler or a limited concurrency, dispatch a waiting task to the freed worker.
+            this.stateChanged();
+        }
+    }
+
+    /**
+     * called when a task run by {@link #newTaskRunner(PrioritizedTask)} completes.
+     * @param task
+     * @param scheduler the {@link TaskGroupScheduler} when the task was dispatched.
+     * @param queueWaitNanos how long the task waited in the executor, 0 if not timed.
+     * @param runTimeNanos how long the task ran, 0 if not timed.
+     */
+    void taskComplete(PrioritizedTask task, TaskGroupScheduler scheduler, long queueWaitNanos, long runTimeNanos) {
+        if (scheduler != null) {
+            scheduler.taskComplete(task.getTaskGroup(), runTimeNanos);
+        }
+        ConcurrencyController controller = this.concurrencyController;
+        if (controller != null) {
+            this.sampleCompletedTasks.incrementAndGet();
+            this.sampleQueueWait.addAndGet(queueWaitNanos);
+            this.sampleRunTime.addAndGet(runTimeNanos);
+            this.adjustConcurrency(controller);
+        }
+        this.taskComplete(task);
+    }
+
+    /**
+     * At the end of each sample interval, ask the controller for the next concurrency and record its decision in the
+     * stats of each TaskGroup.
+     * @param controller
+     */
+    private void adjustConcurrency(ConcurrencyController controller) {
+        long now = System.nanoTime();
+        long interval = now - this.sampleStart;
+        if (interval < controller.getSampleIntervalNanos() || !this.sampling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.sampleStart = now;
+            int completed = this.sampleCompletedTasks.getAndSet(0);
+            long queueWait = this.sampleQueueWait.getAndSet(0);
+            long runTime = this.sampleRunTime.getAndSet(0);
+            int previous = this.concurrency;
+            int next = this.setConcurrency(controller.adjustConcurrency(previous, completed, interval, queueWait, runTime));
+            String status = "concurrency " + previous + "->" + next;
+            StringBuilder note = new StringBuilder();
+            note.append(completed * SECONDS.toNanos(1) / interval).append(" tasks/s");
+            if (completed > 0) {
+                note.append(" wait=").append(NANOSECONDS.toMicros(queueWait / completed)).append("us");
+                note.append(" run=").append(NANOSECONDS.toMicros(runTime / completed)).append("us");
+            }
+            this.getLog().debug(status + " " + note);
+            for (TaskGroup<?> taskGroup : this.taskGroups) {
+                taskGroup.addTaskControlStatus(status, note.toString());
+            }
+        } finally {
+            this.sampling.set(false);
+        }
+    }
+
+    /**
+     * @param requested
+     * @return the concurrency, requested kept between 1 and maxThreads.
+     */
+    private int setConcurrency(int requested) {
+        int next = Math.max(1, Math.min(this.maxThreads, requested));
+        this.concurrency = next;
+        if (this.executorType == TaskExecutorType.threadPool) {
+            ((ThreadPoolExecutor) this.executor).setCorePoolSize(next);
+        } else {
+            // more tasks may be dispatched.
+            this.stateChanged();
+        }
+        return next;
+    }
+
+    /**
+     * @return true if the dispatcher must hold tasks back to keep to the concurrency. For
+     * {@link TaskExecutorType#threadPool} the number of threads limits the concurrency instead.
+     */
+    private boolean isConcurrencyLimited() {
+        return this.concurrencyController != null && this.executorType != TaskExecutorType.threadPool;
+    }
+
+    /**
+     * Add the tasks of the {@link TaskTimer}s that are due.
+     * @return nanoseconds until the timers should be checked again.
+     */
+    private long advanceTimers() {
+        long wait = Long.MAX_VALUE;
+        for (TaskGroup<?> taskGroup : this.taskGroups) {
+            wait = Math.min(wait, taskGroup.advanceTimers());
+        }
+        return wait;
+    }
+
+    private boolean hasPendingTimers() {
+        for (TaskGroup<?> taskGroup : this.taskGroups) {
+            if (taskGroup.hasPendingTimers()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if running another task would exceed the concurrency or the {@link TaskControlThreadBudget}.
+     */
+    private boolean isDispatchAllowed() {
+        if (this.isConcurrencyLimited() && this.runningTasks.get() >= this.concurrency) {
+            return false;
+        }
+        TaskControlThreadBudget.Allotment allotment = this.threadBudgetAllotment;
+        return allotment == null || this.threadBudget.isAvailable(allotment);
+    }
+
+    /**
+     * Called by the dispatcher before taking a task to run. If true and no task is run,
+     * {@link #releaseWorker()} must be called.
+     * @return false if another task can not be run now.
+     */
+    private boolean acquireWorker() {
+        if (this.isConcurrencyLimited() && this.runningTasks.get() >= this.concurrency) {
+            return false;
+        }
+        TaskControlThreadBudget.Allotment allotment = this.threadBudgetAllotment;
+        return allotment == null || this.threadBudget.tryAcquire(allotment);
+    }
+
+    private void releaseWorker() {
+        TaskControlThreadBudget.Allotment allotment = this.threadBudgetAllotment;
+        if (allotment != null) {
+            this.threadBudget.release(allotment);
+        }
+    }
+
+    /**
+     * Counts nextTask as running.
+     * @param nextTask
+     * @return nextTask, set up to notify this TaskControl when done so that there is no reliance on the task doing the
+     * correct notification. Only tasks that were not taken from {@link TaskGroup#nextTask()} are wrapped.
+     */
+    private PrioritizedTask newTaskRunner(PrioritizedTask nextTask) {
+        this.runningTasks.incrementAndGet();
+        this.runningTaskSet.add(nextTask);
+        final TaskGroupScheduler scheduler = this.taskGroupScheduler;
+        final boolean timed = scheduler != null || this.concurrencyController != null;
+        if (nextTask instanceof TaskGroup.DispatchedTask
+            && ((TaskGroup.DispatchedTask) nextTask).setTaskControl(this, scheduler, timed)) {
+            this.taskRunners.put(unwrap(nextTask), nextTask);
+            return nextTask;
+        }
+        final long dispatched = timed ? System.nanoTime() : 0;
+        PrioritizedTask runner = new TaskWrapper(nextTask) {
+            @Override
+            public void run() {
+                long start = timed ? System.nanoTime() : 0;
+                try {
+                    this.getWrappedTask().run();
+                } finally {
+                    if (timed) {
+                        TaskControl.this.taskComplete(this.getWrappedTask(), scheduler, start - dispatched,
+                            System.nanoTime() - start);
+                    } else {
+                        TaskControl.this.taskComplete(this.getWrappedTask(), scheduler, 0, 0);
+                    }
+                }
+            }
+        };
+        this.taskRunners.put(unwrap(nextTask), runner);
+        return runner;
+    }
+
+    /**
+     * @param task
+     * @return the task the TaskGroup gave out, without the {@link TaskGroup.DispatchedTask} around it.
+     */
+    private static PrioritizedTask unwrap(PrioritizedTask task) {
+        return task instanceof TaskGroup.DispatchedTask ? ((TaskGroup.DispatchedTask) task).getWrappedTask() : task;
+    }
+
+    /**
+     * Raise the priority of a task that may already be waiting in the executor's queue. The queue is ordered by
+     * priority, so a waiting task is taken out while its priority changes and then put back.
+     * @param task
+     * @param priority
+     */
+    void setInheritedPriority(DefaultPrioritizedTask<?> task, int priority) {
+        PrioritizedTask runner = this.taskRunners.get(task);
+        boolean removed = runner != null && this.removeQueuedRunner(runner);
+        task.setInheritedPriority(priority);
+        if (removed) {
+            this.executor.execute(runner);
+        }
+    }
+
+    /**
+     * @param runner
+     * @return true if runner had not been started by the executor and has been taken out of its queue.
+     */
+    private boolean removeQueuedRunner(PrioritizedTask runner) {
+        switch (this.executorType) {
+        case workStealing:
+            return ((WorkStealingExecutor) this.executor).remove(runner);
+        case virtualThread:
+            return ((ThreadPerTaskExecutor) this.executor).remove(runner);
+        default:
+            return ((ThreadPoolExecutor) this.executor).remove(runner);
+        }
+    }
+
+    /**
+     * {@link TaskCapacityPolicy#callerRuns}: run a task taken from a TaskGroup on the producer's thread instead of a
+     * worker thread.
+     * @param task
+     */
+    void runInCallerThread(PrioritizedTask task) {
+        this.newTaskRunner(task).run();
+    }
+
+    /**
+     * Called by a {@link TaskGroup} when it may have new tasks ready to run.
+     * @param taskGroup
+     */
+    void taskGroupStateChanged(TaskGroup<?> taskGroup) {
+        if (this.dispatchMode == TaskDispatchMode.eventDriven) {
+            if (taskGroup.markQueuedForDispatch()) {
+                this.readyTaskGroups.add(taskGroup);
+                this.stateChanged();
+            }
+        } else {
+            this.stateChanged();
+        }
     }
 
     /**
@@ -161,10 +517,18 @@ public class TaskControl implements Runnable {
         try {
             this.prepareToRun();
             while (this.stillRunning()) {
+                // wake up in time for the next TaskTimer.
+                long wait = Math.min(IDLE_WAIT, this.advanceTimers());
                 this.stateChangeNotificator.lock();
                 try {
                     if ( !this.isTaskReady() ) {
-                        if ( !this.newTasks.await(60, SECONDS)) {
+                        if ( this.newTasks.awaitNanos(wait) <= 0) {
+                            if (wait == IDLE_WAIT && this.dispatchMode == TaskDispatchMode.eventDriven) {
+                                // pick up any dependencies on futures outside this TaskControl
+                                for (TaskGroup<?> taskGroup: this.taskGroups) {
+                                    this.taskGroupStateChanged(taskGroup);
+                                }
+                            }
                             continue;
                         }
                     }
@@ -203,6 +567,11 @@ public class TaskControl implements Runnable {
         if ( this.privateThreadFactory ) {
             ((ThreadFactoryImpl) this.threadFactory).shutDownNow();
         }
+        TaskControlThreadBudget.Allotment allotment = this.threadBudgetAllotment;
+        if (allotment != null) {
+            // give the reserved minimum back to the other TaskControls.
+            this.threadBudget.unregister(allotment);
+        }
         for (TaskGroup<?> taskGroup: this.taskGroups) {
             taskGroup.shutdownNow(this.dumpTaskGroupStats);
         }
@@ -221,9 +590,20 @@ public class TaskControl implements Runnable {
      * Note the deadlock potential here as this method is called from within 2
      * other sync blocks Don't make public and monitor usage.
      * TODO race conditions if adding taskGroups
+     *
+     * In {@link TaskDispatchMode#eventDriven} mode, only checks to see if any TaskGroup has queued itself.
      * @return true if any possible task can be run.
      */
     private boolean isTaskReady() {
+        if (!this.isDispatchAllowed()) {
+            return false;
+        }
+        if (this.taskGroupScheduler != null) {
+            return this.runningTasks.get() < this.concurrency && this.collectSchedulableTaskGroups();
+        }
+        if (this.dispatchMode == TaskDispatchMode.eventDriven) {
+            return !this.readyTaskGroups.isEmpty();
+        }
         TaskGroup<?> group = this.getCurrentTaskGroup();
         if ( group != null && group.isTaskReady() ) {
             return true;
@@ -248,6 +628,30 @@ public class TaskControl implements Runnable {
         return false;
     }
 
+    /**
+     * Bring {@link #schedulableTaskGroups} up to date: add the TaskGroups that may have become ready (all of them in
+     * {@link TaskDispatchMode#polling} mode) and drop the ones that no longer have a task ready.
+     * @return true if any TaskGroup has a task ready to run.
+     */
+    private boolean collectSchedulableTaskGroups() {
+        if (this.dispatchMode == TaskDispatchMode.eventDriven) {
+            TaskGroup<?> taskGroup;
+            while ((taskGroup = this.readyTaskGroups.poll()) != null) {
+                taskGroup.clearQueuedForDispatch();
+                this.schedulableTaskGroups.add(taskGroup);
+            }
+        } else {
+            this.schedulableTaskGroups.addAll(this.taskGroups);
+        }
+        for (Iterator<TaskGroup<?>> iterator = this.schedulableTaskGroups.iterator(); iterator.hasNext();) {
+            if (!iterator.next().isTaskReady()) {
+                // in eventDriven mode, the TaskGroup requeues itself when it has a task ready.
+                iterator.remove();
+            }
+        }
+        return !this.schedulableTaskGroups.isEmpty();
+    }
+
     private TaskGroup<?> getCurrentTaskGroup() {
         TaskGroup<?> taskGroup;
         do {
@@ -310,11 +714,12 @@ public class TaskControl implements Runnable {
             // make sure that the only eligible task isn't being passed to a worker
             // thread when there are no other running tasks
             this.lastRunningTaskSize = this.runningTasks.get();
-            this.lastEligibleTasksSize = this.eligibleTasks.size();
+            this.lastEligibleTasksSize = this.getQueuedTaskCount();
             this.lastIsTaskNOTReady = !this.isTaskReady();
             if (this.lastRunningTaskSize == 0
                     && this.lastEligibleTasksSize == 0
-                    && this.lastIsTaskNOTReady) {
+                    && this.lastIsTaskNOTReady
+                    && !this.hasPendingTimers()) {
                 this.getLog().debug("TaskControl ending -- nothing left to run");
                 return false;
             }
@@ -322,6 +727,134 @@ public class TaskControl implements Runnable {
         return true;
     }
 
+    /**
+     * @return the number of tasks handed to the executor that have not started running.
+     */
+    int getQueuedTaskCount() {
+        switch (this.executorType) {
+        case workStealing:
+            return ((WorkStealingExecutor) this.executor).getQueuedTaskCount();
+        case virtualThread:
+            return ((ThreadPerTaskExecutor) this.executor).getQueuedTaskCount();
+        default:
+            return this.eligibleTasks.size();
+        }
+    }
+
+    /**
+     * Must be set before the TaskControl starts running. When set, a task is only dispatched when fewer than
+     * maxThreads tasks are running and taskGroupScheduler chooses which TaskGroup it comes from. When null (the
+     * default), every ready task is dispatched immediately and the TaskGroups take turns.
+     * @param taskGroupScheduler
+     */
+    public void setTaskGroupScheduler(TaskGroupScheduler taskGroupScheduler) {
+        this.taskGroupScheduler = taskGroupScheduler;
+    }
+
+    public TaskGroupScheduler getTaskGroupScheduler() {
+        return this.taskGroupScheduler;
+    }
+
+    /**
+     * Must be set before the TaskControl starts running. Tasks are only run when both this TaskControl's concurrency
+     * and the threadBudget allow.
+     * @param threadBudget shared with other TaskControls, null to stop using a budget.
+     * @param minimumThreads the number of running tasks reserved for this TaskControl. Up to maxThreads are run when
+     * the other TaskControls are not using the rest of the budget.
+     */
+    public void setThreadBudget(TaskControlThreadBudget threadBudget, int minimumThreads) {
+        TaskControlThreadBudget.Allotment previous = this.threadBudgetAllotment;
+        if (previous != null) {
+            this.threadBudgetAllotment = null;
+            this.threadBudget.unregister(previous);
+        }
+        this.threadBudget = threadBudget;
+        if (threadBudget != null) {
+            this.threadBudgetAllotment = threadBudget.register(this, Math.min(minimumThreads, this.maxThreads),
+                this.maxThreads);
+        }
+        this.stateChanged();
+    }
+
+    public TaskControlThreadBudget getThreadBudget() {
+        return this.threadBudget;
+    }
+
+    /**
+     * Must be set before the TaskControl starts running.
+     * @param concurrencyController if not null, adjusts how many tasks run at once between 1 and maxThreads. Each
+     * decision is recorded in the TaskGroups' stats.
+     */
+    public void setConcurrencyController(ConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+        this.sampleStart = System.nanoTime();
+        this.setConcurrency(concurrencyController != null ? concurrencyController.getInitialConcurrency(this.maxThreads)
+            : this.maxThreads);
+    }
+
+    public ConcurrencyController getConcurrencyController() {
+        return this.concurrencyController;
+    }
+
+    /**
+     * @return the number of tasks run at once.
+     */
+    public int getConcurrency() {
+        return this.concurrency;
+    }
+
+    /**
+     * @param capacity the maximum number of unfinished tasks across all of this TaskControl's TaskGroups, 0 (the
+     * default) for unbounded. Each TaskGroup can also have its own capacity.
+     */
+    public void setCapacity(int capacity) {
+        this.taskCapacity.setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return this.taskCapacity.getCapacity();
+    }
+
+    /**
+     * @param capacityPolicy what to do with producers when at capacity, defaults to {@link TaskCapacityPolicy#block}.
+     */
+    public void setCapacityPolicy(TaskCapacityPolicy capacityPolicy) {
+        this.taskCapacity.setPolicy(capacityPolicy);
+    }
+
+    public TaskCapacityPolicy getCapacityPolicy() {
+        return this.taskCapacity.getPolicy();
+    }
+
+    /**
+     * @param timeout how long a producer waits with {@link TaskCapacityPolicy#blockWithTimeout}.
+     * @param unit
+     */
+    public void setCapacityTimeout(long timeout, TimeUnit unit) {
+        this.taskCapacity.setTimeout(timeout, unit);
+    }
+
+    TaskCapacity getTaskCapacity() {
+        return this.taskCapacity;
+    }
+
+    public TaskExecutorType getExecutorType() {
+        return this.executorType;
+    }
+
+    /**
+     * Must be set before the TaskControl starts running.
+     * @param dispatchMode
+     */
+    public void setDispatchMode(TaskDispatchMode dispatchMode) {
+        ApplicationIllegalArgumentException.notNull(dispatchMode, "dispatchMode");
+        this.dispatchMode = dispatchMode;
+    }
+
+    public TaskDispatchMode getDispatchMode() {
+        return this.dispatchMode;
+    }
+
     public void setLog(Log log) {
         this.log = log;
     }
@@ -358,61 +891,117 @@ public class TaskControl implements Runnable {
          * is used by the PooledExecutor to chose the next task.
          */
         public void run() {
-            while (TaskControl.this.isTaskReady()) {
+            TaskGroupScheduler scheduler = TaskControl.this.taskGroupScheduler;
+            if (scheduler != null) {
+                this.dispatchScheduled(scheduler);
+                return;
+            }
+            if (TaskControl.this.dispatchMode == TaskDispatchMode.eventDriven) {
+                this.drainReadyTaskGroups();
+                return;
+            }
+            while (TaskControl.this.isTaskReady() && TaskControl.this.acquireWorker()) {
                 // note that there is no guarentee that the task is the same as
                 // this one
-                final PrioritizedTask nextTask = this.nextTaskFromCurrentGroup();
-
-                // verify that we have retrieved a valid object.
-                if (!nextTask.isReadyToRun()) {
-                    throw new RuntimeException(
-                        "PrioritizedTask contract violation, "
-                        + "or Comparator violation - why is this object not ready to run");
+                PrioritizedTask nextTask = this.nextTaskFromCurrentGroup();
+                if (nextTask == null) {
+                    TaskControl.this.releaseWorker();
+                    break;
                 }
-                // wrap so that there is no reliance on the task doing the
-                // correct notification.
-                TaskControl.this.executor.execute(new TaskWrapper(nextTask) {
-                    @Override
-                    public void run() {
-                        try {
-                            this.getWrappedTask().run();
-                        } finally {
-                            TaskControl.this.taskComplete(this.getWrappedTask());
-                        }
+                this.execute(nextTask);
+            }
+        }
+
+        /**
+         * only the TaskGroups that have reported a state change are asked for tasks.
+         */
+        private void drainReadyTaskGroups() {
+            TaskGroup<?> taskGroup;
+            while ((taskGroup = TaskControl.this.readyTaskGroups.poll()) != null) {
+                // clear first so that a state change while draining requeues the taskGroup.
+                taskGroup.clearQueuedForDispatch();
+                while (taskGroup.isTaskReady()) {
+                    if (!TaskControl.this.acquireWorker()) {
+                        // finish draining when a task completes.
+                        TaskControl.this.taskGroupStateChanged(taskGroup);
+                        return;
                     }
-                });
-                // we tell the executor to create additional threads because
-                // otherwise
-                // if min>#threads>max and a thread is waiting additional
-                // threads will
-                // not be created even if that means that there are waiting
-                // tasks to be
-                // run (12/07/2005).
-                TaskControl.this.executor.prestartCoreThread();
-                /*
-                 * Incrementing runningTasks must occur here, not by a call from
-                 * nextTask.run(). The reason is that otherwise there is a race
-                 * condition: 1. eligibleTasks isEmpty 2. nextTask added to
-                 * eligibleTasks 3. the worker thread pulls off nextTask from
-                 * eligibleTasks (eligibleTasks empty again) 4.
-                 * TaskControl.stillRunning executes and determines it should
-                 * shutdown because the eligibleTask queue is empty and there
-                 * are no more tasks that can run. 5. worker thread tries to run
-                 * nextTask.
-                 */
-                TaskControl.this.runningTasks.incrementAndGet();
-                TaskControl.this.runningTaskList.add(nextTask);
+                    PrioritizedTask nextTask = taskGroup.nextTask();
+                    if (nextTask == null) {
+                        // taken since isTaskReady(), for example by a producer with TaskCapacityPolicy.callerRuns.
+                        TaskControl.this.releaseWorker();
+                        break;
+                    }
+                    this.execute(nextTask);
+                }
+            }
+        }
+
+        /**
+         * dispatch tasks, one at a time, from the TaskGroups chosen by the scheduler until all the workers are busy.
+         * @param scheduler
+         */
+        private void dispatchScheduled(TaskGroupScheduler scheduler) {
+            while (TaskControl.this.isTaskReady() && TaskControl.this.acquireWorker()) {
+                TaskGroup<?> taskGroup = scheduler.selectTaskGroup(TaskControl.this.schedulableTaskGroups);
+                PrioritizedTask nextTask = taskGroup.nextTask();
+                if (nextTask != null) {
+                    this.execute(nextTask);
+                } else {
+                    TaskControl.this.releaseWorker();
+                }
+            }
+        }
+
+        private void execute(final PrioritizedTask nextTask) {
+            // verify that we have retrieved a valid object.
+            if (!nextTask.isReadyToRun()) {
+                throw new RuntimeException(
+                    "PrioritizedTask contract violation, "
+                    + "or Comparator violation - why is this object not ready to run");
+            }
+            /*
+             * Incrementing runningTasks must occur here, not by a call from
+             * nextTask.run(). The reason is that otherwise there is a race
+             * condition: 1. eligibleTasks isEmpty 2. nextTask added to
+             * eligibleTasks 3. the worker thread pulls off nextTask from
+             * eligibleTasks (eligibleTasks empty again) 4.
+             * TaskControl.stillRunning executes and determines it should
+             * shutdown because the eligibleTask queue is empty and there
+             * are no more tasks that can run. 5. worker thread tries to run
+             * nextTask. Incrementing before the executor gets the task also
+             * makes sure that the worker's decrement never happens first.
+             */
+            TaskControl.this.executor.execute(TaskControl.this.newTaskRunner(nextTask));
+            // we tell the executor to create additional threads because
+            // otherwise
+            // if min>#threads>max and a thread is waiting additional
+            // threads will
+            // not be created even if that means that there are waiting
+            // tasks to be
+            // run (12/07/2005).
+            if (TaskControl.this.executorType == TaskExecutorType.threadPool) {
+                ((ThreadPoolExecutor) TaskControl.this.executor).prestartCoreThread();
             }
         }
 
+        /**
+         * @return the next task, asking each TaskGroup at most once, null if the ready tasks have been taken since
+         * {@link TaskControl#isTaskReady()}.
+         */
         private PrioritizedTask nextTaskFromCurrentGroup() {
-            PrioritizedTask nextTask = null;
-            do {
+            for (int attempts = TaskControl.this.taskGroups.size(); attempts > 0; attempts--) {
                 TaskGroup<?> taskGroup = TaskControl.this.getCurrentTaskGroup();
-                nextTask = taskGroup.nextTask();
-            } while (nextTask == null);
-            TaskControl.this.currentTaskGroup.incrementAndGet();
-            return nextTask;
+                if (taskGroup == null) {
+                    return null;
+                }
+                PrioritizedTask nextTask = taskGroup.nextTask();
+                TaskControl.this.currentTaskGroup.incrementAndGet();
+                if (nextTask != null) {
+                    return nextTask;
+                }
+            }
+            return null;
         }
     }
 }
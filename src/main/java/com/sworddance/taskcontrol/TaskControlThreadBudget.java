@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * A limit on the number of tasks running at once, shared by several {@link TaskControl}s so that together they do
+ * not run more tasks than the machine has processors for.
+ *
+ * Each TaskControl using the budget is guaranteed its minimum number of running tasks; those are reserved even when
+ * the TaskControl is idle. Beyond its minimum, a TaskControl borrows from the unreserved part of the budget up to its
+ * maxThreads. When a borrowed worker is returned, the TaskControls that were refused are woken up to try again.
+ */
+public class TaskControlThreadBudget {
+    private static final TaskControlThreadBudget SHARED = new TaskControlThreadBudget(Runtime.getRuntime()
+        .availableProcessors());
+
+    private final int maxRunningTasks;
+
+    /**
+     * sum over the allotments of the larger of the minimum and the number in use.
+     */
+    private int reserved;
+
+    private final List<Allotment> allotments = new ArrayList<Allotment>();
+
+    /**
+     * @param maxRunningTasks the number of tasks that can run at once across all the TaskControls.
+     */
+    public TaskControlThreadBudget(int maxRunningTasks) {
+        ApplicationIllegalArgumentException.valid(maxRunningTasks > 0, "maxRunningTasks must be positive: ",
+            maxRunningTasks);
+        this.maxRunningTasks = maxRunningTasks;
+    }
+
+    /**
+     * @return the process wide budget, one running task per available processor.
+     */
+    public static TaskControlThreadBudget getSharedInstance() {
+        return SHARED;
+    }
+
+    /**
+     * @param taskControl
+     * @param minimum the number of running tasks reserved for taskControl.
+     * @param maximum the most tasks taskControl can run at once.
+     * @return the taskControl's share of the budget.
+     * @throws ApplicationIllegalArgumentException if the minimum can not be reserved.
+     */
+    synchronized Allotment register(TaskControl taskControl, int minimum, int maximum) {
+        ApplicationIllegalArgumentException.valid(minimum >= 0 && minimum <= maximum, "minimum must be between 0 and ",
+            maximum, ": ", minimum);
+        ApplicationIllegalArgumentException.valid(reserved + minimum <= maxRunningTasks, "only ",
+            maxRunningTasks - reserved, " running tasks left to reserve, asked for ", minimum);
+        Allotment allotment = new Allotment(taskControl, minimum, maximum);
+        reserved += minimum;
+        allotments.add(allotment);
+        return allotment;
+    }
+
+    /**
+     * @param allotment no longer used. Workers still in use are not counted against the budget.
+     */
+    void unregister(Allotment allotment) {
+        synchronized (this) {
+            if (!allotments.remove(allotment)) {
+                return;
+            }
+            reserved -= Math.max(allotment.minimum, allotment.used);
+            allotment.used = 0;
+            allotment.minimum = 0;
+        }
+        wakeRefused();
+    }
+
+    /**
+     * @param allotment
+     * @return true if {@link #tryAcquire(Allotment)} would succeed. If false, the allotment's TaskControl is woken
+     * up when a worker is returned.
+     */
+    synchronized boolean isAvailable(Allotment allotment) {
+        if (allotment.used < allotment.minimum || (allotment.used < allotment.maximum && reserved < maxRunningTasks)) {
+            return true;
+        } else {
+            allotment.refused = true;
+            return false;
+        }
+    }
+
+    /**
+     * @param allotment
+     * @return true if the allotment can run another task. If false, the allotment's TaskControl is woken up when a
+     * worker is returned.
+     */
+    synchronized boolean tryAcquire(Allotment allotment) {
+        if (allotment.used < allotment.minimum) {
+            allotment.used++;
+            return true;
+        } else if (allotment.used < allotment.maximum && reserved < maxRunningTasks) {
+            allotment.used++;
+            reserved++;
+            return true;
+        } else {
+            allotment.refused = true;
+            return false;
+        }
+    }
+
+    void release(Allotment allotment) {
+        boolean borrowed;
+        synchronized (this) {
+            if (allotment.used == 0) {
+                // unregistered while running.
+                return;
+            }
+            borrowed = allotment.used > allotment.minimum;
+            allotment.used--;
+            if (borrowed) {
+                reserved--;
+            }
+        }
+        if (borrowed) {
+            wakeRefused();
+        }
+    }
+
+    /**
+     * wake the TaskControls that were refused a worker. Called without holding the budget's lock because
+     * {@link TaskControl#stateChanged()} takes the TaskControl's lock.
+     */
+    private void wakeRefused() {
+        List<TaskControl> refused = new ArrayList<TaskControl>();
+        synchronized (this) {
+            for (Allotment allotment : allotments) {
+                if (allotment.refused) {
+                    allotment.refused = false;
+                    refused.add(allotment.taskControl);
+                }
+            }
+        }
+        for (TaskControl taskControl : refused) {
+            taskControl.stateChanged();
+        }
+    }
+
+    public int getMaxRunningTasks() {
+        return maxRunningTasks;
+    }
+
+    /**
+     * @return the number of running tasks reserved or in use.
+     */
+    public synchronized int getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the number of tasks running across all the TaskControls.
+     */
+    public synchronized int getRunningTasks() {
+        int running = 0;
+        for (Allotment allotment : allotments) {
+            running += allotment.used;
+        }
+        return running;
+    }
+
+    /**
+     * One TaskControl's share of the budget. Only accessed with the budget's lock held.
+     */
+    static class Allotment {
+        private final TaskControl taskControl;
+
+        private int minimum;
+
+        private final int maximum;
+
+        private int used;
+
+        private boolean refused;
+
+        Allotment(TaskControl taskControl, int minimum, int maximum) {
+            this.taskControl = taskControl;
+            this.minimum = minimum;
+            this.maximum = maximum;
+        }
+    }
+}
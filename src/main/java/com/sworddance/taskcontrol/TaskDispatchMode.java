@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+/**
+ * How the {@link TaskControl} dispatcher thread discovers {@link TaskGroup}s that have tasks ready to run.
+ */
+public enum TaskDispatchMode {
+    /**
+     * Every state change wakes the dispatcher which then asks every {@link TaskGroup} if it has a task ready.
+     * The dispatcher also wakes up every 60 seconds to recheck.
+     */
+    polling,
+    /**
+     * {@link TaskGroup}s push themselves onto the dispatcher's ready queue when a task is added, a task completes
+     * (releasing locks and satisfying dependencies) or the TaskGroup otherwise reports a state change. The dispatcher
+     * only looks at the TaskGroups on the ready queue. If the dispatcher is idle for 60 seconds, all TaskGroups are
+     * queued to pick up dependencies on {@link FutureResult}s that are not part of this TaskControl.
+     */
+    eventDriven;
+}
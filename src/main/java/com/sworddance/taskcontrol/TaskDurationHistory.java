@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+import com.sworddance.util.perf.ThreadHistory;
+import com.sworddance.util.perf.ThreadHistoryTracker;
+
+/**
+ * How long tasks have taken to run, keyed by task name, used to estimate how long a task will take before it runs.
+ * Each name keeps an exponentially weighted average of its durations in milliseconds, so recent runs count most.
+ * Tasks without a name are keyed by their class name. The most recent durations are also kept so that slow runs can
+ * be recognized, see {@link #getPercentile(PrioritizedTask, int)}.
+ *
+ * A history can be shared by TaskGroups, and kept from one run to the next, so that the estimates improve over time.
+ * See {@link TaskGroup#setTaskDurationHistory(TaskDurationHistory)}.
+ */
+public class TaskDurationHistory {
+    /**
+     * each new duration contributes 1/WEIGHT of the average.
+     */
+    private static final int WEIGHT = 4;
+
+    /**
+     * the number of recent durations kept for each name.
+     */
+    private static final int SAMPLES = 32;
+
+    /**
+     * fewer durations than this are not enough to compute a percentile.
+     */
+    public static final int MINIMUM_PERCENTILE_SAMPLES = 5;
+
+    /**
+     * kept as a double so that differences smaller than WEIGHT milliseconds still move the average.
+     */
+    private final ConcurrentMap<String, Double> averages = new ConcurrentHashMap<String, Double>();
+
+    private final ConcurrentMap<String, Samples> samples = new ConcurrentHashMap<String, Samples>();
+
+    private volatile long defaultEstimate = 1;
+
+    /**
+     * @param task
+     * @param elapsedMillis
+     */
+    public void record(PrioritizedTask task, long elapsedMillis) {
+        record(getKey(task), elapsedMillis);
+    }
+
+    public void record(String key, long elapsedMillis) {
+        ApplicationIllegalArgumentException.notNull(key, "key");
+        Samples recent = samples.get(key);
+        if (recent == null) {
+            samples.putIfAbsent(key, new Samples());
+            recent = samples.get(key);
+        }
+        recent.add(elapsedMillis);
+        while (true) {
+            Double average = averages.get(key);
+            if (average == null) {
+                if (averages.putIfAbsent(key, (double) elapsedMillis) == null) {
+                    return;
+                }
+            } else if (averages.replace(key, average, average + (elapsedMillis - average) / WEIGHT)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record the run times of the tasks that finished in tracker, for example from an earlier run of a
+     * {@link TaskGroup}.
+     * @param tracker
+     */
+    public void record(ThreadHistoryTracker tracker) {
+        for (Long threadId : tracker.getThreadIds()) {
+            List<ThreadHistory> history = tracker.getThreadHistoryCopy(threadId);
+            if (history != null) {
+                for (ThreadHistory entry : history) {
+                    if (Boolean.FALSE.equals(entry.getThreadInUse()) && entry.getTaskName() != null) {
+                        record(entry.getTaskName(), entry.getSequentialTime());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Durations are measured in whole milliseconds, so a task that is known to run in under a millisecond is still
+     * estimated at 1ms. This keeps the number of tasks in a chain counting toward its length.
+     * @param task
+     * @return the estimated milliseconds task will take to run, {@link #getDefaultEstimate()} if there is no history.
+     */
+    public long getEstimate(PrioritizedTask task) {
+        Double average = averages.get(getKey(task));
+        return average == null ? defaultEstimate : Math.max(1, Math.round(average));
+    }
+
+    /**
+     * @param task
+     * @param percentile 1 to 100.
+     * @return the duration in milliseconds that percentile percent of task's recent runs finished within, -1 if fewer
+     * than {@link #MINIMUM_PERCENTILE_SAMPLES} runs have been recorded.
+     */
+    public long getPercentile(PrioritizedTask task, int percentile) {
+        ApplicationIllegalArgumentException.valid(percentile > 0 && percentile <= 100,
+            "percentile must be from 1 to 100: ", percentile);
+        Samples recent = samples.get(getKey(task));
+        return recent == null ? -1 : recent.getPercentile(percentile);
+    }
+
+    /**
+     * @param defaultEstimate the milliseconds assumed for tasks with no history, default 1.
+     */
+    public void setDefaultEstimate(long defaultEstimate) {
+        ApplicationIllegalArgumentException.valid(defaultEstimate >= 0, "defaultEstimate must not be negative: ",
+            defaultEstimate);
+        this.defaultEstimate = defaultEstimate;
+    }
+
+    public long getDefaultEstimate() {
+        return defaultEstimate;
+    }
+
+    /**
+     * @return the number of task names with a history.
+     */
+    public int size() {
+        return averages.size();
+    }
+
+    private String getKey(PrioritizedTask task) {
+        return task.getName() != null ? task.getName() : task.getClass().getName();
+    }
+
+    /**
+     * the last {@link TaskDurationHistory#SAMPLES} durations of one name.
+     */
+    private static class Samples {
+        private final long[] durations = new long[SAMPLES];
+
+        private int next;
+
+        private int size;
+
+        synchronized void add(long elapsedMillis) {
+            durations[next] = elapsedMillis;
+            next = (next + 1) % SAMPLES;
+            size = Math.min(size + 1, SAMPLES);
+        }
+
+        synchronized long getPercentile(int percentile) {
+            if (size < MINIMUM_PERCENTILE_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(durations, size);
+            Arrays.sort(sorted);
+            // nearest rank
+            int rank = (percentile * size + 99) / 100;
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.scheduling.TimingWheel;
+
+/**
+ * One execution of a task with an execution timeout. Started on the thread running the task and
+ * {@link #finish() finished} on that thread when the task returns. If the timeout fires first the TaskGroup is told
+ * the task is hung.
+ *
+ * Interrupting is done while holding this monitor so that a thread that has already moved on to another task is
+ * never interrupted. An interrupt that arrives just as the task returns is cleared by {@link #finish()}.
+ */
+class TaskExecutionWatch implements Runnable {
+    private final TaskGroup<?> taskGroup;
+
+    private final PrioritizedTask task;
+
+    private final Thread thread;
+
+    private final long startNanos;
+
+    private final long timeoutNanos;
+
+    private final Set<TaskTimeoutAction> actions;
+
+    private TimingWheel.Timeout timeout;
+
+    private boolean finished;
+
+    private boolean interrupted;
+
+    TaskExecutionWatch(TaskGroup<?> taskGroup, PrioritizedTask task, long timeoutNanos, Set<TaskTimeoutAction> actions) {
+        this.taskGroup = taskGroup;
+        this.task = task;
+        this.thread = Thread.currentThread();
+        this.startNanos = System.nanoTime();
+        this.timeoutNanos = timeoutNanos;
+        this.actions = actions;
+    }
+
+    void start(TaskWatchdog watchdog) {
+        TimingWheel.Timeout t = watchdog.watch(this, this.timeoutNanos, TimeUnit.NANOSECONDS);
+        synchronized (this) {
+            this.timeout = t;
+        }
+    }
+
+    /**
+     * Called by the {@link TaskWatchdog} when the task has run too long.
+     */
+    public void run() {
+        synchronized (this) {
+            if (this.finished) {
+                return;
+            }
+            // report before interrupting so the report shows where the task was stuck.
+            this.taskGroup.hungTaskReport(this.task, this.thread, System.nanoTime() - this.startNanos,
+                this.timeoutNanos, this.actions);
+            if (this.actions.contains(TaskTimeoutAction.interrupt)) {
+                this.thread.interrupt();
+                this.interrupted = true;
+            }
+        }
+        this.taskGroup.taskTimedOut(this.task, this.actions);
+    }
+
+    /**
+     * Must be called on the thread that ran the task.
+     */
+    synchronized void finish() {
+        this.finished = true;
+        if (this.timeout != null) {
+            this.timeout.cancel();
+        }
+        if (this.interrupted) {
+            Thread.interrupted();
+        }
+    }
+}
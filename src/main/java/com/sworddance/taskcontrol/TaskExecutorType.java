@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+/**
+ * The executor that runs the tasks that a {@link TaskControl} has dispatched.
+ */
+public enum TaskExecutorType {
+    /**
+     * A {@link java.util.concurrent.ThreadPoolExecutor} whose work queue is a single priority queue shared by all the
+     * worker threads. Tasks are run in strict priority order but every worker contends on the one queue lock.
+     */
+    threadPool,
+    /**
+     * {@link WorkStealingExecutor}: each worker thread has its own priority queue and idle workers steal the highest
+     * priority task from the other workers. The priority order across workers is only approximate.
+     */
+    workStealing,
+    /**
+     * {@link ThreadPerTaskExecutor}: each task runs on its own new thread and the number of running tasks is capped
+     * by a semaphore of maxThreads permits instead of by a pool size. When the {@link TaskControl} creates its own
+     * thread factory, it is a {@link VirtualThreadFactoryImpl} so that each task runs on a virtual thread (Java 21+).
+     */
+    virtualThread;
+}
@@ -17,21 +17,38 @@ package com.sworddance.taskcontrol;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sworddance.core.Emptyable;
+import com.sworddance.scheduling.TimeServer;
+import com.sworddance.scheduling.TimeServerImpl;
+import com.sworddance.scheduling.TimingWheel;
+import com.sworddance.scheduling.TokenBucket;
+import com.sworddance.util.ApplicationIllegalArgumentException;
+import com.sworddance.util.ApplicationTimeoutException;
 import com.sworddance.util.perf.CSVThreadHistoryTrackerFormatter;
+import com.sworddance.util.perf.ThreadHistory;
 import com.sworddance.util.perf.ThreadHistoryTracker;
 
 import org.apache.commons.logging.Log;
@@ -63,24 +80,49 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
 
     /**
      * Cannot be immutable because running tasks may add to the list.
+     * Also the monitor for {@link #unblockedTasks} and {@link #readyTasks}.
      */
-    private final List<PrioritizedTask> tasksToBeRun;
+    private final Set<PrioritizedTask> tasksToBeRun;
 
     /**
-     * set to indicate that TaskGroup has been told to shutdown. No more tasks
-     * can be added and all pending tasks are discarded.
+     * tasks in {@link #tasksToBeRun} whose resource locks are available but that are not yet
+     * {@link PrioritizedTask#isReadyToRun()} (usually waiting on dependencies).
      */
-    private CountDownLatch shutdownTaskGroup = new CountDownLatch(1);
+    private final Set<PrioritizedTask> unblockedTasks;
+
+    /**
+     * tasks in {@link #unblockedTasks} that must be polled because they can not report when they become ready.
+     */
+    private final Set<PrioritizedTask> polledTasks;
+
+    /**
+     * tasks that have reported that their dependencies have completed, see {@link #dependenciesChanged(PrioritizedTask)}.
+     */
+    private final Queue<PrioritizedTask> dependencyChangedTasks = new ConcurrentLinkedQueue<PrioritizedTask>();
+
+    /**
+     * tasks in {@link #tasksToBeRun} that can be run now ordered by the taskComparator.
+     * Maintained as locks are released and tasks are added so that {@link #isTaskReady()} and {@link #nextTask()}
+     * do not have to rescan all the tasks.
+     */
+    private final ReadyTaskQueue readyTasks;
 
     /**
-     * tasks that do not use the resource locking mechanism.
+     * set to indicate that TaskGroup has been told to shutdown. No more tasks
+     * can be added and all pending tasks are discarded.
      */
-    private final List<PrioritizedTask> locklessTasks;
+    private CountDownLatch shutdownTaskGroup = new CountDownLatch(1);
 
     private String statsFileDirectory;
 
     private boolean debugEnabled;
 
+    /**
+     * this TaskGroup's share of worker time relative to other TaskGroups when the {@link TaskControl} has a
+     * {@link TaskGroupScheduler} that uses weights.
+     */
+    private volatile int weight = 1;
+
     /**
      * These are tasks that can never run. This list is used as a holding bin
      * for later reporting.
@@ -96,7 +138,7 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
     /**
      * names, start, stop times of completed tasks.
      */
-    private List<String> tasksCompletedInfo = new CopyOnWriteArrayList<String>();
+    private final Queue<String> tasksCompletedInfo = new ConcurrentLinkedQueue<String>();
 
     /*
      * Used to indicate when all the tasks in this TaskGroup have completed. And
@@ -112,6 +154,142 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
     private WeakReference<PrioritizedTask> lastEligibleTask;
 
     private Set<PrioritizedTask> runningTasks = Collections.newSetFromMap(new ConcurrentHashMap<PrioritizedTask, Boolean>());
+
+    /**
+     * {@link #unbarrieredTasks} is pruned of completed tasks when it reaches this size.
+     */
+    private static final int UNBARRIERED_PRUNE_SIZE = 64;
+
+    /**
+     * tasks added since the last {@link #newBarrier()}, the possible members of the next barrier. Guarded by
+     * {@link #tasksToBeRun}.
+     */
+    private final List<PrioritizedTask> unbarrieredTasks = new ArrayList<PrioritizedTask>();
+
+    private int unbarrieredPruneSize = UNBARRIERED_PRUNE_SIZE;
+
+    private TaskBarrier lastBarrier;
+
+    private int barrierCount;
+
+    /**
+     * the barrier each unfinished task must report to when it is done.
+     */
+    private final ConcurrentMap<PrioritizedTask, TaskBarrier> barrierMembers = new ConcurrentHashMap<PrioritizedTask, TaskBarrier>();
+
+    /**
+     * tasks added that have not completed or been moved to {@link #deadTasks}, plus one while there is a
+     * {@link #taskGroupGenerator}. The tasks of this TaskGroup are complete when this is 0.
+     */
+    private final AtomicInteger unfinishedTasks = new AtomicInteger();
+
+    public static final int DEFAULT_LOW_WATER_MARK = 32;
+
+    public static final int DEFAULT_HIGH_WATER_MARK = 128;
+
+    /**
+     * source of tasks drawn as the unfinished tasks drop below the lowWaterMark, null once it has no more tasks.
+     */
+    private volatile TaskGroupGenerator taskGroupGenerator;
+
+    private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+
+    private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+    /**
+     * only one thread at a time draws from the taskGroupGenerator.
+     */
+    private final AtomicBoolean generating = new AtomicBoolean(false);
+
+    public static final long DEFAULT_TIMER_TICK_MILLIS = 10;
+
+    /**
+     * holds the {@link TaskTimer}s, created when the first one is scheduled.
+     */
+    private volatile TimingWheel timingWheel;
+
+    /**
+     * keyed by resource name, see {@link #setRateLimit(String, TokenBucket)}.
+     */
+    private final ConcurrentMap<String, TokenBucket> rateLimits = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * ready tasks waiting for a rate limit token. A timer puts each back in {@link #readyTasks} when a token should
+     * be available.
+     */
+    private final Set<PrioritizedTask> throttledTasks = new LinkedHashSet<PrioritizedTask>();
+
+    /**
+     * nanoseconds a task may run before it is reported as hung, 0 for no limit.
+     */
+    private volatile long executionTimeout;
+
+    private volatile Set<TaskTimeoutAction> timeoutActions = Collections.unmodifiableSet(EnumSet
+        .of(TaskTimeoutAction.interrupt));
+
+    private volatile TaskWatchdog taskWatchdog = TaskWatchdog.getSharedInstance();
+
+    /**
+     * percentile of its recorded durations after which an idempotent task is hedged, 0 for no hedging.
+     */
+    private volatile int hedgePercentile;
+
+    private final AtomicInteger hedgeCount = new AtomicInteger();
+
+    /**
+     * the most thread history entries included in a hung task report.
+     */
+    private static final int HUNG_TASK_HISTORY = 16;
+
+    private final List<String> hungTaskReports = new CopyOnWriteArrayList<String>();
+
+    /**
+     * if not null, durations are recorded and each task's {@link PrioritizedTask#getCriticalPath()} is maintained.
+     */
+    private volatile TaskDurationHistory taskDurationHistory;
+
+    /**
+     * the tasks added and not yet finished, optionally bounded.
+     */
+    private final TaskCapacity capacity = new TaskCapacity();
+
+    /**
+     * {@link TaskCapacityPolicy#callerRuns}: run a ready task from this TaskGroup on the producer's thread.
+     */
+    private final TaskCapacity.CallerRunner callerRunner = new TaskCapacity.CallerRunner() {
+        public boolean runReadyTask() {
+            TaskControl control = getTaskControl();
+            if (control == null || isShutdown() || !isTaskReady()) {
+                return false;
+            }
+            PrioritizedTask task = nextTask();
+            if (task == null) {
+                return false;
+            }
+            control.runInCallerThread(task);
+            return true;
+        }
+    };
+
+    /**
+     * true while this TaskGroup is on the {@link TaskControl}'s ready queue ({@link TaskDispatchMode#eventDriven}).
+     */
+    private final AtomicBoolean queuedForDispatch = new AtomicBoolean(false);
+
+    /**
+     * source of the submit times and the time used to check deadlines.
+     */
+    private volatile TimeServer timeServer;
+
+    /**
+     * number of completed tasks that had a deadline.
+     */
+    private final AtomicInteger deadlineTaskCount = new AtomicInteger();
+
+    private final AtomicInteger deadlineMissCount = new AtomicInteger();
+
+    private final AtomicLong maxDeadlineLateness = new AtomicLong();
+
     private String latestStatsFilename;
 
     public TaskGroup(String name, Comparator<PrioritizedTask> taskComparator, FutureResultImplementor<T> result) {
@@ -119,10 +297,13 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
         this.taskComparator = taskComparator;
         this.result = result;
         taskSequence = new AtomicInteger(0);
-        tasksToBeRun = new ArrayList<PrioritizedTask>();
-        locklessTasks = new ArrayList<PrioritizedTask>();
+        tasksToBeRun = new LinkedHashSet<PrioritizedTask>();
+        unblockedTasks = new LinkedHashSet<PrioritizedTask>();
+        polledTasks = new LinkedHashSet<PrioritizedTask>();
+        readyTasks = new ReadyTaskQueue(taskComparator);
         deadTasks = new ArrayList<PrioritizedTask>();
-        threadHistoryTracker = new ThreadHistoryTracker();
+        timeServer = new TimeServerImpl();
+        threadHistoryTracker = new ThreadHistoryTracker(timeServer);
     }
 
     /**
@@ -172,12 +353,7 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
         String id = getTaskId(task);
         resourceManager.releaseTaskLocks(task);
         if (task.getException() != null) {
-            synchronized (result) {
-                // save only the first error
-                if (result.getException() == null) {
-                    result.setException(task.getException());
-                }
-            }
+            setFirstException(task.getException());
             if (task instanceof DefaultPrioritizedTask) {
                 threadHistoryTracker.addStopHistory(id,
                         task.getException().toString(),
@@ -192,15 +368,47 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
                 threadHistoryTracker.addStopHistory(id, "completed",
                         ((DefaultPrioritizedTask) task).getElapsedInMillis() + "ms",
                         ((DefaultPrioritizedTask) task).getElapsedInMillis());
+                TaskDurationHistory history = this.taskDurationHistory;
+                if (history != null) {
+                    history.record(task, ((DefaultPrioritizedTask) task).getElapsedInMillis());
+                }
             } else {
                 threadHistoryTracker.addStopHistory(id, "completed", null, 0);
             }
         }
+        checkDeadline(task, id);
+        barrierMemberDone(task);
         String taskStatus = id + ":" + task.getStatus();
         debug("Task Completed:" + taskStatus);
         tasksCompletedInfo.add(taskStatus);
 
-        if ( isTaskGroupTasksComplete()) {
+        synchronized (tasksToBeRun) {
+            addUnblockedCandidates(resourceManager.drainUnblockedTasks());
+            if (task.getException() != null) {
+                // the waiting tasks may now fail because the TaskGroup is in error.
+                dependencyChangedTasks.addAll(unblockedTasks);
+            }
+            recheckUnblockedTasks();
+        }
+
+        unfinishedTaskDone();
+        this.capacity.release(1);
+        generateTasks();
+        // locks released and dependencies satisfied, other tasks may now be ready.
+        stateChanged();
+    }
+
+    private void setFirstException(Throwable exception) {
+        synchronized (result) {
+            // save only the first error
+            if (result.getException() == null) {
+                result.setException(exception);
+            }
+        }
+    }
+
+    private void unfinishedTaskDone() {
+        if (unfinishedTasks.decrementAndGet() == 0) {
             if ( !result.isDone()) {
                 // no value yet in the result object
                 // supply a result so that threads waiting on results will get notified.
@@ -209,6 +417,93 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
         }
     }
 
+    /**
+     * Draw tasks from the {@link #taskGroupGenerator} until there are highWaterMark unfinished tasks, if fewer than
+     * lowWaterMark are unfinished. No more tasks are drawn than fit in the capacity, whatever the
+     * {@link TaskCapacityPolicy}, because this is usually called on the worker thread that just completed a task.
+     */
+    private void generateTasks() {
+        TaskGroupGenerator generator;
+        // the generator itself is counted as an unfinished task.
+        while ((generator = this.taskGroupGenerator) != null && unfinishedTasks.get() - 1 < lowWaterMark
+            && generating.compareAndSet(false, true)) {
+            List<? extends PrioritizedTask> tasks;
+            try {
+                int wanted = Math.max(1, highWaterMark - (unfinishedTasks.get() - 1));
+                int available = this.capacity.getAvailable();
+                if (available < wanted) {
+                    if (available > 0) {
+                        wanted = available;
+                    } else if (unfinishedTasks.get() > 1) {
+                        // asked again when one of the unfinished tasks completes.
+                        return;
+                    } else {
+                        // nothing else of this TaskGroup will complete so draw one task over capacity.
+                        wanted = 1;
+                    }
+                }
+                tasks = generator.generateTasks(wanted);
+                if (tasks != null && !tasks.isEmpty()) {
+                    for (PrioritizedTask task : tasks) {
+                        if (task.isDone()) {
+                            throw new IllegalStateException(task + ": Task already has a result.");
+                        }
+                    }
+                    // often on a worker thread that must not wait for capacity or have the tasks rejected.
+                    this.capacity.acquireOverCapacity(tasks.size());
+                    addAcquiredTasks(tasks);
+                }
+            } finally {
+                generating.set(false);
+            }
+            if (tasks == null) {
+                generatorExhausted(generator);
+            } else if (tasks.isEmpty()) {
+                // the generator has nothing for now.
+                return;
+            }
+        }
+    }
+
+    private void generatorExhausted(TaskGroupGenerator generator) {
+        synchronized (tasksToBeRun) {
+            if (this.taskGroupGenerator != generator) {
+                return;
+            }
+            this.taskGroupGenerator = null;
+        }
+        unfinishedTaskDone();
+    }
+
+    /**
+     * record if the completed task missed its deadline.
+     * @param task
+     * @param id
+     */
+    private void checkDeadline(PrioritizedTask task, String id) {
+        long deadline = task.getDeadline();
+        if (deadline != PrioritizedTask.NO_DEADLINE) {
+            deadlineTaskCount.incrementAndGet();
+            long lateness = getTimeServer().nanoTime() - deadline;
+            if (lateness > 0) {
+                deadlineMissCount.incrementAndGet();
+                for (long max = maxDeadlineLateness.get(); lateness > max && !maxDeadlineLateness.compareAndSet(max, lateness);) {
+                    max = maxDeadlineLateness.get();
+                }
+                threadHistoryTracker.addHistoryStatus(id, "missed deadline", NANOSECONDS.toMillis(lateness) + "ms late");
+            }
+        }
+    }
+
+    /**
+     * record a {@link TaskControl} decision in this TaskGroup's stats.
+     * @param status
+     * @param note
+     */
+    void addTaskControlStatus(String status, String note) {
+        threadHistoryTracker.addHistoryStatus("TaskControl", status, note);
+    }
+
     public void addTaskStatus(PrioritizedTask task, String status) {
         String id = getTaskId(task);
         threadHistoryTracker.addHistoryStatus(id, status, null);
@@ -223,10 +518,21 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
      */
     public void stateChanged() {
         if (getTaskControl() != null) {
-            getTaskControl().stateChanged();
+            getTaskControl().taskGroupStateChanged(this);
         }
     }
 
+    /**
+     * @return true if the caller should put this TaskGroup on the dispatch queue, false if already on the queue.
+     */
+    boolean markQueuedForDispatch() {
+        return this.queuedForDispatch.compareAndSet(false, true);
+    }
+
+    void clearQueuedForDispatch() {
+        this.queuedForDispatch.set(false);
+    }
+
     public int getSequence() {
         return taskSequence.incrementAndGet();
     }
@@ -257,6 +563,70 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
         this.addTask(task, null);
     }
 
+    /**
+     * Add all of tasks in order. Same as calling {@link #addTask(PrioritizedTask)} for each task but the TaskGroup
+     * and the {@link ResourceLockManager} are only locked once and the {@link TaskControl} is only notified once.
+     *
+     * @param tasks
+     */
+    public void addTasks(Collection<? extends PrioritizedTask> tasks) {
+        for (PrioritizedTask task : tasks) {
+            if (task.isDone()) {
+                throw new IllegalStateException(task + ": Task already has a result.");
+            }
+        }
+        this.capacity.acquire(tasks.size(), this.callerRunner);
+        addAcquiredTasks(tasks);
+    }
+
+    /**
+     * @param tasks already counted against the capacity.
+     */
+    private void addAcquiredTasks(Collection<? extends PrioritizedTask> tasks) {
+        int added = 0;
+        try {
+            for (PrioritizedTask task : tasks) {
+                task.setNotification(this);
+            }
+            synchronized (tasksToBeRun) {
+                if (!this.isShutdown()) {
+                    List<PrioritizedTask> lockingTasks = new ArrayList<PrioritizedTask>(tasks.size());
+                    boolean subtasks = false;
+                    for (PrioritizedTask task : tasks) {
+                        tasksToBeRun.add(task);
+                        addUnbarrieredTask(task);
+                        added++;
+                        unfinishedTasks.incrementAndGet();
+                        task.setTaskGroup(this);
+                        updateCriticalPaths(task);
+                        if (task.hasLocks()) {
+                            lockingTasks.add(task);
+                            subtasks |= task instanceof DependentPrioritizedTask
+                                && ((DependentPrioritizedTask) task).getParentTask() != null;
+                        }
+                    }
+                    this.resourceManager.addTaskLocks(lockingTasks);
+                    if (subtasks) {
+                        // subtask locks are inserted after the parent's locks rather than at the end.
+                        recheckBlockedTasks();
+                    }
+                    for (PrioritizedTask task : lockingTasks) {
+                        inheritPriority(task);
+                    }
+                    for (PrioritizedTask task : tasks) {
+                        if (!task.hasLocks() || resourceManager.isTaskUnblocked(task)) {
+                            evaluateUnblockedTask(task);
+                        }
+                    }
+                }
+            }
+        } finally {
+            // tasks not added do not count against the capacity.
+            this.capacity.release(tasks.size() - added);
+        }
+        stateChanged();
+    }
+
     /**
      * This is the method that all tasks must be added to the tasksToBeRun
      * collection.
@@ -265,25 +635,51 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
      * @param task
      */
     public void addTask(PrioritizedTask task, Comparator<ResourceLock> insertionPoint) {
-        // this method is the only place where tasksToBeRun is to be updated.
+        // this method and addTasks are the only places where tasksToBeRun is to be updated.
         if (task.isDone()) {
             throw new IllegalStateException(task + ": Task already has a result.");
         }
-        task.setNotification(this);
-        synchronized (tasksToBeRun) {
-            if (!this.isShutdown()) {
-                tasksToBeRun.add(task);
-                task.setTaskGroup(this);
-                if (!task.hasLocks()) {
-                    synchronized (locklessTasks) {
-                        locklessTasks.add(task);
+        this.capacity.acquire(1, this.callerRunner);
+        addAcquiredTask(task, insertionPoint);
+    }
+
+    /**
+     * @param task already counted against the capacity.
+     * @param insertionPoint
+     */
+    private void addAcquiredTask(PrioritizedTask task, Comparator<ResourceLock> insertionPoint) {
+        boolean added = false;
+        try {
+            task.setNotification(this);
+            synchronized (tasksToBeRun) {
+                if (!this.isShutdown()) {
+                    tasksToBeRun.add(task);
+                    addUnbarrieredTask(task);
+                    added = true;
+                    unfinishedTasks.incrementAndGet();
+                    task.setTaskGroup(this);
+                    updateCriticalPaths(task);
+                    if (task.hasLocks()) {
+                        if (insertionPoint == null) {
+                            this.resourceManager.addTaskLocks(task);
+                        } else {
+                            this.resourceManager.addTaskLocks(task, insertionPoint);
+                        }
+                        if (task instanceof DependentPrioritizedTask && ((DependentPrioritizedTask)task).getParentTask() != null) {
+                            // subtask locks are inserted after the parent's locks rather than at the end.
+                            recheckBlockedTasks();
+                        }
+                        inheritPriority(task);
+                    }
+                    if (!task.hasLocks() || resourceManager.isTaskUnblocked(task)) {
+                        evaluateUnblockedTask(task);
                     }
-                } else if (insertionPoint == null) {
-                    this.resourceManager.addTaskLocks(task);
-                } else {
-                    this.resourceManager.addTaskLocks(task, insertionPoint);
                 }
             }
+        } finally {
+            if (!added) {
+                this.capacity.release(1);
+            }
         }
         stateChanged();
     }
@@ -348,160 +744,462 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
     /**
      * @return true if there is a task in this TaskGroup that is ready to run
      */
-    @SuppressWarnings("unchecked")
     public boolean isTaskReady() {
         if (isShutdown()) {
             return false;
         }
         synchronized (tasksToBeRun) {
-            List<PrioritizedTask> eligibleTasks = resourceManager.getUnblockedTasks();
-            eligibleTasks.addAll(locklessTasks);
-            boolean newDeadTasks;
-            // go through this loop until there are no more deadTasks found.
-            // this also makes sure that tasks that have 'always' run dependency
-            // on a task will be in the correct state.
-            // unless we repeat on finding a dead task we may not be if the
-            // dependent
-            // task occurs later in tasksToBeRun list
-            do {
-                newDeadTasks = false;
-                for (PrioritizedTask task : eligibleTasks) {
-                    if (task == null) {
-                        // should never happen
-                        tasksToBeRun.remove(null);
-                    }
-                    // skip tasks that may be running (and thus have not release
-                    // their locks)
-                    else if (!tasksToBeRun.contains(task)) {
-                        continue;
-                    } else if (task.isReadyToRun()) {
-                        this.lastEligibleTask = new WeakReference<PrioritizedTask>(task);
-                        // exiting here may mean that tasks that are now "neverEligible" to
-                        // be run don't get a chance to set their "neverEligible" state. .. but
-                        // that should be o.k.
-                        return true;
-                    } else if (task.isNeverEligibleToRun()) {
-                        deadTasks.add(task);
-                        warning(task.getName()
-                                + ": Declaring itself never eligible to run. Moved to dead pool");
-                        newDeadTasks = true;
-                        tasksToBeRun.remove(task);
-                    } else if (task.isDone()) {
-                        // has a result without being run.
-                        // most such cases should be caught by above code.
-                        deadTasks.add(task);
-                        newDeadTasks = true;
-                        warning(task.getName() + ": has result but has never run. Moved to dead pile.");
-                        tasksToBeRun.remove(task);
-                    }
+            if (!pruneReadyTasks()) {
+                // pick up dependencies that completed outside of this TaskGroup.
+                recheckUnblockedTasks();
+                if (!pruneReadyTasks()) {
+                    return false;
                 }
-            } while (newDeadTasks);
-            return false;
+            }
+            this.lastEligibleTask = new WeakReference<PrioritizedTask>(readyTasks.peek());
+            return true;
         }
     }
 
-    public boolean isTaskGroupTasksComplete() {
-        boolean complete = this.runningTasks.isEmpty();
-        if ( complete ) {
-            synchronized (tasksToBeRun) {
-                if (!isTaskReady()) {
-                    complete = isEmpty();
-                } else {
-                    complete = false;
-                }
+    /**
+     * Removes tasks at the head of {@link #readyTasks} that are no longer ready to run.
+     * @return true if the head of {@link #readyTasks} can run.
+     */
+    private boolean pruneReadyTasks() {
+        PrioritizedTask task;
+        while ((task = readyTasks.peek()) != null) {
+            if (!task.isReadyToRun()) {
+                readyTasks.poll();
+                evaluateUnblockedTask(task);
+            } else if (!throttle(task)) {
+                return true;
             }
         }
-        return complete;
+        return false;
     }
 
     /**
-     * @return a task that is ready to run.
+     * If task needs a token from a rate limit that has none, move task from {@link #readyTasks} to
+     * {@link #throttledTasks} until a token should be available. Must hold the {@link #tasksToBeRun} monitor.
+     * @param task the head of {@link #readyTasks}.
+     * @return true if task was throttled.
      */
-    @SuppressWarnings("unchecked")
-    public PrioritizedTask nextTask() {
-        if (isShutdown()) {
-            throw new IllegalStateException("TaskGroup has been shutdown");
+    private boolean throttle(final PrioritizedTask task) {
+        long wait = 0;
+        for (TokenBucket tokenBucket : getRateLimits(task)) {
+            wait = Math.max(wait, tokenBucket.getNanosUntilAvailable());
         }
-        List<PrioritizedTask> eligibleTasks = resourceManager.getUnblockedTasks();
-        eligibleTasks.addAll(locklessTasks);
-        synchronized (tasksToBeRun) {
-            Collections.sort(eligibleTasks, taskComparator);
-            PrioritizedTask nextTask = null;
-            // skip tasks that may be running (and thus have not release their locks)
-            for (int i = 0; i < eligibleTasks.size(); i++) {
-                nextTask = eligibleTasks.get(i);
-                if (tasksToBeRun.contains(nextTask)) {
-                    break;
-                }
-            }
-            // Respect the order of the next two lines -- we never want either collection to both be empty
-            // if there is still tasks to be run.
-            runningTasks.add(nextTask);
-            tasksToBeRun.remove(nextTask);
-            synchronized (locklessTasks) {
-                locklessTasks.remove(nextTask);
-            }
-            return new TaskWrapper(nextTask) {
-                @Override
-                public void run() {
-                    taskStart(getWrappedTask());
-                    try {
-                        getWrappedTask().run();
-                    } finally {
-                        taskComplete(getWrappedTask());
-                    }
-                }
-            };
+        if (wait == 0) {
+            return false;
         }
+        readyTasks.poll();
+        throttledTasks.add(task);
+        getTimingWheel().schedule(new Runnable() {
+            public void run() {
+                unthrottle(task);
+            }
+        }, wait, NANOSECONDS);
+        return true;
     }
 
-    public void setTaskControl(TaskControl taskControl) {
-        // this is a potential threading problem if not checked for.
-        if (this.taskControl != null && taskControl != this.taskControl) {
-            throw new IllegalStateException("TaskGroup: '" + getName() + "' already assigned to '" + taskControl.toString() + "'");
+    /**
+     * Called by the {@link TimingWheel} when a token should be available for a throttled task.
+     * @param task
+     */
+    private void unthrottle(PrioritizedTask task) {
+        synchronized (tasksToBeRun) {
+            // a blocked task is picked up again when the locks it is waiting for are released.
+            if (throttledTasks.remove(task) && tasksToBeRun.contains(task)
+                && (!task.hasLocks() || resourceManager.isTaskUnblocked(task))) {
+                evaluateUnblockedTask(task);
+            }
         }
-        this.taskControl = taskControl;
+        stateChanged();
     }
 
-    public TaskControl getTaskControl() {
-        return taskControl;
+    /**
+     * @param task
+     * @return the rate limits on the resources task locks, including the ancestors of hierarchical resource names.
+     */
+    private List<TokenBucket> getRateLimits(PrioritizedTask task) {
+        if (rateLimits.isEmpty() || !task.hasLocks()) {
+            return Collections.emptyList();
+        }
+        List<TokenBucket> tokenBuckets = new ArrayList<TokenBucket>();
+        for (ResourceLock lock : task.getResourceLocksNeeded()) {
+            // subtasks do not always have intention locks on the ancestors, so walk up the names.
+            String resourceName = lock.getResourceName();
+            for (; resourceName != null; resourceName = ResourceLock.getParentResourceName(resourceName)) {
+                TokenBucket tokenBucket = rateLimits.get(resourceName);
+                if (tokenBucket != null && !tokenBuckets.contains(tokenBucket)) {
+                    tokenBuckets.add(tokenBucket);
+                }
+            }
+        }
+        return tokenBuckets;
     }
 
     /**
-     * Called when the task group is being prepared to be run. All last minute
-     * initializations should occur here (for example getting database
-     * connections)
-     * @return true if the taskGroup can run, false if the TaskGroup should not be run.
+     * Called by tasks when their dependencies have completed. May be called from any thread.
+     * @param task
      */
-    public boolean prepareToRun() {
-        if ( isEmpty()) {
-            this.result.set(null);
-            return false;
-        } else {
-            return true;
-        }
+    void dependenciesChanged(PrioritizedTask task) {
+        dependencyChangedTasks.add(task);
+        stateChanged();
     }
 
-    public boolean isEmpty() {
-        return this.tasksToBeRun.isEmpty();
+    /**
+     * Move unblocked tasks that are now ready into {@link #readyTasks}. Only the tasks that have reported that their
+     * dependencies have changed and the tasks that must be polled are checked. Repeat until there are no more
+     * deadTasks found. This also makes sure that tasks that have 'always' run dependency on a task will be in the
+     * correct state.
+     */
+    private void recheckUnblockedTasks() {
+        boolean newDeadTasks;
+        do {
+            newDeadTasks = false;
+            PrioritizedTask task;
+            while ((task = dependencyChangedTasks.poll()) != null) {
+                if (unblockedTasks.contains(task)) {
+                    evaluateUnblockedTask(task);
+                }
+            }
+            for (PrioritizedTask polledTask : new ArrayList<PrioritizedTask>(polledTasks)) {
+                if (unblockedTasks.contains(polledTask)) {
+                    newDeadTasks |= evaluateUnblockedTask(polledTask);
+                }
+            }
+        } while (newDeadTasks || !dependencyChangedTasks.isEmpty());
     }
 
     /**
-     * Called when no more tasks from this TaskGroup will be executed.
-     * @param dumpStats should the TaskGroup execution information be dumped?
-     *
+     * Set the critical path of a task that has just been added and lengthen the critical paths of the unfinished tasks
+     * it depends on. Tasks already in {@link #readyTasks} are requeued when their critical path changes.
+     * Must hold the {@link #tasksToBeRun} monitor.
+     * @param task
      */
-    public void shutdownNow(boolean dumpStats) {
-        if (isShutdown()) {
-            // already been told to shutdown
+    private void updateCriticalPaths(PrioritizedTask task) {
+        TaskDurationHistory history = this.taskDurationHistory;
+        if (history == null || !(task instanceof DefaultPrioritizedTask)) {
             return;
         }
-
-        synchronized (tasksToBeRun) {
-            this.shutdownTaskGroup.countDown();
-            if (deadTasks.size() != 0) {
-                String msg = getDeadTaskStr();
-                warning(deadTasks.size() + " tasks were DOA :\n" + msg);
+        long downstream = 0;
+        if (task instanceof DefaultDependentPrioritizedTask) {
+            // usually none, unless dependencies were added to tasks already in the TaskGroup.
+            for (DependentPrioritizedTask dependent : ((DefaultDependentPrioritizedTask<?>) task).getDependentTasks()) {
+                if (tasksToBeRun.contains(dependent)) {
+                    downstream = Math.max(downstream, dependent.getCriticalPath());
+                }
+            }
+        }
+        ((DefaultPrioritizedTask<?>) task).setCriticalPath(history.getEstimate(task) + downstream);
+        Queue<PrioritizedTask> changed = new ArrayDeque<PrioritizedTask>();
+        changed.add(task);
+        PrioritizedTask current;
+        while ((current = changed.poll()) != null) {
+            if (!(current instanceof DefaultDependentPrioritizedTask)) {
+                continue;
+            }
+            for (FutureResult<?> dependency : ((DefaultDependentPrioritizedTask<?>) current).getDependencies()) {
+                // running and finished tasks, and tasks in other TaskGroups, are left alone.
+                if (dependency instanceof DefaultPrioritizedTask && tasksToBeRun.contains(dependency)) {
+                    DefaultPrioritizedTask<?> upstream = (DefaultPrioritizedTask<?>) dependency;
+                    long criticalPath = history.getEstimate(upstream) + current.getCriticalPath();
+                    if (criticalPath > upstream.getCriticalPath()) {
+                        boolean queued = readyTasks.remove(upstream);
+                        upstream.setCriticalPath(criticalPath);
+                        if (queued) {
+                            readyTasks.add(upstream);
+                        }
+                        changed.add(upstream);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Raise the {@link PrioritizedTask#getEffectivePriority()} of the unstarted tasks holding up the resource locks of
+     * a task that has just been added, and of the tasks holding up those tasks, to the added task's priority. A task
+     * keeps its inherited priority until it runs. Tasks already in {@link #readyTasks}, or already handed to the
+     * {@link TaskControl} but not started, are requeued when their priority changes. Must hold the
+     * {@link #tasksToBeRun} monitor.
+     * @param task
+     */
+    private void inheritPriority(PrioritizedTask task) {
+        if (!(task instanceof DependentPrioritizedTask) || task.getEffectivePriority() <= Thread.MIN_PRIORITY
+            || resourceManager.isTaskUnblocked(task)) {
+            return;
+        }
+        Queue<DependentPrioritizedTask> changed = new ArrayDeque<DependentPrioritizedTask>();
+        changed.add((DependentPrioritizedTask) task);
+        DependentPrioritizedTask current;
+        while ((current = changed.poll()) != null) {
+            int priority = current.getEffectivePriority();
+            for (ResourceLocker blocker : resourceManager.getDependentTasks(current, true)) {
+                // finished tasks, and tasks in other TaskGroups, are left alone. A task taken by nextTask() may still
+                // be waiting for a worker.
+                if (blocker instanceof DefaultPrioritizedTask && isUnfinished((PrioritizedTask) blocker)) {
+                    DefaultPrioritizedTask<?> holder = (DefaultPrioritizedTask<?>) blocker;
+                    if (priority > holder.getEffectivePriority()) {
+                        boolean queued = readyTasks.remove(holder);
+                        if (queued || getTaskControl() == null) {
+                            holder.setInheritedPriority(priority);
+                        } else {
+                            // may already be waiting in the TaskControl's queue.
+                            getTaskControl().setInheritedPriority(holder, priority);
+                        }
+                        if (queued) {
+                            readyTasks.add(holder);
+                        } else if (holder instanceof DependentPrioritizedTask && !resourceManager.isTaskUnblocked(holder)) {
+                            changed.add((DependentPrioritizedTask) holder);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeUnblockedTask(PrioritizedTask task) {
+        unblockedTasks.remove(task);
+        polledTasks.remove(task);
+    }
+
+    /**
+     * @param task
+     * @return true if the task can not report when it becomes ready to run.
+     */
+    private boolean isPollingNeeded(PrioritizedTask task) {
+        return !(task instanceof DefaultDependentPrioritizedTask)
+            || ((DefaultDependentPrioritizedTask<?>) task).isDependencyPollingNeeded();
+    }
+
+    /**
+     * A subtask's locks may be inserted in front of tasks that were already unblocked. Only the tasks that the
+     * {@link ResourceLockManager} reports as having lost a lock are checked.
+     */
+    private void recheckBlockedTasks() {
+        for (ResourceLocker candidate : resourceManager.drainBlockedTasks()) {
+            PrioritizedTask task = (PrioritizedTask) candidate;
+            if (!resourceManager.isTaskUnblocked(task)) {
+                readyTasks.remove(task);
+                removeUnblockedTask(task);
+            }
+        }
+    }
+
+    /**
+     * @param candidates tasks that may no longer be blocked by resource locks.
+     */
+    private void addUnblockedCandidates(Collection<ResourceLocker> candidates) {
+        for (ResourceLocker candidate : candidates) {
+            // skip tasks that may be running (and thus have not release their locks)
+            if (tasksToBeRun.contains(candidate) && !readyTasks.contains(candidate)
+                    && !throttledTasks.contains(candidate) && resourceManager.isTaskUnblocked(candidate)) {
+                unblockedTasks.add((PrioritizedTask) candidate);
+                dependencyChangedTasks.add((PrioritizedTask) candidate);
+            }
+        }
+    }
+
+    /**
+     * @param task a task in {@link #tasksToBeRun} that is not blocked by resource locks.
+     * @return true if the task was moved to {@link #deadTasks}.
+     */
+    private boolean evaluateUnblockedTask(PrioritizedTask task) {
+        if (task.isReadyToRun()) {
+            removeUnblockedTask(task);
+            readyTasks.add(task);
+            return false;
+        } else if (task.isNeverEligibleToRun()) {
+            addDeadTask(task, ": Declaring itself never eligible to run. Moved to dead pool");
+            return true;
+        } else if (task.isDone()) {
+            // has a result without being run.
+            // most such cases should be caught by above code.
+            addDeadTask(task, ": has result but has never run. Moved to dead pile.");
+            return true;
+        } else {
+            unblockedTasks.add(task);
+            if (isPollingNeeded(task)) {
+                polledTasks.add(task);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The dead task's locks are released so tasks waiting only on those locks can run.
+     */
+    private void addDeadTask(PrioritizedTask task, String reason) {
+        deadTasks.add(task);
+        warning(task.getName() + reason);
+        if (tasksToBeRun.remove(task)) {
+            unfinishedTasks.decrementAndGet();
+            this.capacity.release(1);
+        }
+        barrierMemberDone(task);
+        removeUnblockedTask(task);
+        if (task.hasLocks()) {
+            resourceManager.releaseTaskLocks(task);
+            addUnblockedCandidates(resourceManager.drainUnblockedTasks());
+        }
+    }
+
+    /**
+     * @return true if every task added has completed or will never run.
+     */
+    public boolean isTaskGroupTasksComplete() {
+        return unfinishedTasks.get() == 0;
+    }
+
+    /**
+     * @return a task that is ready to run, null if {@link #isTaskReady()} is false.
+     */
+    public PrioritizedTask nextTask() {
+        if (isShutdown()) {
+            throw new IllegalStateException("TaskGroup has been shutdown");
+        }
+        synchronized (tasksToBeRun) {
+            if (!pruneReadyTasks()) {
+                return null;
+            }
+            PrioritizedTask nextTask = readyTasks.poll();
+            for (TokenBucket tokenBucket : getRateLimits(nextTask)) {
+                tokenBucket.acquire();
+            }
+            // Respect the order of the next two lines -- we never want either collection to both be empty
+            // if there is still tasks to be run.
+            runningTasks.add(nextTask);
+            tasksToBeRun.remove(nextTask);
+            return new DispatchedTask(this, nextTask);
+        }
+    }
+
+    /**
+     * The single wrapper around a task taken by {@link TaskGroup#nextTask()}. Records the task's start and completion
+     * with the TaskGroup and, if the {@link TaskControl} runs it, with the TaskControl so that the TaskControl does
+     * not need to wrap the task again.
+     */
+    static final class DispatchedTask extends TaskWrapper {
+        private final TaskGroup<?> taskGroup;
+
+        private TaskControl taskControl;
+
+        private TaskGroupScheduler scheduler;
+
+        /**
+         * {@link System#nanoTime()} when handed to the TaskControl's executor, 0 if not timed.
+         */
+        private long dispatched;
+
+        DispatchedTask(TaskGroup<?> taskGroup, PrioritizedTask task) {
+            super(task);
+            this.taskGroup = taskGroup;
+        }
+
+        /**
+         * @param taskControl notified after the TaskGroup when the task completes.
+         * @param scheduler if not null, told the task's run time.
+         * @param timed measure the queue wait and run time.
+         * @return false if already being run by a TaskControl.
+         */
+        boolean setTaskControl(TaskControl taskControl, TaskGroupScheduler scheduler, boolean timed) {
+            if (this.taskControl != null) {
+                return false;
+            }
+            this.taskControl = taskControl;
+            this.scheduler = scheduler;
+            this.dispatched = timed ? System.nanoTime() : 0;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long start = dispatched != 0 ? System.nanoTime() : 0;
+            try {
+                taskGroup.taskStart(getWrappedTask());
+                TaskExecutionWatch watch = taskGroup.startWatch(getWrappedTask());
+                TaskHedge hedge = taskGroup.startHedge(getWrappedTask());
+                try {
+                    getWrappedTask().run();
+                } finally {
+                    if (hedge != null) {
+                        hedge.originalFinished();
+                    }
+                    if (watch != null) {
+                        watch.finish();
+                    }
+                    taskGroup.taskComplete(getWrappedTask());
+                }
+            } finally {
+                if (taskControl != null) {
+                    if (dispatched != 0) {
+                        taskControl.taskComplete(this, scheduler, start - dispatched, System.nanoTime() - start);
+                    } else {
+                        taskControl.taskComplete(this, scheduler, 0, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    public void setTaskControl(TaskControl taskControl) {
+        // this is a potential threading problem if not checked for.
+        if (this.taskControl != null && taskControl != this.taskControl) {
+            throw new IllegalStateException("TaskGroup: '" + getName() + "' already assigned to '" + taskControl.toString() + "'");
+        }
+        this.taskControl = taskControl;
+        if (taskControl != null) {
+            this.capacity.setParent(taskControl.getTaskCapacity());
+        }
+        TaskGroupGenerator generator = this.taskGroupGenerator;
+        if (generator != null) {
+            generator.setTaskControl(taskControl);
+        }
+    }
+
+    public TaskControl getTaskControl() {
+        return taskControl;
+    }
+
+    /**
+     * Called when the task group is being prepared to be run. All last minute
+     * initializations should occur here (for example getting database
+     * connections)
+     * @return true if the taskGroup can run, false if the TaskGroup should not be run.
+     */
+    public boolean prepareToRun() {
+        generateTasks();
+        // unfinishedTasks also counts the generator and timers.
+        if ( isEmpty() && unfinishedTasks.get() == 0) {
+            this.result.set(null);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.tasksToBeRun.isEmpty();
+    }
+
+    /**
+     * Called when no more tasks from this TaskGroup will be executed.
+     * @param dumpStats should the TaskGroup execution information be dumped?
+     *
+     */
+    public void shutdownNow(boolean dumpStats) {
+        if (isShutdown()) {
+            // already been told to shutdown
+            return;
+        }
+
+        synchronized (tasksToBeRun) {
+            this.shutdownTaskGroup.countDown();
+            if (deadTasks.size() != 0) {
+                String msg = getDeadTaskStr();
+                warning(deadTasks.size() + " tasks were DOA :\n" + msg);
             }
             if (tasksToBeRun.size() != 0) {
                 String msg = getUnrunTasksListStr();
@@ -527,7 +1225,20 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
      *
      */
     public void clear() {
-        tasksToBeRun.clear();
+        TaskGroupGenerator generator = this.taskGroupGenerator;
+        if (generator != null) {
+            generatorExhausted(generator);
+        }
+        synchronized (tasksToBeRun) {
+            unfinishedTasks.addAndGet(-tasksToBeRun.size());
+            this.capacity.release(tasksToBeRun.size());
+            tasksToBeRun.clear();
+            unbarrieredTasks.clear();
+            unblockedTasks.clear();
+            polledTasks.clear();
+            readyTasks.clear();
+            throttledTasks.clear();
+        }
     }
 
     /**
@@ -675,18 +1386,48 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
      * used by tasks that are created by other tasks to make sure that all tasks
      * dependent on parent are dependent on subtask as well.
      *
+     * The subtask never waits for or is rejected by the capacity: parent is usually running and holding a place,
+     * so at capacity it would wait for itself to finish.
+     *
      * @param parent
      * @param task
      */
     public void addSubtask(DependentPrioritizedTask parent,
             DependentPrioritizedTask task) {
+        if (task.isDone()) {
+            throw new IllegalStateException(task + ": Task already has a result.");
+        }
         inheritDependentsOnParent(parent, task);
-        addTask(task);
+        // a barrier waiting for parent also waits for its subtasks.
+        TaskBarrier barrier = barrierMembers.get(parent);
+        if (barrier != null && barrier.addMember(task)) {
+            barrierMembers.put(task, barrier);
+        }
+        this.capacity.acquireOverCapacity(1);
+        try {
+            addAcquiredTask(task, null);
+        } catch (RuntimeException e) {
+            barrierMemberDone(task);
+            throw e;
+        }
     }
 
+    /**
+     * Only the tasks known to depend on parent are looked at when parent keeps track of them (see
+     * {@link DefaultDependentPrioritizedTask#getDependentTasks()}), otherwise all the tasks to be run are checked.
+     */
     private void inheritDependentsOnParent(DependentPrioritizedTask parent, DependentPrioritizedTask task) {
         synchronized (tasksToBeRun) {
-            for (PrioritizedTask element : tasksToBeRun) {
+            Collection<? extends PrioritizedTask> candidates;
+            if (parent instanceof DefaultDependentPrioritizedTask) {
+                candidates = ((DefaultDependentPrioritizedTask<?>) parent).getDependentTasks();
+            } else {
+                candidates = tasksToBeRun;
+            }
+            for (PrioritizedTask element : candidates) {
+                if (candidates != tasksToBeRun && !tasksToBeRun.contains(element)) {
+                    continue;
+                }
                 DependentPrioritizedTask depTask =
                     (DependentPrioritizedTask) element;
                 if (depTask.isSuccessDependentOn(parent)) {
@@ -700,22 +1441,94 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
 
     /**
      * Create a dependency to all tasks currently registered with this
-     * TaskGroup.
+     * TaskGroup. The dependency is on a {@link TaskBarrier} so only one dependency is added no matter how many
+     * tasks there are.
      *
      * @param task
      * @param alwaysDependency
      */
     protected void addTaskDependencies(DependentPrioritizedTask task, boolean alwaysDependency) {
+        TaskBarrier barrier = newBarrier();
+        if (alwaysDependency) {
+            task.addAlwaysDependency(barrier.getCompletion());
+        } else {
+            task.addDependency(barrier.getSuccess());
+        }
+    }
+
+    /**
+     * Create a barrier that completes when all the tasks added to this TaskGroup so far, and their subtasks, have
+     * completed. Each barrier waits for the previous barrier so only the tasks added since then need to be
+     * looked at.
+     *
+     * @return the new barrier.
+     */
+    public TaskBarrier newBarrier() {
         synchronized (tasksToBeRun) {
-            for (PrioritizedTask depTask : tasksToBeRun) {
-                if (alwaysDependency) {
-                    task.addAlwaysDependency(depTask);
-                } else {
-                    task.addDependency(depTask);
+            TaskBarrier barrier = new TaskBarrier(getName() + ":barrier" + (++barrierCount));
+            if (lastBarrier != null) {
+                barrier.follow(lastBarrier);
+            }
+            for (PrioritizedTask task : unbarrieredTasks) {
+                // subtasks may already be waited for by the barrier their parent is in.
+                if (isUnfinished(task) && !barrierMembers.containsKey(task) && barrier.addMember(task)) {
+                    barrierMembers.put(task, barrier);
+                    // task may have completed before it was a member.
+                    if (!isUnfinished(task)) {
+                        barrierMemberDone(task);
+                    }
+                }
+            }
+            unbarrieredTasks.clear();
+            unbarrieredPruneSize = UNBARRIERED_PRUNE_SIZE;
+            lastBarrier = barrier;
+            barrier.seal();
+            return barrier;
+        }
+    }
+
+    /**
+     * Called with {@link #tasksToBeRun} locked.
+     * @param task
+     */
+    private void addUnbarrieredTask(PrioritizedTask task) {
+        unbarrieredTasks.add(task);
+        if (unbarrieredTasks.size() >= unbarrieredPruneSize) {
+            // when barriers are not used, do not hold on to every task that was ever added.
+            int kept = 0;
+            for (PrioritizedTask unbarriered : unbarrieredTasks) {
+                if (isUnfinished(unbarriered)) {
+                    unbarrieredTasks.set(kept++, unbarriered);
                 }
             }
+            unbarrieredTasks.subList(kept, unbarrieredTasks.size()).clear();
+            unbarrieredPruneSize = Math.max(UNBARRIERED_PRUNE_SIZE, kept * 2);
         }
-    }
+    }
+
+    /**
+     * Called with {@link #tasksToBeRun} locked.
+     * @param task
+     * @return true if task is waiting to run or running.
+     */
+    private boolean isUnfinished(PrioritizedTask task) {
+        // nextTask() adds to runningTasks before removing from tasksToBeRun.
+        return tasksToBeRun.contains(task) || runningTasks.contains(task);
+    }
+
+    /**
+     * tell the barrier waiting for task, if any, that task is done.
+     * @param task
+     */
+    private void barrierMemberDone(PrioritizedTask task) {
+        if (!barrierMembers.isEmpty()) {
+            TaskBarrier barrier = barrierMembers.remove(task);
+            if (barrier != null) {
+                barrier.memberDone(task);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return getName();
@@ -751,6 +1564,520 @@ public class TaskGroup<T> implements NotificationObject, Emptyable {
         return groupLevelLock;
     }
 
+    /**
+     * @param capacity the maximum number of tasks that can be added and not yet finished, 0 (the default) for
+     * unbounded. Producers that would exceed it are handled according to the {@link #getCapacityPolicy()}.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity.setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return this.capacity.getCapacity();
+    }
+
+    /**
+     * @param capacityPolicy what to do with producers when at capacity, defaults to {@link TaskCapacityPolicy#block}.
+     */
+    public void setCapacityPolicy(TaskCapacityPolicy capacityPolicy) {
+        this.capacity.setPolicy(capacityPolicy);
+    }
+
+    public TaskCapacityPolicy getCapacityPolicy() {
+        return this.capacity.getPolicy();
+    }
+
+    /**
+     * @param timeout how long a producer waits with {@link TaskCapacityPolicy#blockWithTimeout}.
+     * @param unit
+     */
+    public void setCapacityTimeout(long timeout, TimeUnit unit) {
+        this.capacity.setTimeout(timeout, unit);
+    }
+
+    /**
+     * @return the number of tasks added that have not finished.
+     */
+    public int getUnfinishedTaskCount() {
+        return unfinishedTasks.get();
+    }
+
+    /**
+     * @param task added to this TaskGroup after delay.
+     * @param delay measured with this TaskGroup's {@link TimeServer}.
+     * @param unit
+     * @return used to cancel adding the task.
+     */
+    public TaskTimer schedule(PrioritizedTask task, long delay, TimeUnit unit) {
+        ApplicationIllegalArgumentException.notNull(task, "task");
+        return startTimer(new TaskTimer(this, task, getTimeServer().nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * @param taskFactory called to create a new task each period because a task only runs once.
+     * @param initialDelay until the first task is added.
+     * @param period between the tasks being added, measured from when the previous task was due.
+     * @param unit
+     * @return used to stop adding tasks. This TaskGroup does not complete until the timer is cancelled.
+     */
+    public TaskTimer schedulePeriodic(Callable<? extends PrioritizedTask> taskFactory, long initialDelay, long period,
+        TimeUnit unit) {
+        ApplicationIllegalArgumentException.notNull(taskFactory, "taskFactory");
+        ApplicationIllegalArgumentException.valid(period > 0, "period must be positive: ", period);
+        return startTimer(new TaskTimer(this, taskFactory, getTimeServer().nanoTime() + unit.toNanos(initialDelay),
+            unit.toNanos(period)));
+    }
+
+    private TaskTimer startTimer(TaskTimer taskTimer) {
+        unfinishedTasks.incrementAndGet();
+        taskTimer.start(getTimingWheel());
+        TaskControl control = this.taskControl;
+        if (control != null) {
+            // the dispatcher may need to wake up sooner.
+            control.stateChanged();
+        }
+        return taskTimer;
+    }
+
+    /**
+     * called once by each {@link TaskTimer} when it is finished.
+     */
+    void timerFinished() {
+        unfinishedTaskDone();
+    }
+
+    /**
+     * @return the wheel the {@link TaskTimer}s are kept in, driven by this TaskGroup's {@link TimeServer}.
+     */
+    public TimingWheel getTimingWheel() {
+        TimingWheel wheel = this.timingWheel;
+        if (wheel == null) {
+            synchronized (tasksToBeRun) {
+                wheel = this.timingWheel;
+                if (wheel == null) {
+                    wheel = new TimingWheel(getTimeServer(), DEFAULT_TIMER_TICK_MILLIS, MILLISECONDS);
+                    this.timingWheel = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * Limit how often tasks locking resourceName are started, for example to avoid overrunning an external system
+     * that the resource stands for. Each task locking resourceName, or a resource whose name starts with resourceName
+     * and {@link ResourceLock#PATH_SEPARATOR}, takes a token from tokenBucket when it is started. Ready tasks without a
+     * token wait on the {@link #getTimingWheel()} while other tasks run. The limit applies to any lock type, so tasks
+     * can still run in parallel with non-exclusive locks.
+     * @param resourceName
+     * @param tokenBucket null to remove the limit. May be shared with other TaskGroups.
+     */
+    public void setRateLimit(String resourceName, TokenBucket tokenBucket) {
+        ApplicationIllegalArgumentException.notNull(resourceName, "resourceName");
+        // same as the ResourceLock resource names.
+        if (tokenBucket == null) {
+            this.rateLimits.remove(resourceName.toUpperCase());
+        } else {
+            this.rateLimits.put(resourceName.toUpperCase(), tokenBucket);
+        }
+    }
+
+    /**
+     * @param resourceName
+     * @param interval between tokens, measured with this TaskGroup's {@link TimeServer}.
+     * @param unit
+     * @param burst the most tasks that can be started at once after the resource has been idle.
+     * @return the limit that was set.
+     */
+    public TokenBucket setRateLimit(String resourceName, long interval, TimeUnit unit, long burst) {
+        TokenBucket tokenBucket = new TokenBucket(getTimeServer(), interval, unit, burst);
+        setRateLimit(resourceName, tokenBucket);
+        return tokenBucket;
+    }
+
+    public TokenBucket getRateLimit(String resourceName) {
+        return this.rateLimits.get(resourceName.toUpperCase());
+    }
+
+    /**
+     * @return the number of ready tasks waiting for a rate limit token.
+     */
+    public int getThrottledTaskCount() {
+        synchronized (tasksToBeRun) {
+            return this.throttledTasks.size();
+        }
+    }
+
+    /**
+     * @param timingWheel replaces the default wheel, for example to use a different tick. Must be set before any
+     * timers are scheduled.
+     */
+    public void setTimingWheel(TimingWheel timingWheel) {
+        ApplicationIllegalArgumentException.notNull(timingWheel, "timingWheel");
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * @param executionTimeout how long a task may run before the {@link TaskWatchdog} reports it as hung and applies
+     * the {@link #getTimeoutActions()}, 0 (the default) for no limit. Tasks can override this with
+     * {@link DefaultPrioritizedTask#setExecutionTimeout(long, TimeUnit)}.
+     * @param unit
+     */
+    public void setExecutionTimeout(long executionTimeout, TimeUnit unit) {
+        ApplicationIllegalArgumentException.valid(executionTimeout >= 0, "executionTimeout must not be negative: ",
+            executionTimeout);
+        this.executionTimeout = unit.toNanos(executionTimeout);
+    }
+
+    public long getExecutionTimeout(TimeUnit unit) {
+        return unit.convert(this.executionTimeout, NANOSECONDS);
+    }
+
+    /**
+     * @param timeoutActions what to do to a hung task, none to only report it. Default is
+     * {@link TaskTimeoutAction#interrupt}.
+     */
+    public void setTimeoutActions(TaskTimeoutAction... timeoutActions) {
+        Set<TaskTimeoutAction> actions = EnumSet.noneOf(TaskTimeoutAction.class);
+        Collections.addAll(actions, timeoutActions);
+        this.timeoutActions = Collections.unmodifiableSet(actions);
+    }
+
+    public Set<TaskTimeoutAction> getTimeoutActions() {
+        return this.timeoutActions;
+    }
+
+    /**
+     * @param taskWatchdog replaces the {@link TaskWatchdog#getSharedInstance()}.
+     */
+    public void setTaskWatchdog(TaskWatchdog taskWatchdog) {
+        ApplicationIllegalArgumentException.notNull(taskWatchdog, "taskWatchdog");
+        this.taskWatchdog = taskWatchdog;
+    }
+
+    public TaskWatchdog getTaskWatchdog() {
+        return this.taskWatchdog;
+    }
+
+    /**
+     * @return the reports of the tasks that ran longer than their execution timeout, oldest first.
+     */
+    public List<String> getHungTaskReports() {
+        return Collections.unmodifiableList(this.hungTaskReports);
+    }
+
+    /**
+     * Called on the thread about to run task.
+     * @param task
+     * @return null if task has no execution timeout.
+     */
+    private TaskExecutionWatch startWatch(PrioritizedTask task) {
+        long timeout = 0;
+        if (task instanceof DefaultPrioritizedTask) {
+            timeout = ((DefaultPrioritizedTask<?>) task).getExecutionTimeout(NANOSECONDS);
+        }
+        if (timeout == 0) {
+            timeout = this.executionTimeout;
+            if (timeout == 0) {
+                return null;
+            }
+        }
+        TaskExecutionWatch watch = new TaskExecutionWatch(this, task, timeout, this.timeoutActions);
+        watch.start(this.taskWatchdog);
+        return watch;
+    }
+
+    /**
+     * Called on the thread about to run task.
+     * @param task
+     * @return null if task is not to be hedged.
+     */
+    private TaskHedge startHedge(PrioritizedTask task) {
+        int percentile = this.hedgePercentile;
+        TaskDurationHistory history = this.taskDurationHistory;
+        if (percentile == 0 || history == null || !(task instanceof DefaultPrioritizedTask)
+            || !((DefaultPrioritizedTask<?>) task).isIdempotent()) {
+            return null;
+        }
+        long delay = history.getPercentile(task, percentile);
+        if (delay < 0) {
+            return null;
+        }
+        TaskHedge hedge = new TaskHedge(this, (DefaultPrioritizedTask<?>) task);
+        hedge.start(this.taskWatchdog, delay, MILLISECONDS);
+        return hedge;
+    }
+
+    /**
+     * Add the copy of a slow task made by a {@link TaskHedge}. Unlike {@link #addTask(PrioritizedTask)} this never
+     * waits for capacity, and the copy takes no locks because it runs under the locks of the original: the original
+     * waits for the copy to stop before its locks are released, see {@link TaskHedge#originalFinished()}.
+     * @param copy
+     */
+    void addHedgeTask(PrioritizedTask copy) {
+        copy.setNotification(this);
+        synchronized (tasksToBeRun) {
+            if (this.isShutdown()) {
+                return;
+            }
+            this.capacity.acquireOverCapacity(1);
+            tasksToBeRun.add(copy);
+            addUnbarrieredTask(copy);
+            unfinishedTasks.incrementAndGet();
+            copy.setTaskGroup(this);
+            evaluateUnblockedTask(copy);
+        }
+        hedgeCount.incrementAndGet();
+        stateChanged();
+    }
+
+    /**
+     * Opt-in speculative execution: when an idempotent task (see {@link DefaultPrioritizedTask#setIdempotent(boolean)})
+     * runs longer than hedgePercentile percent of its recent runs, a copy is run on the next free worker. The first
+     * to finish sets the task's result and the other is interrupted. An exception from the copy is ignored, an
+     * exception from the original is the result unless the copy has already succeeded. This keeps a few stragglers
+     * from holding up the whole TaskGroup. Needs a {@link TaskDurationHistory} with at least
+     * {@link TaskDurationHistory#MINIMUM_PERCENTILE_SAMPLES} runs of the task, and is limited by the resolution of
+     * the {@link TaskWatchdog}.
+     * @param hedgePercentile 1 to 100, 0 (the default) for no hedging.
+     */
+    public void setHedgePercentile(int hedgePercentile) {
+        ApplicationIllegalArgumentException.valid(hedgePercentile >= 0 && hedgePercentile <= 100,
+            "hedgePercentile must be from 0 to 100: ", hedgePercentile);
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getHedgePercentile() {
+        return this.hedgePercentile;
+    }
+
+    /**
+     * @return the number of copies of slow tasks that have been added.
+     */
+    public int getHedgeCount() {
+        return this.hedgeCount.get();
+    }
+
+    /**
+     * Report what task is holding, what thread has been doing and where it is now.
+     * @param task
+     * @param thread running task.
+     * @param elapsedNanos
+     * @param timeoutNanos
+     * @param actions about to be applied to task.
+     */
+    void hungTaskReport(PrioritizedTask task, Thread thread, long elapsedNanos, long timeoutNanos,
+            Set<TaskTimeoutAction> actions) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Hung task ").append(getTaskId(task)).append(" in TaskGroup ").append(getName());
+        sb.append(": running ").append(NANOSECONDS.toMillis(elapsedNanos)).append("ms (timeout ");
+        sb.append(NANOSECONDS.toMillis(timeoutNanos)).append("ms) on thread ").append(thread.getName());
+        sb.append(" status=").append(task.getStatus());
+        if (task.hasLocks()) {
+            sb.append(" locks=").append(task.getResourceLocksNeeded());
+        }
+        List<ThreadHistory> history = threadHistoryTracker.getThreadHistoryCopy(thread.getId());
+        if (history != null) {
+            sb.append("\n thread history:");
+            // newest first
+            for (ThreadHistory entry : history.subList(0, Math.min(HUNG_TASK_HISTORY, history.size()))) {
+                sb.append("\n  ").append(entry);
+            }
+        }
+        sb.append("\n stack:");
+        for (StackTraceElement element : thread.getStackTrace()) {
+            sb.append("\n  at ").append(element);
+        }
+        String report = sb.toString();
+        hungTaskReports.add(report);
+        warning(report);
+        threadHistoryTracker.addHistoryStatus(getTimeServer().currentTimeMillis(), thread.getId(), getTaskId(task),
+            "timed out", actions.toString());
+    }
+
+    /**
+     * Called by the {@link TaskWatchdog} after the hung task has been reported and interrupted if that is one of the
+     * actions.
+     * @param task
+     * @param actions
+     */
+    void taskTimedOut(PrioritizedTask task, Set<TaskTimeoutAction> actions) {
+        if (actions.contains(TaskTimeoutAction.failFuture)) {
+            ApplicationTimeoutException exception = new ApplicationTimeoutException(getTaskId(task)
+                + ": exceeded execution timeout");
+            if (task instanceof DefaultPrioritizedTask) {
+                ((DefaultPrioritizedTask<?>) task).setException(exception);
+            } else {
+                task.cancel(false);
+            }
+            setFirstException(exception);
+        }
+        if (actions.contains(TaskTimeoutAction.releaseLocks) && task.hasLocks()) {
+            resourceManager.releaseTaskLocks(task);
+            locksReleased();
+        }
+    }
+
+    /**
+     * Called by a running task that no longer needs lock, see {@link DefaultPrioritizedTask#releaseLock(String)}.
+     * @param lock
+     */
+    void releaseTaskLock(ResourceLock lock) {
+        resourceManager.releaseLock(lock);
+        locksReleased();
+    }
+
+    /**
+     * Called by a running task that needs less of lock, see {@link DefaultPrioritizedTask#downgradeLock(String, int)}.
+     * @param lock
+     * @param lockTypeMask
+     */
+    void downgradeTaskLock(ResourceLock lock, int lockTypeMask) {
+        resourceManager.downgradeLock(lock, lockTypeMask);
+        locksReleased();
+    }
+
+    /**
+     * Make the tasks that were waiting on locks released by a task that has not completed available to run now
+     * rather than when the task completes.
+     */
+    private void locksReleased() {
+        synchronized (tasksToBeRun) {
+            addUnblockedCandidates(resourceManager.drainUnblockedTasks());
+            recheckUnblockedTasks();
+        }
+        stateChanged();
+    }
+
+    /**
+     * @param taskDurationHistory records how long this TaskGroup's tasks take, and is used to estimate each added task's
+     * {@link PrioritizedTask#getCriticalPath()} for the {@link CriticalPathWorkItemComparator}. null (the default) to
+     * do neither. Set before adding tasks.
+     */
+    public void setTaskDurationHistory(TaskDurationHistory taskDurationHistory) {
+        this.taskDurationHistory = taskDurationHistory;
+    }
+
+    public TaskDurationHistory getTaskDurationHistory() {
+        return this.taskDurationHistory;
+    }
+
+    boolean hasPendingTimers() {
+        TimingWheel wheel = this.timingWheel;
+        return wheel != null && wheel.size() > 0;
+    }
+
+    /**
+     * Add the tasks of the timers that are due. Called by the {@link TaskControl}'s dispatcher.
+     * @return nanoseconds until timers should be checked again, {@link Long#MAX_VALUE} if there are none.
+     */
+    long advanceTimers() {
+        TimingWheel wheel = this.timingWheel;
+        if (wheel == null) {
+            return Long.MAX_VALUE;
+        }
+        wheel.advance();
+        return wheel.getNanosUntilNextTick();
+    }
+
+    /**
+     * Tasks are drawn from generator as they are needed rather than all being added up front, so only about
+     * highWaterMark tasks exist at once. The first tasks are drawn immediately. This TaskGroup is not complete
+     * until generator has no more tasks.
+     * @param generator
+     */
+    public void setTaskGroupGenerator(TaskGroupGenerator generator) {
+        ApplicationIllegalArgumentException.notNull(generator, "generator");
+        synchronized (tasksToBeRun) {
+            ApplicationIllegalArgumentException.valid(this.taskGroupGenerator == null, getName(),
+                ": already has a TaskGroupGenerator");
+            unfinishedTasks.incrementAndGet();
+            this.taskGroupGenerator = generator;
+        }
+        generator.setTaskControl(this.taskControl);
+        generateTasks();
+    }
+
+    public TaskGroupGenerator getTaskGroupGenerator() {
+        return taskGroupGenerator;
+    }
+
+    /**
+     * @param lowWaterMark more tasks are drawn from the {@link TaskGroupGenerator} when fewer are unfinished.
+     * @param highWaterMark tasks are drawn until this many are unfinished.
+     */
+    public void setWaterMarks(int lowWaterMark, int highWaterMark) {
+        ApplicationIllegalArgumentException.valid(lowWaterMark > 0, "lowWaterMark must be positive: ", lowWaterMark);
+        ApplicationIllegalArgumentException.valid(highWaterMark >= lowWaterMark,
+            "highWaterMark must be at least lowWaterMark: ", highWaterMark);
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @param weight relative share of worker time, must be at least 1.
+     * @see WeightedFairTaskGroupScheduler
+     */
+    public void setWeight(int weight) {
+        ApplicationIllegalArgumentException.valid(weight > 0, "weight must be positive: ", weight);
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Must be called before the {@link #getTimingWheel()} or any rate limit is created, as they keep the TimeServer
+     * they were created with.
+     * @param timeServer used to stamp {@link PrioritizedTask#getSubmitTime()}, the thread history and to check
+     * deadlines. Deadlines must be expressed in the same {@link TimeServer#nanoTime()}.
+     * @throws IllegalStateException if the timing wheel or a rate limit already exists.
+     */
+    public void setTimeServer(TimeServer timeServer) {
+        ApplicationIllegalArgumentException.notNull(timeServer, "timeServer");
+        if (this.timingWheel != null || !this.rateLimits.isEmpty()) {
+            throw new IllegalStateException("TaskGroup: '" + getName()
+                + "' the TimeServer can not be changed once timers or rate limits are in use");
+        }
+        this.timeServer = timeServer;
+        this.threadHistoryTracker.setTimeServer(timeServer);
+    }
+
+    public TimeServer getTimeServer() {
+        return timeServer;
+    }
+
+    /**
+     * @return number of completed tasks that had a {@link PrioritizedTask#getDeadline()}.
+     */
+    public int getDeadlineTaskCount() {
+        return deadlineTaskCount.get();
+    }
+
+    /**
+     * @return number of tasks that completed after their deadline.
+     */
+    public int getDeadlineMissCount() {
+        return deadlineMissCount.get();
+    }
+
+    /**
+     * @param unit
+     * @return the longest time a task completed after its deadline.
+     */
+    public long getMaxDeadlineLateness(TimeUnit unit) {
+        return unit.convert(maxDeadlineLateness.get(), NANOSECONDS);
+    }
+
     public void setStatsFileDirectory(String statsFileDirectory) {
         this.statsFileDirectory = statsFileDirectory;
     }
@@ -1,31 +1,53 @@
-/*
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not
- * use this file except in compliance with the License. You may obtain a copy
- * of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software distributed
- * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
- * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
- * the specific language governing permissions and limitations under the
- * License.
- */
-
-package com.sworddance.taskcontrol;
-
-/**
- * @author pmoore
- *
- */
-public abstract class TaskGroupGenerator implements Runnable {
-    protected TaskControl taskControl;
-
-    /**
-     * @param taskControl
-     */
-    public void setTaskControl(TaskControl taskControl) {
-        this.taskControl = taskControl;
-    }
-
-}
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.sworddance.taskcontrol;
+
+import java.util.List;
+
+/**
+ * Produces the tasks of a {@link TaskGroup}. Either {@link #run()} adds the tasks itself, or the generator is set with
+ * {@link TaskGroup#setTaskGroupGenerator(TaskGroupGenerator)} and the TaskGroup pulls tasks with
+ * {@link #generateTasks(int)} as it needs them so that only a window of the tasks exists at once.
+ *
+ * @author pmoore
+ *
+ */
+public abstract class TaskGroupGenerator implements Runnable {
+    protected TaskControl taskControl;
+
+    /**
+     * @param taskControl
+     */
+    public void setTaskControl(TaskControl taskControl) {
+        this.taskControl = taskControl;
+    }
+
+    /**
+     * Called by the TaskGroup, one call at a time, often from the thread that just completed a task.
+     *
+     * @param maxTasks the most tasks wanted.
+     * @return the next tasks, null when there are no more. An empty list means no tasks are available now; the
+     * TaskGroup asks again when one of its tasks completes, so only return an empty list while tasks are running.
+     */
+    public List<? extends PrioritizedTask> generateTasks(int maxTasks) {
+        return null;
+    }
+
+    /**
+     * Generators that only supply tasks through {@link #generateTasks(int)} do not need to do anything here.
+     */
+    public void run() {
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Collection;
+
+/**
+ * Chooses which {@link TaskGroup} a {@link TaskControl} dispatches the next task from when several TaskGroups have
+ * tasks ready to run. With a TaskGroupScheduler, the TaskControl only dispatches a task when there is a free worker
+ * so the ready tasks wait in their TaskGroups until the scheduler picks them.
+ *
+ * Called from the TaskControl dispatcher thread ({@link #selectTaskGroup(Collection)}) and from the worker threads
+ * ({@link #taskComplete(TaskGroup, long)}) so implementations must be thread-safe.
+ */
+public interface TaskGroupScheduler {
+    /**
+     * @param taskGroups the TaskGroups that have a task ready to run, never empty.
+     * @return the TaskGroup whose next task will be dispatched, must be one of taskGroups.
+     */
+    TaskGroup<?> selectTaskGroup(Collection<TaskGroup<?>> taskGroups);
+
+    /**
+     * A task dispatched from taskGroup has finished.
+     * @param taskGroup
+     * @param runTimeNanos how long the task ran.
+     */
+    void taskComplete(TaskGroup<?> taskGroup, long runTimeNanos);
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sworddance.scheduling.TimingWheel;
+
+/**
+ * One run of an idempotent task that may be hedged, see {@link TaskGroup#setHedgePercentile(int)}. Started on the
+ * thread running the task and {@link #originalFinished() finished} on that thread when the task returns. If the
+ * timer fires first, a copy of the task is added to the TaskGroup to run {@link DefaultPrioritizedTask#callBody()}
+ * again on the next free worker. The first run to finish sets the task's result and the other run is interrupted.
+ * Failures are not treated alike: an exception thrown by the original is the task's result, unless the copy already
+ * succeeded, while an exception thrown by the copy is dropped because the original may still succeed.
+ *
+ * The copy runs under the locks held by the original run, so when the original finishes first it waits for the
+ * interrupted copy to stop before the locks are released. As with {@link TaskExecutionWatch}, interrupting is done
+ * while holding this monitor so that a thread that has already moved on to another task is never interrupted.
+ */
+class TaskHedge implements Runnable {
+    private final TaskGroup<?> taskGroup;
+
+    private final DefaultPrioritizedTask<?> task;
+
+    private final Thread originalThread;
+
+    private TimingWheel.Timeout timeout;
+
+    private boolean launched;
+
+    private boolean originalFinished;
+
+    private boolean originalInterrupted;
+
+    /**
+     * the thread running the copy, null if the copy is not running.
+     */
+    private Thread copyThread;
+
+    TaskHedge(TaskGroup<?> taskGroup, DefaultPrioritizedTask<?> task) {
+        this.taskGroup = taskGroup;
+        this.task = task;
+        this.originalThread = Thread.currentThread();
+    }
+
+    void start(TaskWatchdog watchdog, long delay, TimeUnit unit) {
+        TimingWheel.Timeout t = watchdog.watch(this, delay, unit);
+        synchronized (this) {
+            this.timeout = t;
+        }
+    }
+
+    /**
+     * Called by the {@link TaskWatchdog} when the task has run longer than usual.
+     */
+    public void run() {
+        synchronized (this) {
+            if (this.originalFinished || this.launched) {
+                return;
+            }
+            this.launched = true;
+        }
+        DefaultPrioritizedTask<Object> copy = new DefaultPrioritizedTask<Object>(this.task.getName() + ":hedge",
+            new Runnable() {
+                public void run() {
+                    runCopy();
+                }
+            }, Thread.MAX_PRIORITY);
+        copy.releaseToRun();
+        this.taskGroup.addHedgeTask(copy);
+    }
+
+    /**
+     * Runs on the worker running the copy.
+     */
+    private void runCopy() {
+        synchronized (this) {
+            if (this.originalFinished) {
+                return;
+            }
+            this.copyThread = Thread.currentThread();
+        }
+        try {
+            if (this.task.hedge()) {
+                // the copy finished first.
+                interruptOriginal();
+            }
+        } finally {
+            synchronized (this) {
+                this.copyThread = null;
+                notifyAll();
+            }
+            // clear an interrupt from the original finishing first.
+            Thread.interrupted();
+        }
+    }
+
+    private synchronized void interruptOriginal() {
+        if (!this.originalFinished) {
+            this.originalThread.interrupt();
+            this.originalInterrupted = true;
+        }
+    }
+
+    /**
+     * Must be called on the thread that ran the task, before the task's locks are released. Returns once the copy is
+     * no longer running.
+     */
+    synchronized void originalFinished() {
+        this.originalFinished = true;
+        if (this.timeout != null) {
+            this.timeout.cancel();
+        }
+        boolean interrupted = false;
+        if (this.copyThread != null) {
+            // the original finished first.
+            this.copyThread.interrupt();
+            while (this.copyThread != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (this.originalInterrupted) {
+            Thread.interrupted();
+        } else if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+/**
+ * What the {@link TaskWatchdog} does to a task that has run longer than its execution timeout, see
+ * {@link TaskGroup#setExecutionTimeout(long, java.util.concurrent.TimeUnit)}. A hung task report is always logged.
+ */
+public enum TaskTimeoutAction {
+    /**
+     * interrupt the thread running the task. Only helps tasks that respond to interruption.
+     */
+    interrupt,
+    /**
+     * fail the task's future with a {@link com.sworddance.util.ApplicationTimeoutException} so that dependent tasks and
+     * the TaskGroup see the failure without waiting for the task to return.
+     */
+    failFuture,
+    /**
+     * release the task's {@link ResourceLock}s so that tasks waiting only on those locks can run. The task is no longer
+     * protected by its locks, so use only when the task is known to be stuck outside of the locked resources.
+     */
+    releaseLocks;
+}
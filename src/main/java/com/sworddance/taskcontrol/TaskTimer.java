@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sworddance.scheduling.TimingWheel;
+
+/**
+ * A delayed or periodic addition of tasks to a {@link TaskGroup}, see
+ * {@link TaskGroup#schedule(PrioritizedTask, long, java.util.concurrent.TimeUnit)} and
+ * {@link TaskGroup#schedulePeriodic(Callable, long, long, java.util.concurrent.TimeUnit)}. Until it is finished, the
+ * timer counts as an unfinished task of the TaskGroup so the TaskGroup does not complete early. A periodic timer
+ * is only finished when it is cancelled.
+ */
+public class TaskTimer implements Runnable {
+    private final TaskGroup<?> taskGroup;
+
+    private final PrioritizedTask task;
+
+    private final Callable<? extends PrioritizedTask> taskFactory;
+
+    private final long period;
+
+    private volatile long deadline;
+
+    private volatile TimingWheel.Timeout timeout;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    TaskTimer(TaskGroup<?> taskGroup, PrioritizedTask task, long deadline) {
+        this.taskGroup = taskGroup;
+        this.task = task;
+        this.taskFactory = null;
+        this.period = 0;
+        this.deadline = deadline;
+    }
+
+    TaskTimer(TaskGroup<?> taskGroup, Callable<? extends PrioritizedTask> taskFactory, long deadline, long period) {
+        this.taskGroup = taskGroup;
+        this.task = null;
+        this.taskFactory = taskFactory;
+        this.period = period;
+        this.deadline = deadline;
+    }
+
+    void start(TimingWheel timingWheel) {
+        this.timeout = timingWheel.schedule(this, this.deadline);
+    }
+
+    /**
+     * Called by the {@link TimingWheel} when the timer is due.
+     */
+    public void run() {
+        if (this.taskFactory == null) {
+            if (this.finished.compareAndSet(false, true)) {
+                try {
+                    this.taskGroup.addTask(this.task);
+                } finally {
+                    this.taskGroup.timerFinished();
+                }
+            }
+            return;
+        }
+        if (this.finished.get()) {
+            return;
+        }
+        PrioritizedTask next;
+        try {
+            next = this.taskFactory.call();
+        } catch (Exception e) {
+            this.taskGroup.warning(this + ": could not create the periodic task, timer cancelled. " + e);
+            this.cancel();
+            return;
+        }
+        // fixed rate: the period is measured from the previous deadline, not from when the timer actually ran.
+        this.deadline += this.period;
+        this.start(this.timeout.getTimingWheel());
+        if (this.finished.get()) {
+            // cancelled while the next timeout was being scheduled.
+            this.timeout.cancel();
+        }
+        this.taskGroup.addTask(next);
+    }
+
+    /**
+     * @return false if the timer had already finished.
+     */
+    public boolean cancel() {
+        if (!this.finished.compareAndSet(false, true)) {
+            return false;
+        }
+        this.timeout.cancel();
+        this.taskGroup.timerFinished();
+        return true;
+    }
+
+    /**
+     * @return true if the task has been added or the timer cancelled.
+     */
+    public boolean isFinished() {
+        return this.finished.get();
+    }
+
+    public boolean isPeriodic() {
+        return this.taskFactory != null;
+    }
+
+    /**
+     * @return the {@link com.sworddance.scheduling.TimeServer#nanoTime()} the timer is next due.
+     */
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    @Override
+    public String toString() {
+        return this.taskGroup.getName() + ":timer(" + (this.task != null ? this.task.getName() : this.taskFactory) + ")";
+    }
+}
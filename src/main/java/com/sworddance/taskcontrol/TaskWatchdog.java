@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sworddance.scheduling.TimeServer;
+import com.sworddance.scheduling.TimeServerImpl;
+import com.sworddance.scheduling.TimingWheel;
+
+/**
+ * A single daemon thread that runs the timeouts of the tasks being watched. Watching a task is a
+ * {@link TimingWheel} insert and finishing it a removal, so the watchdog can be shared by all the TaskGroups in the
+ * process, see {@link #getSharedInstance()}. Timeouts fire up to one tick late.
+ *
+ * The timeout handlers run on the watchdog thread and must not block.
+ */
+public class TaskWatchdog implements Runnable {
+    private static final TaskWatchdog SHARED = new TaskWatchdog(new TimeServerImpl(), 100, TimeUnit.MILLISECONDS);
+
+    private final TimingWheel timingWheel;
+
+    private Thread thread;
+
+    /**
+     * @param timeServer
+     * @param tickDuration how precisely timeouts are detected.
+     * @param unit
+     */
+    public TaskWatchdog(TimeServer timeServer, long tickDuration, TimeUnit unit) {
+        this.timingWheel = new TimingWheel(timeServer, tickDuration, unit);
+    }
+
+    /**
+     * @return the process wide watchdog, timeouts are detected within 100ms.
+     */
+    public static TaskWatchdog getSharedInstance() {
+        return SHARED;
+    }
+
+    /**
+     * @param onTimeout run on the watchdog thread if the returned timeout is not cancelled within timeout.
+     * @param timeout
+     * @param unit
+     * @return cancel when the watched task finishes.
+     */
+    public TimingWheel.Timeout watch(Runnable onTimeout, long timeout, TimeUnit unit) {
+        TimingWheel.Timeout result = this.timingWheel.schedule(onTimeout, timeout, unit);
+        synchronized (this) {
+            if (this.thread == null) {
+                this.thread = ThreadFactoryImpl.POOL.newThread(this);
+                this.thread.setName("TaskWatchdog");
+                this.thread.start();
+            } else {
+                this.notifyAll();
+                LockSupport.unpark(this.thread);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of watched tasks that have neither finished nor timed out.
+     */
+    public int size() {
+        return this.timingWheel.size();
+    }
+
+    /**
+     * Runs the timeouts as they come due; sleeps until a task is watched when there is nothing to watch.
+     */
+    public void run() {
+        while (true) {
+            this.timingWheel.advance();
+            synchronized (this) {
+                while (this.timingWheel.size() == 0) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        // the watchdog outlives any one TaskControl, keep watching.
+                    }
+                }
+            }
+            LockSupport.parkNanos(this.timingWheel.getNanosUntilNextTick());
+        }
+    }
+
+    public TimingWheel getTimingWheel() {
+        return this.timingWheel;
+    }
+}
@@ -103,6 +103,34 @@ public abstract class TaskWrapper implements PrioritizedTask {
         return getWrappedTask().getPriority();
     }
 
+    /**
+     * @see PrioritizedTask#getEffectivePriority()
+     */
+    public int getEffectivePriority() {
+        return getWrappedTask().getEffectivePriority();
+    }
+
+    /**
+     * @see PrioritizedTask#getDeadline()
+     */
+    public long getDeadline() {
+        return getWrappedTask().getDeadline();
+    }
+
+    /**
+     * @see PrioritizedTask#getSubmitTime()
+     */
+    public long getSubmitTime() {
+        return getWrappedTask().getSubmitTime();
+    }
+
+    /**
+     * @see PrioritizedTask#getCriticalPath()
+     */
+    public long getCriticalPath() {
+        return getWrappedTask().getCriticalPath();
+    }
+
     /**
      * @see PrioritizedTask#getStatus()
      */
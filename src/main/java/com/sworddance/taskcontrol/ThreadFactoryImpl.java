@@ -63,9 +63,18 @@ public class ThreadFactoryImpl implements ThreadFactory {
             }
         } catch (InterruptedException e) {
         }
+        Thread t = createThread(command);
+        registerThread(t);
+        return t;
+    }
+
+    /**
+     * @param command
+     * @return a new, unstarted daemon thread.
+     */
+    protected Thread createThread(Runnable command) {
         Thread t = new Thread(command);
         t.setDaemon(true);
-        registerThread(t);
         return t;
     }
     public Thread newThread(String threadName, Runnable command) {
@@ -76,7 +85,7 @@ public class ThreadFactoryImpl implements ThreadFactory {
     /**
      * @param t
      */
-    private void registerThread(Thread t) {
+    protected void registerThread(Thread t) {
         getThreads().add(t);
     }
 
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * An executor for {@link PrioritizedTask}s that runs every task on its own new thread. Intended for use with
+ * {@link VirtualThreadFactoryImpl}, where threads are cheap and a task blocked on I/O does not hold on to a platform
+ * thread.
+ *
+ * The number of tasks running at once is capped by a {@link Semaphore} rather than by the number of threads. Tasks
+ * that are submitted while all the permits are taken wait in a priority queue and are started in priority order as
+ * permits are released.
+ */
+public class ThreadPerTaskExecutor extends AbstractExecutorService {
+    private final ThreadFactory threadFactory;
+
+    private final PriorityBlockingQueue<PrioritizedTask> waitingTasks;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger runningTasks = new AtomicInteger();
+
+    private volatile boolean shutdown;
+
+    private final Lock terminationLock = new ReentrantLock();
+
+    private final Condition terminated = terminationLock.newCondition();
+
+    public ThreadPerTaskExecutor(Comparator<PrioritizedTask> comparator, int maxConcurrent, ThreadFactory threadFactory) {
+        ApplicationIllegalArgumentException.notNull(comparator, "comparator");
+        ApplicationIllegalArgumentException.notNull(threadFactory, "threadFactory");
+        this.threadFactory = threadFactory;
+        this.waitingTasks = new PriorityBlockingQueue<PrioritizedTask>(20, comparator);
+        this.permits = new Semaphore(Math.max(1, maxConcurrent));
+    }
+
+    /**
+     * @param command must be a {@link PrioritizedTask}
+     */
+    public void execute(Runnable command) {
+        ApplicationIllegalArgumentException.valid(command instanceof PrioritizedTask, command, " is not a PrioritizedTask");
+        if (shutdown) {
+            throw new RejectedExecutionException("executor has been shutdown");
+        }
+        waitingTasks.add((PrioritizedTask) command);
+        startWaitingTasks();
+    }
+
+    /**
+     * Start waiting tasks while there are permits available. Called after every submission and after every task
+     * completes so a task can not be left waiting while there is a free permit.
+     */
+    private void startWaitingTasks() {
+        while (!waitingTasks.isEmpty() && permits.tryAcquire()) {
+            final PrioritizedTask task = waitingTasks.poll();
+            if (task == null) {
+                // another thread took it.
+                permits.release();
+                continue;
+            }
+            runningTasks.incrementAndGet();
+            try {
+                threadFactory.newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            taskComplete();
+                        }
+                    }
+                }).start();
+            } catch (RuntimeException e) {
+                // could not create the thread, put the task back.
+                waitingTasks.add(task);
+                runningTasks.decrementAndGet();
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    private void taskComplete() {
+        runningTasks.decrementAndGet();
+        permits.release();
+        startWaitingTasks();
+        if (isTerminated()) {
+            terminationLock.lock();
+            try {
+                terminated.signalAll();
+            } finally {
+                terminationLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a permit.
+     */
+    public int getQueuedTaskCount() {
+        return waitingTasks.size();
+    }
+
+    /**
+     * Same as {@link java.util.concurrent.ThreadPoolExecutor#remove(Runnable)}.
+     * @param task
+     * @return true if task was waiting for a permit and has been removed, so it will not be run.
+     */
+    public boolean remove(Runnable task) {
+        return waitingTasks.remove(task);
+    }
+
+    /**
+     * @return the number of tasks running.
+     */
+    public int getRunningTaskCount() {
+        return runningTasks.get();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        terminationLock.lock();
+        try {
+            terminated.signalAll();
+        } finally {
+            terminationLock.unlock();
+        }
+    }
+
+    /**
+     * Running tasks are not interrupted, the threads are not tracked.
+     * @return the tasks that were waiting for a permit.
+     */
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        waitingTasks.drainTo(notRun);
+        return notRun;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return shutdown && runningTasks.get() == 0 && waitingTasks.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        terminationLock.lock();
+        try {
+            while (!isTerminated()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            terminationLock.unlock();
+        }
+    }
+}
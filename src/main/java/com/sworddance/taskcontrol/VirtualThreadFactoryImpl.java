@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ThreadFactoryImpl} that creates virtual threads. Virtual threads are cheap to create and do not pin a
+ * platform thread while blocked on I/O, so one can be created for every task.
+ *
+ * Virtual threads are only available on Java 21 and later. This class is compiled against the older API and reaches
+ * the virtual thread builder reflectively; use {@link #isSupported()} to check before creating one.
+ *
+ * Created threads are not added to {@link #getThreads()}: a thread per task would make the list grow without bound.
+ */
+public class VirtualThreadFactoryImpl extends ThreadFactoryImpl {
+    /**
+     * Thread.ofVirtual().factory(), which unlike the builder is thread safe.
+     */
+    private static final ThreadFactory VIRTUAL_THREADS;
+
+    static {
+        ThreadFactory virtualThreads;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualThreads = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // running on a jvm without virtual threads.
+            virtualThreads = null;
+        }
+        VIRTUAL_THREADS = virtualThreads;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if this jvm does not have virtual threads.
+     */
+    public VirtualThreadFactoryImpl() {
+        super();
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+        }
+    }
+
+    /**
+     * @return true if this jvm can create virtual threads.
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * @return a new, unstarted virtual thread. Virtual threads are always daemon threads.
+     */
+    @Override
+    protected Thread createThread(Runnable command) {
+        return VIRTUAL_THREADS.newThread(command);
+    }
+
+    @Override
+    protected void registerThread(Thread t) {
+        // not tracked
+    }
+}
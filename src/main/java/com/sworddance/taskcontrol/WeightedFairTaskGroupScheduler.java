@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Gives each {@link TaskGroup} a share of worker time proportional to its {@link TaskGroup#getWeight()}, using
+ * start-time fair queuing over measured task run times.
+ *
+ * Each TaskGroup has a virtual time: the worker time its tasks have used divided by its weight. The ready TaskGroup
+ * with the lowest virtual time is selected. Because a task's run time is only known when it finishes, the selected
+ * TaskGroup is charged the average run time of its tasks when the task is dispatched, and the difference is
+ * corrected when the task completes.
+ *
+ * A TaskGroup that had nothing to run does not bank credit while idle: its virtual time is brought up to the virtual
+ * time of the most recently selected TaskGroup. So a small interactive TaskGroup gets its tasks run promptly but a
+ * TaskGroup with 100k cheap tasks can not starve the others just by having more tasks.
+ */
+public class WeightedFairTaskGroupScheduler implements TaskGroupScheduler {
+    /**
+     * the run time assumed for a TaskGroup's tasks until one has finished.
+     */
+    private long initialRunTimeEstimate = MILLISECONDS.toNanos(1);
+
+    /**
+     * the start virtual time of the most recently selected TaskGroup.
+     */
+    private long virtualTime;
+
+    private final Map<TaskGroup<?>, Account> accounts = new WeakHashMap<TaskGroup<?>, Account>();
+
+    public synchronized TaskGroup<?> selectTaskGroup(Collection<TaskGroup<?>> taskGroups) {
+        TaskGroup<?> selected = null;
+        Account selectedAccount = null;
+        long selectedStart = Long.MAX_VALUE;
+        for (TaskGroup<?> taskGroup : taskGroups) {
+            Account account = getAccount(taskGroup);
+            long start = Math.max(account.virtualTime, this.virtualTime);
+            if (start < selectedStart) {
+                selected = taskGroup;
+                selectedAccount = account;
+                selectedStart = start;
+            }
+        }
+        if (selected != null) {
+            this.virtualTime = selectedStart;
+            selectedAccount.virtualTime = selectedStart + selectedAccount.averageRunTime / weight(selected);
+        }
+        return selected;
+    }
+
+    public synchronized void taskComplete(TaskGroup<?> taskGroup, long runTimeNanos) {
+        Account account = getAccount(taskGroup);
+        account.virtualTime += (runTimeNanos - account.averageRunTime) / weight(taskGroup);
+        // exponentially weighted, new measurement counts for 1/8
+        account.averageRunTime += (runTimeNanos - account.averageRunTime) / 8;
+    }
+
+    /**
+     * @param taskGroup
+     * @return taskGroup's virtual time in nanoseconds divided by weight.
+     */
+    public synchronized long getVirtualTime(TaskGroup<?> taskGroup) {
+        return getAccount(taskGroup).virtualTime;
+    }
+
+    public synchronized void setInitialRunTimeEstimate(long initialRunTimeEstimate, TimeUnit unit) {
+        this.initialRunTimeEstimate = unit.toNanos(initialRunTimeEstimate);
+    }
+
+    public synchronized long getInitialRunTimeEstimate() {
+        return this.initialRunTimeEstimate;
+    }
+
+    private Account getAccount(TaskGroup<?> taskGroup) {
+        Account account = this.accounts.get(taskGroup);
+        if (account == null) {
+            account = new Account();
+            account.virtualTime = this.virtualTime;
+            account.averageRunTime = this.initialRunTimeEstimate;
+            this.accounts.put(taskGroup, account);
+        }
+        return account;
+    }
+
+    private static long weight(TaskGroup<?> taskGroup) {
+        return Math.max(1, taskGroup.getWeight());
+    }
+
+    private static class Account {
+        private long virtualTime;
+
+        private long averageRunTime;
+    }
+}
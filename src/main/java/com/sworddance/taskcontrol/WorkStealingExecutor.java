@@ -0,0 +1,310 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * An executor for {@link PrioritizedTask}s where each worker thread has its own priority queue. A worker runs the
+ * highest priority task in its own queue. When its queue is empty, the worker steals the task that has the highest
+ * priority among the heads of the other workers' queues. Submissions from a worker thread go to that worker's queue;
+ * all other submissions are distributed round robin.
+ *
+ * The priority order is exact within a worker's queue and approximate across the workers. In exchange, submitting and
+ * taking tasks only contends on a single worker's queue rather than on one queue shared by all the workers.
+ *
+ * The worker threads are all started on the first submission.
+ */
+public class WorkStealingExecutor extends AbstractExecutorService {
+    private final Comparator<PrioritizedTask> comparator;
+
+    private final ThreadFactory threadFactory;
+
+    private final Worker[] workers;
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /**
+     * the number of tasks waiting in the worker queues.
+     */
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private volatile boolean shutdown;
+
+    private final CountDownLatch terminated;
+
+    /**
+     * idle workers wait on workAvailable. Only used when there are idle workers.
+     */
+    private final Lock idleLock = new ReentrantLock();
+
+    private final Condition workAvailable = idleLock.newCondition();
+
+    private volatile int idleWorkers;
+
+    public WorkStealingExecutor(Comparator<PrioritizedTask> comparator, int threads, ThreadFactory threadFactory) {
+        ApplicationIllegalArgumentException.notNull(comparator, "comparator");
+        ApplicationIllegalArgumentException.notNull(threadFactory, "threadFactory");
+        this.comparator = comparator;
+        this.threadFactory = threadFactory;
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Worker();
+        }
+        this.terminated = new CountDownLatch(this.workers.length);
+    }
+
+    /**
+     * @param command must be a {@link PrioritizedTask}
+     */
+    public void execute(Runnable command) {
+        ApplicationIllegalArgumentException.valid(command instanceof PrioritizedTask, command, " is not a PrioritizedTask");
+        if (shutdown) {
+            throw new RejectedExecutionException("executor has been shutdown");
+        }
+        startWorkers();
+        Worker worker = currentWorker();
+        if (worker == null) {
+            worker = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+        }
+        worker.push((PrioritizedTask) command);
+        queuedTasks.incrementAndGet();
+        if (idleWorkers > 0) {
+            idleLock.lock();
+            try {
+                workAvailable.signal();
+            } finally {
+                idleLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks that have been submitted but not yet started.
+     */
+    public int getQueuedTaskCount() {
+        return queuedTasks.get();
+    }
+
+    /**
+     * Same as {@link java.util.concurrent.ThreadPoolExecutor#remove(Runnable)}.
+     * @param task
+     * @return true if task was waiting in a worker queue and has been removed, so it will not be run.
+     */
+    public boolean remove(Runnable task) {
+        for (Worker worker : workers) {
+            if (worker.remove(task)) {
+                queuedTasks.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        if (started.compareAndSet(false, true)) {
+            // no worker threads were ever started.
+            for (int i = 0; i < workers.length; i++) {
+                terminated.countDown();
+            }
+        }
+        idleLock.lock();
+        try {
+            workAvailable.signalAll();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        List<Runnable> notRun = new ArrayList<Runnable>();
+        for (Worker worker : workers) {
+            worker.drainTo(notRun);
+            if (worker.thread != null) {
+                worker.thread.interrupt();
+            }
+        }
+        return notRun;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private void startWorkers() {
+        if (started.compareAndSet(false, true)) {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i].start();
+            }
+        }
+    }
+
+    private Worker currentWorker() {
+        Thread current = Thread.currentThread();
+        for (Worker worker : workers) {
+            if (worker.thread == current) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param thief
+     * @return the highest priority task at the head of the other workers' queues.
+     */
+    private PrioritizedTask steal(Worker thief) {
+        while (queuedTasks.get() > 0) {
+            Worker victim = null;
+            PrioritizedTask best = null;
+            for (Worker worker : workers) {
+                if (worker != thief) {
+                    PrioritizedTask head = worker.peek();
+                    if (head != null && (best == null || comparator.compare(head, best) < 0)) {
+                        best = head;
+                        victim = worker;
+                    }
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            PrioritizedTask task = victim.poll();
+            if (task != null) {
+                return task;
+            }
+            // lost a race with the victim or another thief, look again.
+        }
+        return null;
+    }
+
+    /**
+     * wait until there are queued tasks or the executor is shutdown.
+     * @throws InterruptedException
+     */
+    private void awaitWork() throws InterruptedException {
+        idleLock.lock();
+        try {
+            // idleWorkers must be incremented before checking queuedTasks; execute() does the reverse.
+            idleWorkers++;
+            while (queuedTasks.get() == 0 && !shutdown) {
+                workAvailable.await();
+            }
+        } finally {
+            idleWorkers--;
+            idleLock.unlock();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final PriorityQueue<PrioritizedTask> tasks = new PriorityQueue<PrioritizedTask>(11, comparator);
+
+        private volatile Thread thread;
+
+        void start() {
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+
+        synchronized void push(PrioritizedTask task) {
+            tasks.add(task);
+        }
+
+        synchronized PrioritizedTask peek() {
+            return tasks.peek();
+        }
+
+        synchronized PrioritizedTask poll() {
+            return tasks.poll();
+        }
+
+        synchronized boolean remove(Runnable task) {
+            return tasks.remove(task);
+        }
+
+        synchronized void drainTo(List<Runnable> notRun) {
+            PrioritizedTask task;
+            while ((task = tasks.poll()) != null) {
+                queuedTasks.decrementAndGet();
+                notRun.add(task);
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    PrioritizedTask task = poll();
+                    if (task == null) {
+                        task = steal(this);
+                    }
+                    if (task != null) {
+                        queuedTasks.decrementAndGet();
+                        runTask(task);
+                    } else if (shutdown) {
+                        if (queuedTasks.get() == 0) {
+                            break;
+                        }
+                    } else {
+                        awaitWork();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdownNow
+            } finally {
+                terminated.countDown();
+            }
+        }
+
+        private void runTask(PrioritizedTask task) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // keep the worker alive; a ThreadPoolExecutor would replace the thread instead.
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.util.perf;
+
+/**
+ * What a {@link ThreadHistoryTracker} does once a thread has recorded
+ * {@link ThreadHistoryTracker#getRetentionCapacity()} entries.
+ */
+public enum ThreadHistoryRetentionPolicy {
+    /**
+     * the newest entry overwrites the oldest entry. Shows how a long running TaskGroup ended.
+     */
+    keepNewest,
+    /**
+     * new entries are dropped. Shows how a long running TaskGroup started.
+     */
+    keepOldest;
+}
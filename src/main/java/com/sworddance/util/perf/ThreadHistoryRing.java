@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.util.perf;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity, append only history of a single thread. The fields of each entry are stored in parallel arrays
+ * so recording an entry does not allocate.
+ *
+ * Writers claim a position with a single atomic increment (or compare and set with
+ * {@link ThreadHistoryRetentionPolicy#keepOldest}) and never lock. Each slot records the position last written to it,
+ * -1 while it is being written. A snapshot only keeps the entries whose slot has the expected position both
+ * before and after the fields are read, so an entry overwritten during the snapshot is skipped rather than torn.
+ *
+ * Entries carry their thread id so that the history of threads that have finished can be merged into one ring.
+ */
+class ThreadHistoryRing implements Serializable {
+    private static final long serialVersionUID = -7966886870317721720L;
+
+    private static final int IN_USE_NULL = 0;
+
+    private static final int IN_USE_TRUE = 1;
+
+    private static final int IN_USE_FALSE = 2;
+
+    private final int capacity;
+
+    private final ThreadHistoryRetentionPolicy retentionPolicy;
+
+    /**
+     * the thread writing this history, null if not known or the ring holds the history of several threads.
+     */
+    private final transient WeakReference<Thread> owner;
+
+    /**
+     * next position to be claimed, positions only increase.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * entries not recorded because of {@link ThreadHistoryRetentionPolicy#keepOldest}.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLongArray published;
+
+    private final AtomicLongArray threadIds;
+
+    private final AtomicLongArray timestamps;
+
+    private final AtomicLongArray sequentialTimes;
+
+    private final AtomicIntegerArray sequenceIds;
+
+    private final AtomicIntegerArray threadInUse;
+
+    private final AtomicReferenceArray<String> taskNames;
+
+    private final AtomicReferenceArray<String> statuses;
+
+    private final AtomicReferenceArray<String> notes;
+
+    ThreadHistoryRing(int capacity, ThreadHistoryRetentionPolicy retentionPolicy, Thread owner) {
+        this.capacity = capacity;
+        this.retentionPolicy = retentionPolicy;
+        this.owner = owner == null ? null : new WeakReference<Thread>(owner);
+        this.published = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            this.published.set(slot, -1);
+        }
+        this.threadIds = new AtomicLongArray(capacity);
+        this.timestamps = new AtomicLongArray(capacity);
+        this.sequentialTimes = new AtomicLongArray(capacity);
+        this.sequenceIds = new AtomicIntegerArray(capacity);
+        this.threadInUse = new AtomicIntegerArray(capacity);
+        this.taskNames = new AtomicReferenceArray<String>(capacity);
+        this.statuses = new AtomicReferenceArray<String>(capacity);
+        this.notes = new AtomicReferenceArray<String>(capacity);
+    }
+
+    /**
+     * @return false if the entry was dropped.
+     */
+    boolean add(long threadId, long timestampInMillis, String taskName, String status, String note, Boolean inUse,
+        long sequentialTime, int sequenceId) {
+        long position;
+        if (retentionPolicy == ThreadHistoryRetentionPolicy.keepOldest) {
+            do {
+                position = next.get();
+                if (position >= capacity) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            } while (!next.compareAndSet(position, position + 1));
+        } else {
+            position = next.getAndIncrement();
+        }
+        int slot = (int) (position % capacity);
+        published.set(slot, -1);
+        // lazySet: ordered after the -1 above and before the publish below; no need for a full fence per field.
+        threadIds.lazySet(slot, threadId);
+        timestamps.lazySet(slot, timestampInMillis);
+        sequentialTimes.lazySet(slot, sequentialTime);
+        sequenceIds.lazySet(slot, sequenceId);
+        threadInUse.lazySet(slot, inUse == null ? IN_USE_NULL : inUse.booleanValue() ? IN_USE_TRUE : IN_USE_FALSE);
+        taskNames.lazySet(slot, taskName);
+        statuses.lazySet(slot, status);
+        notes.lazySet(slot, note);
+        published.set(slot, position);
+        return true;
+    }
+
+    /**
+     * @param threadId only the entries of this thread, all entries if null.
+     * @return the retained entries, most recent first.
+     */
+    List<ThreadHistory> snapshot(Long threadId) {
+        long end = Math.min(next.get(), retentionPolicy == ThreadHistoryRetentionPolicy.keepOldest ? capacity : Long.MAX_VALUE);
+        long start = Math.max(0, end - capacity);
+        List<ThreadHistory> result = new ArrayList<ThreadHistory>((int) (end - start));
+        for (long position = end - 1; position >= start; position--) {
+            int slot = (int) (position % capacity);
+            if (published.get(slot) != position) {
+                // still being written or already overwritten.
+                continue;
+            }
+            long entryThreadId = threadIds.get(slot);
+            long timestampInMillis = timestamps.get(slot);
+            long sequentialTime = sequentialTimes.get(slot);
+            int sequenceId = sequenceIds.get(slot);
+            int inUse = threadInUse.get(slot);
+            String taskName = taskNames.get(slot);
+            String status = statuses.get(slot);
+            String note = notes.get(slot);
+            if (published.get(slot) == position && (threadId == null || threadId.longValue() == entryThreadId)) {
+                result.add(new ThreadHistory(timestampInMillis, entryThreadId, taskName, status, note,
+                    inUse == IN_USE_NULL ? null : Boolean.valueOf(inUse == IN_USE_TRUE), sequentialTime, sequenceId));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Append the retained entries to target, oldest first.
+     * @param target
+     */
+    void copyTo(ThreadHistoryRing target) {
+        List<ThreadHistory> entries = snapshot(null);
+        for (int index = entries.size() - 1; index >= 0; index--) {
+            ThreadHistory entry = entries.get(index);
+            target.add(entry.getThreadId(), entry.getTimestampInMillis(), entry.getTaskName(), entry.getStatus(),
+                entry.getNote(), entry.getThreadInUse(), entry.getSequentialTime(), entry.getSequenceId());
+        }
+    }
+
+    /**
+     * @return true if the thread writing this history is known to have finished, so no more entries will be added.
+     */
+    boolean isOwnerFinished() {
+        if (owner == null) {
+            return false;
+        }
+        Thread thread = owner.get();
+        return thread == null || !thread.isAlive();
+    }
+
+    /**
+     * @return number of entries recorded and then lost, either overwritten or dropped.
+     */
+    long getLostCount() {
+        return Math.max(0, next.get() - capacity) + dropped.get();
+    }
+}
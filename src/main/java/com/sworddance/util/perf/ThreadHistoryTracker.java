@@ -15,34 +15,71 @@
 package com.sworddance.util.perf;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sworddance.scheduling.TimeServer;
 import com.sworddance.scheduling.TimeServerImpl;
-import com.sworddance.util.map.ConcurrentInitializedMap;
+import com.sworddance.util.ApplicationIllegalArgumentException;
 
 /**
- * Stores the ThreadHistory objects by {@link Thread#getId()}
+ * Stores the ThreadHistory by {@link Thread#getId()}. Each thread has a fixed capacity ring buffer
+ * so recording history is lock free and does not slow down as the history grows. Once a thread's buffer is full,
+ * the {@link ThreadHistoryRetentionPolicy} decides which entries are kept.
  *
+ * When each task runs on a new thread, for example a virtual thread per task, keeping a buffer per thread would grow
+ * without limit. So once there are many buffers, the history of threads that
+ * have finished is moved into one shared buffer of {@link #getRetentionCapacity()} entries.
  */
 public class ThreadHistoryTracker implements Serializable {
     /**
-     * Map<Thread.getId(), List ( most recent first )>
-     * Should use Stack but stack add to end, will need to reverse order when copying before can use stack
-     *
-     * Stack SHOULD be used as the list because:
-     * stack is synchronized, usually only one thread is accessing the stack ( to add to it )
+     * default {@link #getRetentionCapacity()}.
+     */
+    public static final int DEFAULT_RETENTION_CAPACITY = 1024;
+
+    /**
+     * finished threads are not looked for until there are at least this many thread buffers.
      */
-    private ConcurrentMap<Long, List<ThreadHistory>> history = ConcurrentInitializedMap.newConcurrentInitializedMapWithList();
+    static final int MINIMUM_RETIRE_THRESHOLD = 64;
+
+    /**
+     * Map<Thread.getId(), history of that thread>
+     */
+    private ConcurrentMap<Long, ThreadHistoryRing> history = new ConcurrentHashMap<Long, ThreadHistoryRing>();
 
     private AtomicInteger sequence = new AtomicInteger(0);
 
-    private transient TimeServer timeServer;
+    private volatile int retentionCapacity = DEFAULT_RETENTION_CAPACITY;
+
+    private volatile ThreadHistoryRetentionPolicy retentionPolicy = ThreadHistoryRetentionPolicy.keepNewest;
+
+    /**
+     * the history of threads that have finished, null until a thread's history is retired.
+     */
+    private volatile ThreadHistoryRing retired;
+
+    /**
+     * entries lost by thread buffers before they were retired.
+     */
+    private final AtomicLong retiredLostCount = new AtomicLong();
+
+    /**
+     * the number of thread buffers that triggers looking for finished threads. Doubles the number still in use after
+     * each look, so the cost of looking is spread over the buffers created.
+     */
+    private volatile int retireThreshold = MINIMUM_RETIRE_THRESHOLD;
+
+    private final AtomicBoolean retiring = new AtomicBoolean();
+
+    private transient volatile TimeServer timeServer;
 
     /**
      *
@@ -54,6 +91,14 @@ public class ThreadHistoryTracker implements Serializable {
         this.timeServer = timeServer;
     }
 
+    /**
+     * @param timeServer stamps the history entries added from now on.
+     */
+    public void setTimeServer(TimeServer timeServer) {
+        ApplicationIllegalArgumentException.notNull(timeServer, "timeServer");
+        this.timeServer = timeServer;
+    }
+
     public void addStartHistory(String taskName, String status, String note) {
         Thread t = Thread.currentThread();
         // TODO: use System.identityHashCode() getId() may be reused.
@@ -79,9 +124,8 @@ public class ThreadHistoryTracker implements Serializable {
      */
     public void addStartHistory(long currentTimeMillis, Long threadId,
             String taskName, String status, String note) {
-        ThreadHistory threadHistory = new ThreadHistory(currentTimeMillis, threadId, taskName,
-                status, note, Boolean.TRUE, this.sequence.incrementAndGet());
-        addHistoryStatus(threadId, threadHistory);
+        getHistory(threadId).add(threadId, currentTimeMillis, taskName, status, note, Boolean.TRUE, 0L,
+            this.sequence.incrementAndGet());
     }
 
     public void addStopHistory(String taskName, String status, String note,
@@ -105,9 +149,8 @@ public class ThreadHistoryTracker implements Serializable {
      */
     void addStopHistory(long currentTimeMillis, Long threadId,
             String taskName, String status, String note, long sequentialTimeInMillis) {
-        ThreadHistory threadHistory = new ThreadHistory(currentTimeMillis,
-                threadId, taskName, status, note, Boolean.FALSE, sequentialTimeInMillis, this.sequence.incrementAndGet());
-        addHistoryStatus(threadId, threadHistory);
+        getHistory(threadId).add(threadId, currentTimeMillis, taskName, status, note, Boolean.FALSE,
+            sequentialTimeInMillis, this.sequence.incrementAndGet());
     }
 
     /**
@@ -115,8 +158,9 @@ public class ThreadHistoryTracker implements Serializable {
      * @param threadHistory
      */
     public void addHistoryStatus(Long threadId, ThreadHistory threadHistory) {
-        List<ThreadHistory> l = getHistory(threadId);
-        l.add(0, threadHistory);
+        getHistory(threadId).add(threadId, threadHistory.getTimestampInMillis(), threadHistory.getTaskName(),
+            threadHistory.getStatus(), threadHistory.getNote(), threadHistory.getThreadInUse(),
+            threadHistory.getSequentialTime(), threadHistory.getSequenceId());
     }
 
     public void addHistoryStatus(String taskName, String status, String note) {
@@ -134,29 +178,81 @@ public class ThreadHistoryTracker implements Serializable {
      * @param threadId
      * @param taskName
      * @param status
-     * @param note TODO
+     * @param note
      */
     public void addHistoryStatus(long currentTimeMillis, Long threadId,
             String taskName, String status, String note) {
-        ThreadHistory threadHistory = new ThreadHistory(currentTimeMillis,
-                threadId, taskName, status, null, Boolean.TRUE, this.sequence.incrementAndGet());
-        addHistoryStatus(threadId, threadHistory);
+        getHistory(threadId).add(threadId, currentTimeMillis, taskName, status, note, Boolean.TRUE, 0L,
+            this.sequence.incrementAndGet());
     }
 
     /**
      * @param threadId
-     * @return
+     * @return the thread's history, created with the current retention settings if needed.
      */
-    private List<ThreadHistory> getHistory(Long threadId) {
-        List<ThreadHistory> l = history.get(threadId);
-        return l;
+    private ThreadHistoryRing getHistory(Long threadId) {
+        ThreadHistoryRing ring = history.get(threadId);
+        if (ring == null) {
+            Thread current = Thread.currentThread();
+            ring = new ThreadHistoryRing(retentionCapacity, retentionPolicy,
+                current.getId() == threadId.longValue() ? current : null);
+            ThreadHistoryRing existing = history.putIfAbsent(threadId, ring);
+            if (existing != null) {
+                ring = existing;
+            } else if (history.size() >= retireThreshold) {
+                retireFinishedThreads();
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Move the history of the threads that have finished into {@link #retired}. Only one thread does this at a time,
+     * the others carry on recording.
+     */
+    private void retireFinishedThreads() {
+        if (!retiring.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Map.Entry<Long, ThreadHistoryRing> entry : history.entrySet()) {
+                ThreadHistoryRing ring = entry.getValue();
+                if (ring.isOwnerFinished()) {
+                    if (retired == null) {
+                        retired = new ThreadHistoryRing(retentionCapacity, retentionPolicy, null);
+                    }
+                    // copied before it is removed so a concurrent reader never misses the entries.
+                    ring.copyTo(retired);
+                    retiredLostCount.addAndGet(ring.getLostCount());
+                    history.remove(entry.getKey(), ring);
+                }
+            }
+            retireThreshold = Math.max(MINIMUM_RETIRE_THRESHOLD, 2 * history.size());
+        } finally {
+            retiring.set(false);
+        }
+    }
+
+    /**
+     * @return the number of thread buffers, not counting the one shared by finished threads.
+     */
+    int getThreadBufferCount() {
+        return history.size();
     }
 
     /**
      * @return the set of thread Ids with ThreadHistory
      */
     public Set<Long> getThreadIds() {
-        return Collections.unmodifiableSet(history.keySet());
+        ThreadHistoryRing retiredRing = retired;
+        if (retiredRing == null) {
+            return Collections.unmodifiableSet(history.keySet());
+        }
+        Set<Long> threadIds = new HashSet<Long>(history.keySet());
+        for (ThreadHistory threadHistory : retiredRing.snapshot(null)) {
+            threadIds.add(threadHistory.getThreadId());
+        }
+        return Collections.unmodifiableSet(threadIds);
     }
 
     /**
@@ -165,13 +261,55 @@ public class ThreadHistoryTracker implements Serializable {
      *         available.
      */
     public List<ThreadHistory> getThreadHistoryCopy(Long threadId) {
-        if( history.containsKey(threadId)) {
-            List<ThreadHistory> list = history.get(threadId);
-            synchronized (list) {
-                return new ArrayList<ThreadHistory>(list);
+        ThreadHistoryRing ring = history.get(threadId);
+        if( ring != null) {
+            return ring.snapshot(threadId);
+        }
+        ThreadHistoryRing retiredRing = retired;
+        if (retiredRing != null) {
+            List<ThreadHistory> threadHistory = retiredRing.snapshot(threadId);
+            if (!threadHistory.isEmpty()) {
+                return threadHistory;
             }
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    /**
+     * @return number of history entries that were overwritten or dropped because of the retention settings.
+     */
+    public long getLostHistoryCount() {
+        ThreadHistoryRing retiredRing = retired;
+        long lost = retiredLostCount.get() + (retiredRing == null ? 0 : retiredRing.getLostCount());
+        for (ThreadHistoryRing ring : history.values()) {
+            lost += ring.getLostCount();
+        }
+        return lost;
+    }
+
+    /**
+     * Only affects threads that have not yet recorded any history.
+     * @param retentionCapacity maximum number of entries kept per thread.
+     */
+    public void setRetentionCapacity(int retentionCapacity) {
+        ApplicationIllegalArgumentException.valid(retentionCapacity > 0, "retentionCapacity must be positive: ", retentionCapacity);
+        this.retentionCapacity = retentionCapacity;
+    }
+
+    public int getRetentionCapacity() {
+        return retentionCapacity;
+    }
+
+    /**
+     * Only affects threads that have not yet recorded any history.
+     * @param retentionPolicy which entries are kept once a thread has {@link #getRetentionCapacity()} entries.
+     */
+    public void setRetentionPolicy(ThreadHistoryRetentionPolicy retentionPolicy) {
+        ApplicationIllegalArgumentException.notNull(retentionPolicy, "retentionPolicy");
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    public ThreadHistoryRetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.scheduling;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link TimingWheel}.
+ */
+public class TestTimingWheel {
+
+    /**
+     * timers run in deadline order, never early, including timers that have to be moved from the outer wheels.
+     */
+    @Test
+    public void testOrder() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TimingWheel wheel = new TimingWheel(timeServer, 10, MILLISECONDS);
+        List<Long> run = Collections.synchronizedList(new ArrayList<Long>());
+        long[] delays = { 700000, 5, 2560, 15, 90000, 2570, 100 };
+        for (long delay : delays) {
+            wheel.schedule(new Recorder(run, delay), delay, MILLISECONDS);
+        }
+        assertEquals(wheel.size(), delays.length);
+        long elapsed = 0;
+        while (wheel.size() > 0) {
+            timeServer.runClock(5, MILLISECONDS);
+            elapsed += 5;
+            wheel.advance();
+            for (long delay : run) {
+                assertTrue(delay <= elapsed, delay + " run at " + elapsed);
+                assertTrue(elapsed - delay <= 10, delay + " run late at " + elapsed);
+            }
+            run.clear();
+        }
+        assertEquals(elapsed, 700000);
+    }
+
+    @Test
+    public void testCancel() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TimingWheel wheel = new TimingWheel(timeServer, 10, MILLISECONDS);
+        List<Long> run = new ArrayList<Long>();
+        TimingWheel.Timeout cancelled = wheel.schedule(new Recorder(run, 1), 1, SECONDS);
+        wheel.schedule(new Recorder(run, 2), 2, SECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(wheel.size(), 1);
+        timeServer.runClock(3, SECONDS);
+        assertEquals(wheel.advance(), 1);
+        assertEquals(run, Collections.singletonList(2L));
+        assertEquals(wheel.getNanosUntilNextTick(), Long.MAX_VALUE);
+    }
+
+    /**
+     * A deadline that has passed runs at the next tick.
+     */
+    @Test
+    public void testPastDeadline() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TimingWheel wheel = new TimingWheel(timeServer, 10, MILLISECONDS);
+        List<Long> run = new ArrayList<Long>();
+        timeServer.runClock(1, SECONDS);
+        wheel.advance();
+        wheel.schedule(new Recorder(run, 0), timeServer.nanoTime() - SECONDS.toNanos(1));
+        assertEquals(wheel.advance(), 0);
+        timeServer.runClock(10, MILLISECONDS);
+        assertEquals(wheel.advance(), 1);
+    }
+
+    /**
+     * scheduling and cancelling many timers.
+     */
+    @Test
+    public void testManyTimers() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TimingWheel wheel = new TimingWheel(timeServer, 1, MILLISECONDS);
+        List<Long> run = new ArrayList<Long>();
+        List<TimingWheel.Timeout> timeouts = new ArrayList<TimingWheel.Timeout>();
+        for (int i = 0; i < 200000; i++) {
+            timeouts.add(wheel.schedule(new Recorder(run, i), i % 100000, MILLISECONDS));
+        }
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            assertTrue(timeouts.get(i).cancel());
+        }
+        assertEquals(wheel.size(), 100000);
+        timeServer.runClock(100, SECONDS);
+        assertEquals(wheel.advance(), 100000);
+        assertEquals(wheel.size(), 0);
+    }
+
+    private static class Recorder implements Runnable {
+        private final List<Long> run;
+
+        private final long id;
+
+        Recorder(List<Long> run, long id) {
+            this.run = run;
+            this.id = id;
+        }
+
+        public void run() {
+            run.add(id);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.scheduling;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link TokenBucket}.
+ */
+public class TestTokenBucket {
+
+    @Test
+    public void testRateAndBurst() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TokenBucket tokenBucket = new TokenBucket(timeServer, 100, MILLISECONDS, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tokenBucket.tryAcquire());
+        }
+        assertFalse(tokenBucket.tryAcquire());
+        assertEquals(tokenBucket.getNanosUntilAvailable(), MILLISECONDS.toNanos(100));
+        timeServer.runClock(60, MILLISECONDS);
+        assertEquals(tokenBucket.getNanosUntilAvailable(), MILLISECONDS.toNanos(40));
+        timeServer.runClock(40, MILLISECONDS);
+        assertTrue(tokenBucket.tryAcquire());
+        assertFalse(tokenBucket.tryAcquire());
+
+        // an idle bucket only saves up burst tokens.
+        timeServer.runClock(10, SECONDS);
+        assertEquals(tokenBucket.getTokens(), 3);
+    }
+
+    /**
+     * taking a token when there are none is paid back before the next token is available.
+     */
+    @Test
+    public void testDebt() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TokenBucket tokenBucket = new TokenBucket(timeServer, 1, SECONDS, 1);
+        tokenBucket.acquire();
+        tokenBucket.acquire();
+        assertEquals(tokenBucket.getTokens(), -1);
+        assertEquals(tokenBucket.getNanosUntilAvailable(), SECONDS.toNanos(2));
+        timeServer.runClock(1, SECONDS);
+        assertFalse(tokenBucket.tryAcquire());
+        timeServer.runClock(1, SECONDS);
+        assertTrue(tokenBucket.tryAcquire());
+    }
+}
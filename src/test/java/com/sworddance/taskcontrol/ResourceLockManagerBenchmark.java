@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a lock heavy workload scales with the number of threads using a single {@link ResourceLockManager}.
+ * Each worker thread repeatedly takes an unblocked task, simulates running it, releases the task's locks and queues
+ * any tasks that became unblocked.
+ *
+ * Not a test; run with:
+ * <pre>
+ * java com.sworddance.taskcontrol.ResourceLockManagerBenchmark [tasks] [resources] [maxThreads]
+ * </pre>
+ */
+public class ResourceLockManagerBenchmark {
+    private final int taskCount;
+
+    private final int resourceCount;
+
+    public ResourceLockManagerBenchmark(int taskCount, int resourceCount) {
+        this.taskCount = taskCount;
+        this.resourceCount = resourceCount;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int resourceCount = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+        ResourceLockManagerBenchmark benchmark = new ResourceLockManagerBenchmark(taskCount, resourceCount);
+        // warm up
+        benchmark.run(2);
+        System.out.println("threads,tasks,resources,elapsedMs,tasksPerSecond");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long elapsed = benchmark.run(threads);
+            System.out.println(threads + "," + taskCount + "," + resourceCount + "," + elapsed + ","
+                + (taskCount * 1000L / Math.max(1, elapsed)));
+        }
+    }
+
+    /**
+     * @param threads
+     * @return elapsed milliseconds to run all the tasks.
+     * @throws InterruptedException
+     */
+    public long run(int threads) throws InterruptedException {
+        final ResourceLockManager manager = new ResourceLockManager();
+        Random random = new Random(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            DefaultPrioritizedTask<Object> task = new DefaultPrioritizedTask<Object>();
+            task.setName("t" + i);
+            int locks = 1 + random.nextInt(3);
+            for (int j = 0; j < locks; j++) {
+                task.addLock(new ResourceLock("r" + random.nextInt(resourceCount),
+                    random.nextInt(4) == 0 ? ResourceLock.EXCLUSIVE : ResourceLock.NONEXCLUSIVE));
+            }
+            manager.addTaskLocks(task);
+        }
+        final BlockingQueue<ResourceLocker> ready = new LinkedBlockingQueue<ResourceLocker>();
+        final ConcurrentMap<ResourceLocker, Boolean> started = new ConcurrentHashMap<ResourceLocker, Boolean>();
+        final AtomicInteger completed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        offer(manager, manager.drainUnblockedTasks(), ready, started);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (completed.get() < taskCount) {
+                            ResourceLocker task = ready.poll(10, TimeUnit.MILLISECONDS);
+                            if (task != null) {
+                                work();
+                                manager.releaseTaskLocks(task);
+                                completed.incrementAndGet();
+                                offer(manager, manager.drainUnblockedTasks(), ready, started);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            worker.start();
+        }
+        done.await();
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void offer(ResourceLockManager manager, Iterable<?> candidates, BlockingQueue<ResourceLocker> ready,
+        ConcurrentMap<ResourceLocker, Boolean> started) {
+        for (Object candidate : candidates) {
+            ResourceLocker task = (ResourceLocker) candidate;
+            if (manager.isTaskUnblocked(task) && started.putIfAbsent(task, Boolean.TRUE) == null) {
+                ready.add(task);
+            }
+        }
+    }
+
+    /**
+     * a small amount of cpu work standing in for the task.
+     */
+    private static int work() {
+        int result = 0;
+        for (int i = 0; i < 2000; i++) {
+            result += i * i;
+        }
+        return result;
+    }
+}
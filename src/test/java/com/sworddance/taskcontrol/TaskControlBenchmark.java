@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compares the throughput of the {@link TaskExecutorType}s. Each run pushes a TaskGroup of small, independent tasks
+ * through a {@link TaskControl} using {@link TaskDispatchMode#eventDriven} dispatch.
+ *
+ * Not a test; run with:
+ * <pre>
+ * java com.sworddance.taskcontrol.TaskControlBenchmark [tasks] [threads...]
+ * </pre>
+ * The default threads are 8, 32 and 64.
+ */
+public class TaskControlBenchmark {
+    private final int taskCount;
+
+    public TaskControlBenchmark(int taskCount) {
+        this.taskCount = taskCount;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int[] threadCounts;
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threadCounts = new int[] { 8, 32, 64 };
+        }
+        TaskControlBenchmark benchmark = new TaskControlBenchmark(taskCount);
+        // warm up
+        for (TaskExecutorType executorType : TaskExecutorType.values()) {
+            benchmark.run(executorType, 2);
+        }
+        System.out.println("executor,threads,tasks,elapsedMs,tasksPerSecond");
+        for (int threads : threadCounts) {
+            for (TaskExecutorType executorType : TaskExecutorType.values()) {
+                long elapsed = benchmark.run(executorType, threads);
+                System.out.println(executorType + "," + threads + "," + taskCount + "," + elapsed + ","
+                    + (taskCount * 1000L / Math.max(1, elapsed)));
+            }
+        }
+    }
+
+    /**
+     * @param executorType
+     * @param threads
+     * @return elapsed milliseconds to run all the tasks.
+     * @throws InterruptedException
+     */
+    public long run(TaskExecutorType executorType, int threads) throws InterruptedException {
+        TaskControl taskControl = new TaskControl(threads, executorType, LogFactory.getLog(this.getClass()));
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("benchmark");
+        for (int i = 0; i < taskCount; i++) {
+            DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+            task.setName("t" + i);
+            taskGroup.addTask(task);
+        }
+        long start = System.currentTimeMillis();
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread thread = new Thread(taskControl, "TaskControlBenchmark");
+        thread.start();
+        thread.join();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * a small amount of cpu work standing in for the task.
+     */
+    private static int work() {
+        int result = 0;
+        for (int i = 0; i < 2000; i++) {
+            result += i * i;
+        }
+        return result;
+    }
+}
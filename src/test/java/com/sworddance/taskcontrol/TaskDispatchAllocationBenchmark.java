@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Measures the bytes allocated, across all threads, for each task dispatched by a {@link TaskControl}: from the task
+ * becoming ready until it has completed. The tasks are created and added before the measurement starts and do
+ * nothing when run, so the allocation is the dispatch path's. Requires a JVM with
+ * com.sun.management.ThreadMXBean allocation counters.
+ *
+ * Not a test; run with:
+ * <pre>
+ * java com.sworddance.taskcontrol.TaskDispatchAllocationBenchmark [tasks]
+ * </pre>
+ */
+public class TaskDispatchAllocationBenchmark {
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final int taskCount;
+
+    public TaskDispatchAllocationBenchmark(int taskCount) {
+        this.taskCount = taskCount;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        TaskDispatchAllocationBenchmark benchmark = new TaskDispatchAllocationBenchmark(taskCount);
+        // warm up
+        benchmark.run();
+        benchmark.run();
+        System.out.println("tasks,elapsedMs,bytesPerTask");
+        for (int i = 0; i < 5; i++) {
+            long[] result = benchmark.run();
+            System.out.println(taskCount + "," + result[0] + "," + result[1] / taskCount);
+        }
+    }
+
+    /**
+     * @return elapsed milliseconds and bytes allocated to dispatch and run all the tasks.
+     * @throws Exception
+     */
+    public long[] run() throws Exception {
+        TaskControl taskControl = new TaskControl(4, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("benchmark");
+        FutureResultImpl<Object> loaded = new FutureResultImpl<Object>();
+        List<PrioritizedTask> tasks = new ArrayList<PrioritizedTask>(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(NOTHING);
+            task.setName("t" + i);
+            task.addDependency(loaded);
+            tasks.add(task);
+        }
+        taskGroup.addTasks(tasks);
+        taskControl.addTaskGroup(taskGroup);
+        Thread thread = new Thread(taskControl, "TaskDispatchAllocationBenchmark");
+        thread.start();
+        System.gc();
+        Map<Long, Long> before = allocatedBytes();
+        long start = System.currentTimeMillis();
+        loaded.set(null);
+        taskGroup.getResult().get();
+        long elapsed = System.currentTimeMillis() - start;
+        Map<Long, Long> after = allocatedBytes();
+        taskControl.setStayActive(false);
+        thread.join();
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            Long previous = before.get(entry.getKey());
+            allocated += entry.getValue() - (previous == null ? 0 : previous.longValue());
+        }
+        return new long[] { elapsed, allocated };
+    }
+
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] bytes = threadMXBean.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (bytes[i] >= 0) {
+                result.put(threadIds[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+}
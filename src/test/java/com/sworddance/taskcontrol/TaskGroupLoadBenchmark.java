@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compares loading a batch of tasks into a {@link TaskGroup} one at a time with {@link TaskGroup#addTask(PrioritizedTask)}
+ * against a single {@link TaskGroup#addTasks(java.util.Collection)}. The TaskGroup belongs to a running
+ * {@link TaskControl} whose dispatcher is woken by each state change; the tasks are blocked by a task holding an
+ * exclusive global lock so that none of them run while loading. Once loaded, the tasks are released and run.
+ *
+ * Not a test; run with:
+ * <pre>
+ * java com.sworddance.taskcontrol.TaskGroupLoadBenchmark [tasks] [resources]
+ * </pre>
+ */
+public class TaskGroupLoadBenchmark {
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final int taskCount;
+
+    private final int resourceCount;
+
+    public TaskGroupLoadBenchmark(int taskCount, int resourceCount) {
+        this.taskCount = taskCount;
+        this.resourceCount = resourceCount;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int resourceCount = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        TaskGroupLoadBenchmark benchmark = new TaskGroupLoadBenchmark(taskCount, resourceCount);
+        // warm up
+        benchmark.run(false);
+        benchmark.run(true);
+        System.out.println("method,tasks,resources,elapsedMs,tasksPerSecond");
+        for (int i = 0; i < 5; i++) {
+            for (boolean batch : new boolean[] { false, true }) {
+                long elapsed = benchmark.run(batch);
+                System.out.println((batch ? "addTasks" : "addTask") + "," + taskCount + "," + resourceCount + ","
+                    + elapsed + "," + (taskCount * 1000L / Math.max(1, elapsed)));
+            }
+        }
+    }
+
+    /**
+     * @param batch use {@link TaskGroup#addTasks(java.util.Collection)}
+     * @return elapsed milliseconds to load the tasks.
+     * @throws InterruptedException
+     */
+    public long run(boolean batch) throws InterruptedException {
+        TaskControl taskControl = new TaskControl(8, LogFactory.getLog(this.getClass()));
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("benchmark");
+        // does not run until loaded, so none of the loaded tasks become ready.
+        FutureResultImpl<Object> loaded = new FutureResultImpl<Object>();
+        DefaultDependentPrioritizedTask<Object> gate = new DefaultDependentPrioritizedTask<Object>(NOTHING);
+        gate.setName("gate");
+        gate.addDependency(loaded);
+        gate.addLock(new ResourceLock(ResourceLockManager.GLOBALRESOURCE, ResourceLock.EXCLUSIVE));
+        taskGroup.addTask(gate);
+        taskControl.addTaskGroup(taskGroup);
+        Thread thread = new Thread(taskControl, "TaskGroupLoadBenchmark");
+        thread.start();
+
+        Random random = new Random(taskCount);
+        List<PrioritizedTask> tasks = new ArrayList<PrioritizedTask>(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(NOTHING);
+            task.setName("t" + i);
+            int locks = 1 + random.nextInt(3);
+            for (int j = 0; j < locks; j++) {
+                task.addLock(new ResourceLock("r" + random.nextInt(resourceCount),
+                    random.nextInt(4) == 0 ? ResourceLock.EXCLUSIVE : ResourceLock.NONEXCLUSIVE));
+            }
+            tasks.add(task);
+        }
+        // don't charge the previous run's garbage to this run.
+        System.gc();
+        long start = System.currentTimeMillis();
+        if (batch) {
+            taskGroup.addTasks(tasks);
+        } else {
+            for (PrioritizedTask task : tasks) {
+                taskGroup.addTask(task);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        loaded.set(null);
+        taskControl.setStayActive(false);
+        thread.join();
+        return elapsed;
+    }
+}
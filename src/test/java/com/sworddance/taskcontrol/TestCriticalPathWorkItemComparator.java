@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.util.perf.ThreadHistoryTracker;
+
+/**
+ * Test {@link CriticalPathWorkItemComparator} with the critical paths maintained by a {@link TaskGroup} from its
+ * {@link TaskDurationHistory}.
+ */
+public class TestCriticalPathWorkItemComparator {
+
+    @Test
+    public void testDurationHistory() {
+        TaskDurationHistory history = new TaskDurationHistory();
+        DefaultPrioritizedTask<Object> task = new DefaultPrioritizedTask<Object>();
+        task.setName("task");
+        assertEquals(history.getEstimate(task), 1);
+        history.setDefaultEstimate(7);
+        assertEquals(history.getEstimate(task), 7);
+        history.record(task, 100);
+        assertEquals(history.getEstimate(task), 100);
+        history.record(task, 20);
+        assertEquals(history.getEstimate(task), 80);
+        history.record(task, 0);
+        history.record(task, 0);
+        history.record(task, 0);
+        assertTrue(history.getEstimate(task) < 80);
+        // differences smaller than the weighting still move the average.
+        DefaultPrioritizedTask<Object> small = new DefaultPrioritizedTask<Object>();
+        small.setName("small");
+        history.record(small, 10);
+        history.record(small, 7);
+        assertEquals(history.getEstimate(small), 9);
+
+        ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        tracker.addStartHistory("fromTracker", "starting", null);
+        tracker.addStopHistory("fromTracker", "completed", "40ms", 40);
+        history.record(tracker);
+        DefaultPrioritizedTask<Object> fromTracker = new DefaultPrioritizedTask<Object>();
+        fromTracker.setName("fromTracker");
+        assertEquals(history.getEstimate(fromTracker), 40);
+        assertEquals(history.size(), 3);
+    }
+
+    /**
+     * the chain is added last and at a lower priority but is started first because it is the longest.
+     */
+    @Test
+    public void testCriticalPathFirst() {
+        TaskDurationHistory history = new TaskDurationHistory();
+        for (String name : Arrays.asList("short1", "short2", "chain1", "chain2", "chain3")) {
+            history.record(name, 10);
+        }
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("criticalPath", new CriticalPathWorkItemComparator(),
+            new FutureResultImpl<Object>());
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        taskGroup.setTaskDurationHistory(history);
+        DefaultDependentPrioritizedTask<Object> short1 = newTask("short1", Thread.MAX_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> short2 = newTask("short2", Thread.MAX_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> chain1 = newTask("chain1", Thread.MIN_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> chain2 = newTask("chain2", Thread.MIN_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> chain3 = newTask("chain3", Thread.MIN_PRIORITY);
+        chain2.addDependency(chain1);
+        chain3.addDependency(chain2);
+        taskGroup.addTask(short1);
+        taskGroup.addTask(short2);
+        taskGroup.addTask(chain1);
+        // chain1 is already ready to run, it is requeued as its critical path grows.
+        taskGroup.addTask(chain2);
+        taskGroup.addTask(chain3);
+        assertEquals(chain1.getCriticalPath(), 30);
+        assertEquals(chain2.getCriticalPath(), 20);
+        assertEquals(chain3.getCriticalPath(), 10);
+        assertEquals(short1.getCriticalPath(), 10);
+
+        List<String> order = new ArrayList<String>();
+        PrioritizedTask next;
+        while ((next = taskGroup.nextTask()) != null) {
+            order.add(next.getName());
+            next.run();
+        }
+        // once the chain is no longer than the other tasks, priority decides.
+        assertEquals(order, Arrays.asList("chain1", "chain2", "short1", "short2", "chain3"));
+    }
+
+    private static DefaultDependentPrioritizedTask<Object> newTask(String name, int priority) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(priority) {
+            @Override
+            protected Object callBody() {
+                return null;
+            }
+        };
+        task.setName(name);
+        return task;
+    }
+}
@@ -55,6 +55,41 @@ public class TestDefaultDependentPrioritizedTask {
         assertNotNull(taskGroup.getException(), "Should throw Exception");
     }
 
+    /**
+     * make sure that completed dependencies are pushed to the dependent task rather than needing to be polled.
+     */
+    @Test
+    public void testDependencyCompletionPushed() {
+        DefaultDependentPrioritizedTask<Object> dependency0 = new DefaultDependentPrioritizedTask<Object>();
+        FutureResultImpl<Object> dependency1 = new FutureResultImpl<Object>();
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>();
+        task.addDependency(dependency0);
+        task.addAlwaysDependency(dependency1);
+        assertFalse(task.isDependencyPollingNeeded());
+        assertFalse(task.isReadyToRun());
+        dependency0.set("done");
+        assertFalse(task.isReadyToRun());
+        dependency1.setException(new IllegalStateException("always dependencies can fail"));
+        assertTrue(task.isReadyToRun());
+    }
+
+    /**
+     * a cancelled dependency is a failed dependency.
+     */
+    @Test
+    public void testCancelledDependency() {
+        DefaultDependentPrioritizedTask<Object> dependency = new DefaultDependentPrioritizedTask<Object>();
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>();
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("test");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        task.setTaskGroup(taskGroup);
+        task.addDependency(dependency);
+        dependency.cancel(false);
+        assertFalse(task.isReadyToRun());
+        assertTrue(task.isDone());
+        assertNotNull(task.getException());
+    }
+
     /**
      * generate a exception for the test.
      */
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.scheduling.FakeTimeServerImpl;
+
+/**
+ * Test {@link EarliestDeadlineWorkItemComparator} and the {@link TaskGroup} deadline metrics.
+ */
+public class TestEarliestDeadlineWorkItemComparator {
+
+    @Test
+    public void testDeadlineOrder() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskGroup<Object> taskGroup = newTaskGroup(timeServer);
+        long now = timeServer.nanoTime();
+        DefaultPrioritizedTask<Object> late = newTask(taskGroup, Thread.MAX_PRIORITY);
+        late.setDeadline(now + TimeUnit.SECONDS.toNanos(2));
+        DefaultPrioritizedTask<Object> soon = newTask(taskGroup, Thread.MIN_PRIORITY);
+        soon.setDeadline(now + TimeUnit.SECONDS.toNanos(1));
+        DefaultPrioritizedTask<Object> none = newTask(taskGroup, Thread.MAX_PRIORITY);
+        List<PrioritizedTask> tasks = new ArrayList<PrioritizedTask>(Arrays.asList(none, late, soon));
+        Collections.sort(tasks, new EarliestDeadlineWorkItemComparator(10, TimeUnit.MILLISECONDS));
+        // a task without a deadline at max priority is due after one aging interval.
+        assertEquals(tasks, Arrays.asList(none, soon, late));
+    }
+
+    /**
+     * a low priority task that has waited long enough runs before newer high priority tasks.
+     */
+    @Test
+    public void testAging() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskGroup<Object> taskGroup = newTaskGroup(timeServer);
+        EarliestDeadlineWorkItemComparator comparator = new EarliestDeadlineWorkItemComparator(100, TimeUnit.MILLISECONDS);
+        DefaultPrioritizedTask<Object> low = newTask(taskGroup, Thread.MIN_PRIORITY);
+        DefaultPrioritizedTask<Object> high = newTask(taskGroup, Thread.MAX_PRIORITY);
+        assertTrue(comparator.compare(high, low) < 0);
+        timeServer.runClock(500, TimeUnit.MILLISECONDS);
+        DefaultPrioritizedTask<Object> newerHigh = newTask(taskGroup, Thread.MAX_PRIORITY);
+        assertTrue(comparator.compare(newerHigh, low) < 0);
+        timeServer.runClock(500, TimeUnit.MILLISECONDS);
+        DefaultPrioritizedTask<Object> newestHigh = newTask(taskGroup, Thread.MAX_PRIORITY);
+        assertTrue(comparator.compare(low, newestHigh) < 0);
+    }
+
+    @Test
+    public void testDeadlineMisses() throws Exception {
+        final FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskControl taskControl = new TaskControl(new EarliestDeadlineWorkItemComparator(), 1, LogFactory.getLog(this.getClass()));
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("deadlines", new EarliestDeadlineWorkItemComparator(),
+            new FutureResultImpl<Object>());
+        taskGroup.setTimeServer(timeServer);
+        Runnable slow = new Runnable() {
+            public void run() {
+                timeServer.runClock(20, TimeUnit.MILLISECONDS);
+            }
+        };
+        long now = timeServer.nanoTime();
+        DefaultDependentPrioritizedTask<Object> missed = new DefaultDependentPrioritizedTask<Object>(slow);
+        missed.setDeadline(now + TimeUnit.MILLISECONDS.toNanos(10));
+        DefaultDependentPrioritizedTask<Object> met = new DefaultDependentPrioritizedTask<Object>(slow);
+        met.setDeadline(now + TimeUnit.SECONDS.toNanos(10));
+        DefaultDependentPrioritizedTask<Object> noDeadline = new DefaultDependentPrioritizedTask<Object>(slow);
+        taskGroup.addTasks(Arrays.asList(missed, met, noDeadline));
+        taskControl.addTaskGroup(taskGroup);
+        Thread thread = new Thread(taskControl, "TaskControl");
+        thread.start();
+        taskControl.setStayActive(false);
+        thread.join();
+        assertEquals(taskGroup.getDeadlineTaskCount(), 2);
+        assertEquals(taskGroup.getDeadlineMissCount(), 1);
+        assertEquals(taskGroup.getMaxDeadlineLateness(TimeUnit.MILLISECONDS), 10);
+    }
+
+    private TaskGroup<Object> newTaskGroup(FakeTimeServerImpl timeServer) {
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("test");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        taskGroup.setTimeServer(timeServer);
+        return taskGroup;
+    }
+
+    private DefaultPrioritizedTask<Object> newTask(TaskGroup<Object> taskGroup, int priority) {
+        DefaultPrioritizedTask<Object> task = new DefaultPrioritizedTask<Object>((Runnable) null, priority);
+        task.setTaskGroup(taskGroup);
+        return task;
+    }
+}
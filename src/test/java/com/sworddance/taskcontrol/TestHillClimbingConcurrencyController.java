@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link HillClimbingConcurrencyController}.
+ */
+public class TestHillClimbingConcurrencyController {
+    private static final long INTERVAL = SECONDS.toNanos(1);
+
+    /**
+     * Tasks waiting longer than they run grow the concurrency while the throughput keeps improving.
+     */
+    @Test
+    public void testGrowWhenBacklogged() {
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(1, 8);
+        assertEquals(controller.getInitialConcurrency(4), 1);
+        assertEquals(controller.adjustConcurrency(1, 100, INTERVAL, 1000, 100), 2);
+        assertEquals(controller.adjustConcurrency(2, 200, INTERVAL, 1000, 100), 3);
+        // still improving, keeps going even without the backlog
+        assertEquals(controller.adjustConcurrency(3, 300, INTERVAL, 0, 100), 4);
+    }
+
+    /**
+     * A drop in throughput reverses the last step.
+     */
+    @Test
+    public void testReverseOnThroughputDrop() {
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(1, 8);
+        assertEquals(controller.adjustConcurrency(4, 100, INTERVAL, 1000, 100), 5);
+        assertEquals(controller.adjustConcurrency(5, 50, INTERVAL, 1000, 100), 4);
+    }
+
+    /**
+     * No change in throughput and no backlog gives back threads.
+     */
+    @Test
+    public void testShrinkOnPlateau() {
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(1, 8);
+        assertEquals(controller.adjustConcurrency(4, 100, INTERVAL, 1000, 100), 5);
+        assertEquals(controller.adjustConcurrency(5, 102, INTERVAL, 10, 100), 4);
+    }
+
+    @Test
+    public void testBounds() {
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(2, 3);
+        assertEquals(controller.getInitialConcurrency(1), 1);
+        assertEquals(controller.adjustConcurrency(3, 100, INTERVAL, 1000, 100), 3);
+        // reversed at the bound
+        assertEquals(controller.adjustConcurrency(3, 200, INTERVAL, 1000, 100), 2);
+        assertEquals(controller.adjustConcurrency(2, 200, INTERVAL, 0, 100), 2);
+    }
+
+    @Test
+    public void testNoCompletedTasks() {
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(1, 8);
+        assertEquals(controller.adjustConcurrency(3, 0, INTERVAL, 0, 0), 3);
+    }
+
+    /**
+     * Sleeping tasks back up behind a single thread, so the TaskControl is given more threads.
+     * @throws Exception
+     */
+    @Test
+    public void testTaskControlGrowsConcurrency() throws Exception {
+        runSleepingTasks(TaskExecutorType.threadPool, TaskDispatchMode.polling);
+    }
+
+    /**
+     * Without a thread pool to resize, the dispatcher holds back tasks to keep to the concurrency.
+     * @throws Exception
+     */
+    @Test
+    public void testWorkStealingGrowsConcurrency() throws Exception {
+        runSleepingTasks(TaskExecutorType.workStealing, TaskDispatchMode.polling);
+    }
+
+    @Test
+    public void testEventDrivenGrowsConcurrency() throws Exception {
+        runSleepingTasks(TaskExecutorType.workStealing, TaskDispatchMode.eventDriven);
+    }
+
+    private void runSleepingTasks(TaskExecutorType executorType, TaskDispatchMode dispatchMode) throws Exception {
+        TaskControl taskControl = new TaskControl(4, executorType, LogFactory.getLog(this.getClass()));
+        taskControl.setDispatchMode(dispatchMode);
+        HillClimbingConcurrencyController controller = new HillClimbingConcurrencyController(1, 4);
+        controller.setSampleInterval(50, MILLISECONDS);
+        taskControl.setConcurrencyController(controller);
+        assertEquals(taskControl.getConcurrency(), 1);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("adaptive");
+        for (int i = 0; i < 200; i++) {
+            DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+                @Override
+                protected Object callBody() throws Exception {
+                    int now = running.incrementAndGet();
+                    int max;
+                    while ((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)) {
+                        // retry
+                    }
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    completed.incrementAndGet();
+                    return null;
+                }
+            };
+            task.setName("sleep" + i);
+            taskGroup.addTask(task);
+        }
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        t.join();
+        taskGroup.getResult().get(10, SECONDS);
+        assertEquals(completed.get(), 200);
+        assertTrue(maxRunning.get() <= 4, "maxRunning=" + maxRunning.get());
+        assertTrue(taskControl.getConcurrency() > 1, "concurrency=" + taskControl.getConcurrency());
+    }
+}
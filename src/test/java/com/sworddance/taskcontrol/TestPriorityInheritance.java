@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test that tasks holding up higher priority tasks' {@link ResourceLock}s inherit their priority.
+ */
+public class TestPriorityInheritance {
+
+    /**
+     * low holds the lock that mid is waiting for, mid holds the lock that high is waiting for. Without inheritance
+     * normal would run before low.
+     */
+    @Test
+    public void testPriorityInheritedThroughChain() {
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("priorityInheritance");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        DefaultDependentPrioritizedTask<Object> low = newTask("low", Thread.MIN_PRIORITY, "a");
+        DefaultDependentPrioritizedTask<Object> normal = newTask("normal", Thread.NORM_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> mid = newTask("mid", Thread.MIN_PRIORITY, "b", "a");
+        DefaultDependentPrioritizedTask<Object> high = newTask("high", Thread.MAX_PRIORITY, "b");
+        taskGroup.addTask(low);
+        taskGroup.addTask(normal);
+        taskGroup.addTask(mid);
+        assertEquals(low.getEffectivePriority(), Thread.MIN_PRIORITY);
+        // low is already ready to run, it is requeued as it inherits high's priority.
+        taskGroup.addTask(high);
+        assertEquals(mid.getEffectivePriority(), Thread.MAX_PRIORITY);
+        assertEquals(low.getEffectivePriority(), Thread.MAX_PRIORITY);
+        assertEquals(low.getPriority(), Thread.MIN_PRIORITY);
+        assertEquals(normal.getEffectivePriority(), Thread.NORM_PRIORITY);
+
+        List<String> order = new ArrayList<String>();
+        PrioritizedTask next;
+        while ((next = taskGroup.nextTask()) != null) {
+            order.add(next.getName());
+            next.run();
+        }
+        assertEquals(order, Arrays.asList("low", "mid", "high", "normal"));
+    }
+
+    @Test
+    public void testEligibleComparator() {
+        PriorityEligibleWorkItemComparator comparator = new PriorityEligibleWorkItemComparator();
+        DefaultDependentPrioritizedTask<Object> low = newTask("low", Thread.MIN_PRIORITY);
+        DefaultDependentPrioritizedTask<Object> normal = newTask("normal", Thread.NORM_PRIORITY);
+        assertEquals(Integer.signum(comparator.compare(normal, low)), -1);
+        low.setInheritedPriority(Thread.MAX_PRIORITY);
+        assertEquals(Integer.signum(comparator.compare(normal, low)), 1);
+    }
+
+    private static DefaultDependentPrioritizedTask<Object> newTask(String name, int priority, String... exclusive) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(priority) {
+            @Override
+            protected Object callBody() {
+                return null;
+            }
+        };
+        task.setName(name);
+        for (String resourceName : exclusive) {
+            task.addLock(new ResourceLock(resourceName, ResourceLock.WRITEX));
+        }
+        return task;
+    }
+}
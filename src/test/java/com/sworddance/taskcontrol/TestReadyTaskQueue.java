@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link ReadyTaskQueue}.
+ */
+public class TestReadyTaskQueue {
+
+    @Test
+    public void testAddRemove() {
+        ReadyTaskQueue queue = new ReadyTaskQueue(new PriorityEligibleWorkItemComparator());
+        DefaultPrioritizedTask<Object> low = newTask(Thread.MIN_PRIORITY);
+        DefaultPrioritizedTask<Object> high = newTask(Thread.MAX_PRIORITY);
+        assertTrue(queue.add(low));
+        assertFalse(queue.add(low));
+        assertTrue(queue.add(high));
+        assertEquals(queue.size(), 2);
+        assertTrue(queue.contains(low));
+        assertTrue(queue.remove(low));
+        assertFalse(queue.remove(low));
+        assertFalse(queue.contains(low));
+        assertEquals(queue.poll(), high);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    /**
+     * tasks removed from the middle of the queue, and requeued with a new priority, keep the queue in order.
+     */
+    @Test
+    public void testOrderAfterRemoves() {
+        PriorityEligibleWorkItemComparator comparator = new PriorityEligibleWorkItemComparator();
+        ReadyTaskQueue queue = new ReadyTaskQueue(comparator);
+        Random random = new Random(1);
+        List<DefaultPrioritizedTask<Object>> tasks = new ArrayList<DefaultPrioritizedTask<Object>>();
+        for (int i = 0; i < 200; i++) {
+            DefaultPrioritizedTask<Object> task = newTask(Thread.MIN_PRIORITY + random.nextInt(5));
+            tasks.add(task);
+            queue.add(task);
+        }
+        List<DefaultPrioritizedTask<Object>> expected = new ArrayList<DefaultPrioritizedTask<Object>>(tasks);
+        for (int i = 0; i < 100; i++) {
+            DefaultPrioritizedTask<Object> task = tasks.get(random.nextInt(tasks.size()));
+            if (!queue.remove(task)) {
+                continue;
+            } else if (random.nextBoolean()) {
+                task.setInheritedPriority(Thread.MIN_PRIORITY + random.nextInt(Thread.MAX_PRIORITY));
+                queue.add(task);
+            } else {
+                expected.remove(task);
+            }
+        }
+        Collections.sort(expected, comparator);
+        assertEquals(queue.size(), expected.size());
+        for (PrioritizedTask task : expected) {
+            // tasks with the same priority can come out in any order.
+            assertEquals(queue.poll().getEffectivePriority(), task.getEffectivePriority());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    private DefaultPrioritizedTask<Object> newTask(int priority) {
+        return new DefaultPrioritizedTask<Object>((Runnable) null, priority);
+    }
+}
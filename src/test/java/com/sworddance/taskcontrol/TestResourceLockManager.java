@@ -21,6 +21,7 @@ import static org.testng.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.testng.annotations.BeforeMethod;
@@ -317,8 +318,10 @@ public class TestResourceLockManager {
         t1.setResourceLocksNeeded(l1);
         resourceManager.addTaskLocks(t1);
 
-        assertEquals(2, t0.getResourceLocksNeeded().size());
+        // no locks are created on the other resources for the global exclusive lock.
+        assertEquals(1, t0.getResourceLocksNeeded().size());
         assertEquals(2, t1.getResourceLocksNeeded().size());
+        assertTrue(resourceManager.getDependentTasks(t1, false).contains(t0));
 
         DefaultDependentPrioritizedTask<?> t2 = new DefaultDependentPrioritizedTask<Object>();
         t2.setName("t2");
@@ -328,10 +331,11 @@ public class TestResourceLockManager {
         t2.setResourceLocksNeeded(l2);
         resourceManager.addTaskLocks(t2);
 
-        assertEquals(3, t0.getResourceLocksNeeded().size());
+        assertEquals(1, t0.getResourceLocksNeeded().size());
         assertEquals(2, t1.getResourceLocksNeeded().size());
-        // global + R1 + R2 resource.
-        assertEquals(3, t2.getResourceLocksNeeded().size());
+        // global + R2 resource.
+        assertEquals(2, t2.getResourceLocksNeeded().size());
+        assertTrue(resourceManager.getDependentTasks(t2, false).contains(t1));
 
         DefaultDependentPrioritizedTask<?> t3 = new DefaultDependentPrioritizedTask<Object>();
         t3.setName("t3");
@@ -342,14 +346,28 @@ public class TestResourceLockManager {
         t3.setResourceLocksNeeded(l3);
         resourceManager.addTaskLocks(t3);
 
-        assertEquals(5, t0.getResourceLocksNeeded().size());
-        // just the original 2 locks
+        assertEquals(1, t0.getResourceLocksNeeded().size());
         assertEquals(2, t1.getResourceLocksNeeded().size());
-        // the original 2 locks + 1*3 for the other resources that weren't given
-        // explicit mentions
-        assertEquals(5, t2.getResourceLocksNeeded().size());
-        // the original 3 locks + 1*2 for each other nonspecified resource
-        assertEquals(5, t3.getResourceLocksNeeded().size());
+        assertEquals(2, t2.getResourceLocksNeeded().size());
+        // just the original 3 locks
+        assertEquals(3, t3.getResourceLocksNeeded().size());
+        assertTrue(resourceManager.getDependentTasks(t3, false).contains(t2));
+        assertFalse(resourceManager.isTaskUnblocked(t3));
+
+        // a subtask of a task with a global exclusive lock can lock any resource, ahead of the tasks added later.
+        DefaultDependentPrioritizedTask<?> subtask = new DefaultDependentPrioritizedTask<Object>();
+        subtask.setName("subtask");
+        subtask.setParentTask(t0);
+        subtask.addLock(new ResourceLock(R1, ResourceLock.EXCLUSIVE));
+        resourceManager.addTaskLocks(subtask);
+        // t1's lock on R1 was granted until the subtask's lock went in front of it.
+        assertEquals(resourceManager.drainBlockedTasks(), Collections.singleton(t1));
+        assertTrue(resourceManager.drainBlockedTasks().isEmpty());
+        assertTrue(resourceManager.getDependentTasks(t1, false).contains(subtask));
+        assertFalse(resourceManager.getDependentTasks(subtask, false).contains(t1));
+        resourceManager.releaseTaskLocks(t0);
+        assertTrue(resourceManager.isTaskUnblocked(subtask));
+        assertFalse(resourceManager.isTaskUnblocked(t1));
     }
 
     /**
@@ -441,6 +459,272 @@ public class TestResourceLockManager {
         assertTrue(resourceManager.getUnblockedTasks().contains(t3));
     }
 
+    /**
+     * make sure the single task checks agree with {@link ResourceLockManager#getUnblockedTasks()} as locks are released.
+     */
+    public void testIncrementalUnblocking() {
+        List<DefaultDependentPrioritizedTask<?>> tasks = new ArrayList<DefaultDependentPrioritizedTask<?>>();
+        int[] lockTypes = { ResourceLock.NONEXCLUSIVE, ResourceLock.NONEXCLUSIVE, ResourceLock.EXCLUSIVE,
+                ResourceLock.NONEXCLUSIVE, ResourceLock.EXCLUSIVE, ResourceLock.EXCLUSIVE };
+        for (int i = 0; i < lockTypes.length; i++) {
+            DefaultDependentPrioritizedTask<?> t = new DefaultDependentPrioritizedTask<Object>();
+            t.setName("t" + i);
+            t.addLock(new ResourceLock(i % 2 == 0 ? R1 : R2, lockTypes[i]));
+            if (i == 3) {
+                t.addLock(ResourceLockManager.createGlobalExclusiveResourceLock());
+            }
+            resourceManager.addTaskLocks(t);
+            tasks.add(t);
+        }
+        List<DefaultDependentPrioritizedTask<?>> running = new ArrayList<DefaultDependentPrioritizedTask<?>>();
+        while (!tasks.isEmpty()) {
+            List<?> unblocked = resourceManager.getUnblockedTasks();
+            for (DefaultDependentPrioritizedTask<?> t : tasks) {
+                assertEquals(resourceManager.isTaskUnblocked(t), unblocked.contains(t), t.getName());
+            }
+            DefaultDependentPrioritizedTask<?> t = (DefaultDependentPrioritizedTask<?>) unblocked.get(0);
+            assertTrue(tasks.remove(t));
+            resourceManager.drainUnblockedTasks();
+            resourceManager.releaseTaskLocks(t);
+            Collection<ResourceLocker> candidates = resourceManager.drainUnblockedTasks();
+            for (Object newlyUnblocked : resourceManager.getUnblockedTasks()) {
+                if (!unblocked.contains(newlyUnblocked)) {
+                    assertTrue(candidates.contains(newlyUnblocked), newlyUnblocked + " not found as a candidate");
+                }
+            }
+            running.add(t);
+        }
+        assertEquals(running.size(), lockTypes.length);
+    }
+
+    /**
+     * make sure that the released locks being compacted in the background does not lose locks or history.
+     */
+    public void testReleasedLockCompaction() {
+        int count = ResourceLockQueue.COMPACTION_THRESHOLD * 4;
+        List<DefaultDependentPrioritizedTask<?>> tasks = new ArrayList<DefaultDependentPrioritizedTask<?>>();
+        for (int i = 0; i < count; i++) {
+            DefaultDependentPrioritizedTask<?> t = new DefaultDependentPrioritizedTask<Object>();
+            t.setName("t" + i);
+            t.addLock(new ResourceLock(R1, ResourceLock.EXCLUSIVE));
+            resourceManager.addTaskLocks(t);
+            tasks.add(t);
+        }
+        for (int i = 0; i < count; i++) {
+            DefaultDependentPrioritizedTask<?> t = tasks.get(i);
+            assertTrue(resourceManager.isTaskUnblocked(t), t.getName());
+            if (i + 1 < count) {
+                assertFalse(resourceManager.isTaskUnblocked(tasks.get(i + 1)), t.getName());
+            }
+            resourceManager.releaseTaskLocks(t);
+        }
+        DefaultDependentPrioritizedTask<?> last = tasks.get(count - 1);
+        assertEquals(resourceManager.getDependentTasks(last, false).size(), count - 1);
+        // header line + one line for each task's global lock
+        assertEquals(resourceManager.generateLockMatrix().size(), count + 1);
+    }
+
+    /**
+     * a running task releasing or downgrading one of its locks unblocks only the tasks waiting on that lock.
+     */
+    public void testReleaseAndDowngradeSingleLock() {
+        DefaultDependentPrioritizedTask<?> holder = new DefaultDependentPrioritizedTask<Object>();
+        ResourceLock held1 = new ResourceLock(R1, ResourceLock.WRITEX);
+        ResourceLock held2 = new ResourceLock(R2, ResourceLock.EXCLUSIVE);
+        holder.addLock(held1);
+        holder.addLock(held2);
+        resourceManager.addTaskLocks(holder);
+        DefaultDependentPrioritizedTask<?> reader = new DefaultDependentPrioritizedTask<Object>();
+        reader.addLock(new ResourceLock(R1, ResourceLock.READNX));
+        resourceManager.addTaskLocks(reader);
+        DefaultDependentPrioritizedTask<?> writer = new DefaultDependentPrioritizedTask<Object>();
+        writer.addLock(new ResourceLock(R2, ResourceLock.EXCLUSIVE));
+        resourceManager.addTaskLocks(writer);
+        assertTrue(resourceManager.isTaskUnblocked(holder));
+        assertFalse(resourceManager.isTaskUnblocked(reader));
+        assertFalse(resourceManager.isTaskUnblocked(writer));
+        resourceManager.drainUnblockedTasks();
+
+        resourceManager.downgradeLock(held1, ResourceLock.READNX);
+        assertFalse(held1.isExclusiveLock());
+        assertTrue(resourceManager.isTaskUnblocked(reader));
+        assertFalse(resourceManager.isTaskUnblocked(writer));
+        assertTrue(resourceManager.drainUnblockedTasks().contains(reader));
+
+        resourceManager.releaseLock(held2);
+        assertTrue(resourceManager.isTaskUnblocked(writer));
+        assertTrue(resourceManager.drainUnblockedTasks().contains(writer));
+        // releasing the rest when the holder completes does not disturb the others.
+        resourceManager.releaseTaskLocks(holder);
+        assertTrue(resourceManager.isTaskUnblocked(reader));
+        assertTrue(resourceManager.isTaskUnblocked(writer));
+    }
+
+    /**
+     * locks on sibling resources do not block each other, a lock on the parent resource blocks and is blocked by the
+     * locks on its descendants, without locks being created on the descendants.
+     */
+    public void testHierarchicalResources() {
+        DefaultDependentPrioritizedTask<?> order1 = newLockingTask("db/orders/1", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> order2 = newLockingTask("db/orders/2", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> orders = newLockingTask("db/orders", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> order3 = newLockingTask("db/orders/3", ResourceLock.READNX);
+        assertTrue(resourceManager.isTaskUnblocked(order1));
+        assertTrue(resourceManager.isTaskUnblocked(order2));
+        assertFalse(resourceManager.isTaskUnblocked(orders));
+        assertFalse(resourceManager.isTaskUnblocked(order3));
+        // the explicit lock, intention locks on db/orders and db, and the global lock.
+        assertEquals(order1.getResourceLocksNeeded().size(), 4);
+        // the explicit lock, an intention lock on db, and the global lock. Nothing on the orders.
+        assertEquals(orders.getResourceLocksNeeded().size(), 3);
+        assertTrue(resourceManager.getDependentTasks(orders, false).contains(order1));
+        assertFalse(resourceManager.getDependentTasks(order2, false).contains(order1));
+
+        resourceManager.releaseTaskLocks(order1);
+        assertFalse(resourceManager.isTaskUnblocked(orders));
+        resourceManager.releaseTaskLocks(order2);
+        assertTrue(resourceManager.isTaskUnblocked(orders));
+        assertFalse(resourceManager.isTaskUnblocked(order3));
+        resourceManager.releaseTaskLocks(orders);
+        assertTrue(resourceManager.isTaskUnblocked(order3));
+    }
+
+    /**
+     * reading a resource conflicts with changing any of its descendants.
+     */
+    public void testHierarchicalReadBlocksDescendantWrite() {
+        DefaultDependentPrioritizedTask<?> reader = newLockingTask("db", ResourceLock.READNX);
+        DefaultDependentPrioritizedTask<?> descendantReader = newLockingTask("db/a", ResourceLock.READNX);
+        DefaultDependentPrioritizedTask<?> writer = newLockingTask("db/b", ResourceLock.WRITEX);
+        assertTrue(resourceManager.isTaskUnblocked(reader));
+        assertTrue(resourceManager.isTaskUnblocked(descendantReader));
+        assertFalse(resourceManager.isTaskUnblocked(writer));
+        resourceManager.releaseTaskLocks(reader);
+        assertTrue(resourceManager.isTaskUnblocked(writer));
+
+        // a task reading a resource and changing one of its descendants holds the resource exclusively.
+        DefaultDependentPrioritizedTask<?> both = new DefaultDependentPrioritizedTask<Object>();
+        ResourceLock parentLock = new ResourceLock("tree", ResourceLock.READNX);
+        both.addLock(parentLock);
+        both.addLock(new ResourceLock("tree/leaf", ResourceLock.WRITEX));
+        resourceManager.addTaskLocks(both);
+        assertTrue(parentLock.isExclusiveLock());
+    }
+
+    /**
+     * a task reading a resource and changing part of it is queued as exclusive on the resource, so it waits for an
+     * earlier reader and later readers wait for it.
+     */
+    public void testAncestorLockUpgradedBeforeQueued() {
+        DefaultDependentPrioritizedTask<?> reader = newLockingTask("db", ResourceLock.READNX);
+        DefaultDependentPrioritizedTask<?> writer = new DefaultDependentPrioritizedTask<Object>();
+        writer.setName("writer");
+        writer.addLock(new ResourceLock("db", ResourceLock.NONEXCLUSIVE));
+        writer.addLock(new ResourceLock("db/orders", ResourceLock.EXCLUSIVE));
+        resourceManager.addTaskLocks(writer);
+        DefaultDependentPrioritizedTask<?> laterReader = newLockingTask("db", ResourceLock.READNX);
+        assertTrue(resourceManager.isTaskUnblocked(reader));
+        assertFalse(resourceManager.isTaskUnblocked(writer));
+        assertFalse(resourceManager.isTaskUnblocked(laterReader));
+        resourceManager.releaseTaskLocks(reader);
+        assertTrue(resourceManager.isTaskUnblocked(writer));
+        assertFalse(resourceManager.isTaskUnblocked(laterReader));
+        resourceManager.releaseTaskLocks(writer);
+        assertTrue(resourceManager.isTaskUnblocked(laterReader));
+    }
+
+    /**
+     * releasing or downgrading a lock on part of a resource weakens the intention locks on the rest of the resource;
+     * releasing the lock on the whole resource while still holding a lock on a part only weakens the lock.
+     */
+    public void testHierarchicalEarlyRelease() {
+        DefaultDependentPrioritizedTask<?> holder = new DefaultDependentPrioritizedTask<Object>();
+        holder.setName("holder");
+        ResourceLock order1 = new ResourceLock("db/orders/1", ResourceLock.WRITEX);
+        holder.addLock(order1);
+        resourceManager.addTaskLocks(holder);
+        DefaultDependentPrioritizedTask<?> reader = newLockingTask("db/orders", ResourceLock.READNX);
+        assertFalse(resourceManager.isTaskUnblocked(reader));
+        // the intention lock on db/orders is not the holder's to release.
+        assertFalse(holder.releaseLock("db/orders"));
+        resourceManager.downgradeLock(order1, ResourceLock.READNX);
+        assertTrue(resourceManager.isTaskUnblocked(reader));
+        DefaultDependentPrioritizedTask<?> writer = newLockingTask("db/orders", ResourceLock.WRITEX);
+        resourceManager.releaseTaskLocks(reader);
+        assertFalse(resourceManager.isTaskUnblocked(writer));
+        resourceManager.releaseLock(order1);
+        assertTrue(resourceManager.isTaskUnblocked(writer));
+
+        DefaultDependentPrioritizedTask<?> both = new DefaultDependentPrioritizedTask<Object>();
+        ResourceLock items = new ResourceLock("shop/items", ResourceLock.WRITEX);
+        ResourceLock item1 = new ResourceLock("shop/items/1", ResourceLock.WRITEX);
+        both.addLock(items);
+        both.addLock(item1);
+        resourceManager.addTaskLocks(both);
+        DefaultDependentPrioritizedTask<?> item2 = newLockingTask("shop/items/2", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> itemsReader = newLockingTask("shop/items", ResourceLock.READNX);
+        resourceManager.releaseLock(items);
+        assertFalse(items.isLockReleased());
+        assertTrue(resourceManager.isTaskUnblocked(item2));
+        assertFalse(resourceManager.isTaskUnblocked(itemsReader));
+        resourceManager.releaseLock(item1);
+        assertTrue(items.isLockReleased());
+        resourceManager.releaseTaskLocks(item2);
+        assertTrue(resourceManager.isTaskUnblocked(itemsReader));
+    }
+
+    /**
+     * a subtask can lock part of a resource its parent locked, ahead of the tasks added after the parent.
+     */
+    public void testSubtaskLocksPartOfParentResource() {
+        DefaultDependentPrioritizedTask<?> parent = newLockingTask("db/orders", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> later = newLockingTask("db/orders/1", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<?> subtask = new DefaultDependentPrioritizedTask<Object>();
+        subtask.setName("subtask");
+        subtask.setParentTask(parent);
+        subtask.addLock(new ResourceLock("db/orders/1", ResourceLock.WRITEX));
+        resourceManager.addTaskLocks(subtask);
+        DefaultDependentPrioritizedTask<?> deeper = new DefaultDependentPrioritizedTask<Object>();
+        deeper.setName("deeper");
+        deeper.setParentTask(parent);
+        deeper.addLock(new ResourceLock("db/orders/1/lines", ResourceLock.READNX));
+        resourceManager.addTaskLocks(deeper);
+        // the explicit lock, an intention lock on db/orders/1 and the global lock.
+        assertEquals(deeper.getResourceLocksNeeded().size(), 3);
+        assertTrue(resourceManager.getDependentTasks(later, false).contains(subtask));
+        assertTrue(resourceManager.getDependentTasks(later, false).contains(deeper));
+        assertFalse(resourceManager.getDependentTasks(subtask, false).contains(later));
+
+        resourceManager.releaseTaskLocks(parent);
+        assertTrue(resourceManager.isTaskUnblocked(subtask));
+        assertFalse(resourceManager.isTaskUnblocked(later));
+        resourceManager.releaseTaskLocks(subtask);
+        assertTrue(resourceManager.isTaskUnblocked(deeper));
+        resourceManager.releaseTaskLocks(deeper);
+        assertTrue(resourceManager.isTaskUnblocked(later));
+
+        // the parent has only an intention lock on the rest of db.
+        DefaultDependentPrioritizedTask<?> stranger = new DefaultDependentPrioritizedTask<Object>();
+        stranger.setParentTask(parent);
+        stranger.addLock(new ResourceLock("db/customers", ResourceLock.READNX));
+        try {
+            resourceManager.addTaskLocks(stranger);
+            fail("subtask locked a resource its parent does not have");
+        } catch (AssertionError e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // expected.
+        }
+    }
+
+    private DefaultDependentPrioritizedTask<?> newLockingTask(String resourceName, int lockType) {
+        DefaultDependentPrioritizedTask<?> t = new DefaultDependentPrioritizedTask<Object>();
+        t.setName(resourceName);
+        t.addLock(new ResourceLock(resourceName, lockType));
+        resourceManager.addTaskLocks(t);
+        return t;
+    }
+
     public void testLockSubsets() {
         ResourceLock r1 = new ResourceLock(R1, ResourceLock.POST_INDEX_LOCK
                 | ResourceLock.GLOBALLOCKTYPE);
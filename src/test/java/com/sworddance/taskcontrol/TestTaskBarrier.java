@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link TaskBarrier} and the serial tasks built on it.
+ */
+public class TestTaskBarrier {
+
+    /**
+     * Each serial task runs after all the tasks added before it, depending only on one barrier.
+     * @throws Exception
+     */
+    @Test
+    public void testSerialTasks() throws Exception {
+        TaskControl taskControl = new TaskControl(4, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("serial");
+        List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 20; i++) {
+            taskGroup.addTask(newTask("first", completed));
+        }
+        DefaultDependentPrioritizedTask<Object> serial1 = newTask("serial1", completed);
+        taskGroup.addSerialTask(serial1, false);
+        for (int i = 0; i < 20; i++) {
+            taskGroup.addTask(newTask("second", completed));
+        }
+        DefaultDependentPrioritizedTask<Object> serial2 = newTask("serial2", completed);
+        taskGroup.addSerialTask(serial2, false);
+        assertEquals(serial2.getDependenciesStr(), "Dependent Tasks: \"serial:barrier2\" ");
+        run(taskControl, taskGroup);
+        assertEquals(completed.size(), 42);
+        // the tasks added after serial1 do not wait for it.
+        assertTrue(completed.indexOf("serial1") > completed.lastIndexOf("first"));
+        assertEquals(completed.indexOf("serial2"), 41);
+        assertTrue(serial2.isSuccessful());
+    }
+
+    /**
+     * A serial task fails if a task before it fails, unless it is always run.
+     * @throws Exception
+     */
+    @Test
+    public void testFailedTask() throws Exception {
+        TaskControl taskControl = new TaskControl(2, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("failure");
+        List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        taskGroup.addTask(newTask("ok", completed));
+        taskGroup.addTask(new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        });
+        DefaultDependentPrioritizedTask<Object> serial = newTask("serial", completed);
+        taskGroup.addSerialTask(serial, false);
+        DefaultDependentPrioritizedTask<Object> cleanUp = newTask("cleanUp", completed);
+        cleanUp.setIgnoreTaskGroupFailure(true);
+        taskGroup.addSerialTask(cleanUp, true);
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        t.join();
+        assertTrue(serial.isFailed());
+        assertFalse(completed.contains("serial"));
+        assertTrue(cleanUp.isSuccessful());
+        assertEquals(completed.get(completed.size() - 1), "cleanUp");
+    }
+
+    /**
+     * A subtask added by a task in a barrier is also waited for by the barrier.
+     * @throws Exception
+     */
+    @Test
+    public void testSubtask() throws Exception {
+        TaskControl taskControl = new TaskControl(4, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        final TaskGroup<?> taskGroup = taskControl.newTaskGroup("subtask");
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        DefaultDependentPrioritizedTask<Object> parent = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                DefaultDependentPrioritizedTask<Object> subtask = newTask("subtask", completed);
+                subtask.setParentTask(this);
+                taskGroup.addSubtask(this, subtask);
+                completed.add("parent");
+                return null;
+            }
+        };
+        taskGroup.addTask(parent);
+        taskGroup.addSerialTask(newTask("serial", completed), false);
+        run(taskControl, taskGroup);
+        assertEquals(completed.size(), 3);
+        assertEquals(completed.get(2), "serial");
+    }
+
+    @Test
+    public void testDependentTasks() {
+        DefaultDependentPrioritizedTask<Object> dependency = new DefaultDependentPrioritizedTask<Object>();
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>();
+        DefaultDependentPrioritizedTask<Object> cleanUp = new DefaultDependentPrioritizedTask<Object>();
+        task.addDependency(dependency);
+        cleanUp.addAlwaysDependency(dependency);
+        assertEquals(dependency.getDependentTasks().size(), 2);
+        assertTrue(dependency.getDependentTasks().contains(task));
+        assertTrue(dependency.getDependentTasks().contains(cleanUp));
+        assertTrue(task.getDependentTasks().isEmpty());
+    }
+
+    private void run(TaskControl taskControl, TaskGroup<?> taskGroup) throws Exception {
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        t.join();
+        taskGroup.getResult().get(10, SECONDS);
+    }
+
+    private DefaultDependentPrioritizedTask<Object> newTask(final String name, final List<String> completed) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                Thread.sleep(1);
+                completed.add(name);
+                return null;
+            }
+        };
+        task.setName(name);
+        return task;
+    }
+}
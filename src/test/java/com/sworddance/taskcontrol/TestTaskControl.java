@@ -14,9 +14,13 @@
 package com.sworddance.taskcontrol;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -325,6 +329,176 @@ public class TestTaskControl {
         assertEquals(orderOut.expected, -1);
     }
 
+    /**
+     * same as {@link #testComplexDependency(TaskGroup, OrderedOut, Log)} but with TaskGroups pushing state changes
+     * to the TaskControl.
+     * @param taskGroup
+     * @param orderOut
+     * @param log
+     * @throws Exception
+     */
+    @Test(dataProvider="testObjects")
+    public void testEventDrivenDispatch(TaskGroup<?> taskGroup, OrderedOut orderOut, Log log) throws Exception {
+        TaskControl taskControl = new TaskControl(new TestPriorityComparator(), 5, log);
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        orderOut.down = true;
+        List<TestTask> list = new ArrayList<TestTask>();
+        for (int i = 0; i < 20; i++) {
+            TestTask task = new TestTask("testEventDrivenDispatch", i, orderOut);
+            list.add(task);
+            orderOut.expected = i;
+        }
+        for (int k = 0; k < list.size(); k++) {
+            TestTask task = list.get(k);
+            for (int m = 1; m < 4 && m + k < list.size(); m++) {
+                task.addDependency(list.get(k + m));
+            }
+        }
+        for (int k = list.size() - 1; k >= 0; k--) {
+            taskGroup.addTask(list.get(k));
+        }
+        startTaskControl(taskControl, taskGroup);
+        orderOut.printErrorMessage();
+        for (int k = 0; k < list.size(); k++) {
+            assertTrue(list.get(k).callBodyCalled, "Task #" + k + " should be run");
+        }
+        assertEquals(orderOut.expected, -1);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * tasks added in a batch with {@link TaskGroup#addTasks(java.util.Collection)} keep their lock ordering.
+     * @param taskGroup
+     * @param orderOut
+     * @param log
+     * @throws Exception
+     */
+    @Test(dataProvider="testObjects")
+    public void testAddTasks(TaskGroup<?> taskGroup, OrderedOut orderOut, Log log) throws Exception {
+        TaskControl taskControl = new TaskControl(new TestPriorityComparator(), 5, log);
+        List<TestTask> list = new ArrayList<TestTask>();
+        for (int i = 0; i < 100; i++) {
+            TestTask task = new TestTask("testAddTasks", i, orderOut);
+            // exclusive lock forces FIFO even with multiple threads.
+            task.addLock(new ResourceLock("shared", ResourceLock.EXCLUSIVE));
+            list.add(task);
+        }
+        taskGroup.addTasks(list);
+        startTaskControl(taskControl, taskGroup);
+        orderOut.printErrorMessage();
+        assertEquals(orderOut.expected, 100);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * a task that can never run because its dependency failed still counts towards the TaskGroup completing.
+     * @param taskGroup
+     * @param orderOut
+     * @param log
+     * @throws Exception
+     */
+    @Test(dataProvider="testObjects")
+    public void testCompletionWithDeadTasks(TaskGroup<?> taskGroup, OrderedOut orderOut, Log log) throws Exception {
+        TaskControl taskControl = new TaskControl(2, log);
+        DefaultDependentPrioritizedTask<Object> failing = new DefaultDependentPrioritizedTask<Object>(
+            new TestDefaultDependentPrioritizedTask.ExceptionGenerator());
+        DefaultDependentPrioritizedTask<Object> dependent = new DefaultDependentPrioritizedTask<Object>(
+            new TestDefaultDependentPrioritizedTask.ExceptionGenerator());
+        dependent.addDependency(failing);
+        DefaultDependentPrioritizedTask<Object> independent = new DefaultDependentPrioritizedTask<Object>(new Runnable() {
+            public void run() {
+            }
+        });
+        taskGroup.addTask(failing);
+        taskGroup.addTask(dependent);
+        taskGroup.addTask(independent);
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 3);
+        assertFalse(taskGroup.isTaskGroupTasksComplete());
+        startTaskControl(taskControl, taskGroup);
+        assertTrue(taskGroup.isTaskGroupTasksComplete());
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 0);
+        assertTrue(taskGroup.getResult().isDone());
+        assertFalse(dependent.isSuccessful());
+        assertTrue(independent.isSuccessful());
+    }
+
+    /**
+     * same as {@link #testComplexDependency(TaskGroup, OrderedOut, Log)} but run on a {@link WorkStealingExecutor}.
+     * @param taskGroup
+     * @param orderOut
+     * @param log
+     * @throws Exception
+     */
+    @Test(dataProvider="testObjects")
+    public void testWorkStealingExecutor(TaskGroup<?> taskGroup, OrderedOut orderOut, Log log) throws Exception {
+        TaskControl taskControl = new TaskControl(new TestPriorityComparator(), 5, TaskExecutorType.workStealing, log);
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        orderOut.down = true;
+        List<TestTask> list = new ArrayList<TestTask>();
+        for (int i = 0; i < 20; i++) {
+            TestTask task = new TestTask("testWorkStealingExecutor", i, orderOut);
+            list.add(task);
+            orderOut.expected = i;
+        }
+        for (int k = 0; k < list.size(); k++) {
+            TestTask task = list.get(k);
+            for (int m = 1; m < 4 && m + k < list.size(); m++) {
+                task.addDependency(list.get(k + m));
+            }
+        }
+        for (int k = list.size() - 1; k >= 0; k--) {
+            taskGroup.addTask(list.get(k));
+        }
+        startTaskControl(taskControl, taskGroup);
+        orderOut.printErrorMessage();
+        for (int k = 0; k < list.size(); k++) {
+            assertTrue(list.get(k).callBodyCalled, "Task #" + k + " should be run");
+        }
+        assertEquals(orderOut.expected, -1);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * same as {@link #testComplexDependency(TaskGroup, OrderedOut, Log)} but with a thread per task. Uses virtual
+     * threads if this jvm has them.
+     * @param taskGroup
+     * @param orderOut
+     * @param log
+     * @throws Exception
+     */
+    @Test(dataProvider="testObjects")
+    public void testVirtualThreadExecutor(TaskGroup<?> taskGroup, OrderedOut orderOut, Log log) throws Exception {
+        ThreadFactoryImpl threadFactory = VirtualThreadFactoryImpl.isSupported() ? new VirtualThreadFactoryImpl()
+            : new ThreadFactoryImpl();
+        TaskControl taskControl = new TaskControl(new TestPriorityComparator(), 3, threadFactory,
+            TaskExecutorType.virtualThread, log);
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        orderOut.down = true;
+        List<TestTask> list = new ArrayList<TestTask>();
+        for (int i = 0; i < 20; i++) {
+            TestTask task = new TestTask("testVirtualThreadExecutor", i, orderOut);
+            list.add(task);
+            orderOut.expected = i;
+        }
+        for (int k = 0; k < list.size(); k++) {
+            TestTask task = list.get(k);
+            for (int m = 1; m < 4 && m + k < list.size(); m++) {
+                task.addDependency(list.get(k + m));
+            }
+        }
+        for (int k = list.size() - 1; k >= 0; k--) {
+            taskGroup.addTask(list.get(k));
+        }
+        startTaskControl(taskControl, taskGroup);
+        threadFactory.shutDownNow();
+        orderOut.printErrorMessage();
+        for (int k = 0; k < list.size(); k++) {
+            assertTrue(list.get(k).callBodyCalled, "Task #" + k + " should be run");
+        }
+        assertEquals(orderOut.expected, -1);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
     /**
      * make sure an empty taskgroup immediately reports that it is done (especially with result)
      * @throws Exception
@@ -341,6 +515,140 @@ public class TestTaskControl {
         result.get(1L, TimeUnit.NANOSECONDS);
 
     }
+
+    /**
+     * a task that releases its lock part way through lets the task waiting on the lock run before it completes.
+     * @throws Exception
+     */
+    @Test
+    public void testEarlyLockRelease() throws Exception {
+        TaskControl taskControl = new TaskControl(2, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("earlyRelease");
+        final CountDownLatch waiterRan = new CountDownLatch(1);
+        final boolean[] waiterRanFirst = new boolean[1];
+        DefaultDependentPrioritizedTask<Object> holder = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                assertTrue(releaseLock("resource"));
+                assertFalse(releaseLock("resource"));
+                waiterRanFirst[0] = waiterRan.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        };
+        holder.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        DefaultDependentPrioritizedTask<Object> waiter = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() {
+                waiterRan.countDown();
+                return null;
+            }
+        };
+        waiter.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        taskGroup.addTask(holder);
+        taskGroup.addTask(waiter);
+        startTaskControl(taskControl, taskGroup);
+        assertTrue(holder.isSuccessful(), "" + holder.getException());
+        assertTrue(waiterRanFirst[0], "waiter did not run until the holder completed");
+    }
+
+    /**
+     * a task already waiting in the TaskControl's queue for a worker moves ahead when a higher priority task needs its
+     * lock.
+     * @throws Exception
+     */
+    @Test
+    public void testInheritedPriorityOfQueuedTask() throws Exception {
+        TaskControl taskControl = new TaskControl(1, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("queuedHolder");
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch busyRunning = new CountDownLatch(1);
+        final CountDownLatch releaseBusy = new CountDownLatch(1);
+        DefaultDependentPrioritizedTask<Object> busy = new DefaultDependentPrioritizedTask<Object>(Thread.MAX_PRIORITY) {
+            @Override
+            protected Object callBody() throws Exception {
+                busyRunning.countDown();
+                assertTrue(releaseBusy.await(10, TimeUnit.SECONDS));
+                return null;
+            }
+        };
+        DefaultDependentPrioritizedTask<Object> holder = newOrderedTask("holder", Thread.MIN_PRIORITY, order);
+        holder.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        DefaultDependentPrioritizedTask<Object> other = newOrderedTask("other", Thread.NORM_PRIORITY, order);
+        DefaultDependentPrioritizedTask<Object> waiter = newOrderedTask("waiter", Thread.MAX_PRIORITY, order);
+        waiter.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        taskGroup.addTask(busy);
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread thread = new Thread(taskControl, "TaskControl");
+        thread.start();
+        assertTrue(busyRunning.await(10, TimeUnit.SECONDS));
+        taskGroup.addTask(holder);
+        taskGroup.addTask(other);
+        for (int i = 0; i < 1000 && taskControl.getQueuedTaskCount() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(taskControl.getQueuedTaskCount(), 2);
+        taskGroup.addTask(waiter);
+        releaseBusy.countDown();
+        thread.join();
+        // the waiter and the other task race once the holder finishes.
+        assertEquals(order.size(), 3);
+        assertEquals(order.get(0), "holder");
+    }
+
+    private DefaultDependentPrioritizedTask<Object> newOrderedTask(final String name, int priority,
+        final List<String> order) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(priority) {
+            @Override
+            protected Object callBody() {
+                order.add(name);
+                return null;
+            }
+        };
+        task.setName(name);
+        return task;
+    }
+
+    /**
+     * a task taken by someone else between {@link TaskGroup#isTaskReady()} and {@link TaskGroup#nextTask()}, as a
+     * producer does with {@link TaskCapacityPolicy#callerRuns}, does not stop the dispatcher.
+     * @throws Exception
+     */
+    @Test
+    public void testTaskTakenBeforeDispatch() throws Exception {
+        for (TaskDispatchMode dispatchMode : TaskDispatchMode.values()) {
+            TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+            taskControl.setDispatchMode(dispatchMode);
+            final AtomicBoolean taken = new AtomicBoolean();
+            TaskGroup<Object> taskGroup = new TaskGroup<Object>("taken") {
+                @Override
+                public PrioritizedTask nextTask() {
+                    PrioritizedTask task = super.nextTask();
+                    if (task != null && taken.compareAndSet(false, true)) {
+                        task.run();
+                        return null;
+                    }
+                    return task;
+                }
+            };
+            final AtomicInteger ran = new AtomicInteger();
+            for (int i = 0; i < 3; i++) {
+                taskGroup.addTask(new DefaultDependentPrioritizedTask<Object>(new Runnable() {
+                    public void run() {
+                        ran.incrementAndGet();
+                    }
+                }));
+            }
+            taskControl.addTaskGroup(taskGroup);
+            taskControl.setStayActive(false);
+            Thread thread = new Thread(taskControl, "TaskControl");
+            thread.start();
+            thread.join(5000);
+            assertFalse(thread.isAlive(), dispatchMode + ": dispatcher did not finish");
+            assertEquals(ran.get(), 3, dispatchMode.toString());
+            assertTrue(taskGroup.getResult().isDone(), dispatchMode.toString());
+        }
+    }
     /**
      * a test implementation of {@link DefaultDependentPrioritizedTask}.
      * @author Patrick Moore
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.util.ApplicationIllegalArgumentException;
+
+/**
+ * Test {@link TaskControlThreadBudget}.
+ */
+public class TestTaskControlThreadBudget {
+
+    /**
+     * A TaskControl can borrow beyond its minimum, but never the minimum reserved for another.
+     */
+    @Test
+    public void testMinimumReserved() {
+        TaskControlThreadBudget budget = new TaskControlThreadBudget(3);
+        TaskControlThreadBudget.Allotment first = budget.register(newTaskControl(), 1, 3);
+        TaskControlThreadBudget.Allotment second = budget.register(newTaskControl(), 1, 3);
+        assertEquals(budget.getReserved(), 2);
+        assertTrue(budget.tryAcquire(first));
+        assertTrue(budget.tryAcquire(first));
+        assertFalse(budget.tryAcquire(first));
+        assertFalse(budget.isAvailable(first));
+        assertTrue(budget.isAvailable(second));
+        assertTrue(budget.tryAcquire(second));
+        assertEquals(budget.getRunningTasks(), 3);
+        budget.release(first);
+        assertTrue(budget.tryAcquire(second));
+        assertFalse(budget.tryAcquire(first));
+        assertEquals(budget.getReserved(), 3);
+    }
+
+    /**
+     * The maximum caps a TaskControl even when the budget is idle.
+     */
+    @Test
+    public void testMaximum() {
+        TaskControlThreadBudget budget = new TaskControlThreadBudget(8);
+        TaskControlThreadBudget.Allotment allotment = budget.register(newTaskControl(), 0, 2);
+        assertTrue(budget.tryAcquire(allotment));
+        assertTrue(budget.tryAcquire(allotment));
+        assertFalse(budget.tryAcquire(allotment));
+        budget.unregister(allotment);
+        assertEquals(budget.getReserved(), 0);
+        // returned after unregistering
+        budget.release(allotment);
+        assertEquals(budget.getReserved(), 0);
+    }
+
+    @Test(expectedExceptions = ApplicationIllegalArgumentException.class)
+    public void testMinimumsExceedBudget() {
+        TaskControlThreadBudget budget = new TaskControlThreadBudget(2);
+        budget.register(newTaskControl(), 2, 2);
+        budget.register(newTaskControl(), 1, 2);
+    }
+
+    /**
+     * Two TaskControls that could each run 4 tasks share a budget of 3.
+     * @throws Exception
+     */
+    @Test
+    public void testTaskControlsShareBudget() throws Exception {
+        TaskControlThreadBudget budget = new TaskControlThreadBudget(3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        TaskControl[] taskControls = new TaskControl[2];
+        Thread[] threads = new Thread[taskControls.length];
+        TaskGroup<?>[] taskGroups = new TaskGroup<?>[taskControls.length];
+        for (int i = 0; i < taskControls.length; i++) {
+            taskControls[i] = new TaskControl(4, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+            taskControls[i].setThreadBudget(budget, 1);
+            taskGroups[i] = taskControls[i].newTaskGroup("budget" + i);
+            for (int j = 0; j < 50; j++) {
+                DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+                    @Override
+                    protected Object callBody() throws Exception {
+                        int now = running.incrementAndGet();
+                        int max;
+                        while ((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)) {
+                            // retry
+                        }
+                        Thread.sleep(2);
+                        running.decrementAndGet();
+                        completed.incrementAndGet();
+                        return null;
+                    }
+                };
+                task.setName("task" + j);
+                taskGroups[i].addTask(task);
+            }
+            taskControls[i].addTaskGroup(taskGroups[i]);
+            taskControls[i].setStayActive(false);
+            threads[i] = new Thread(taskControls[i], "TaskControl" + i);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            taskGroups[i].getResult().get(10, SECONDS);
+        }
+        assertEquals(completed.get(), 100);
+        assertTrue(maxRunning.get() <= 3, "maxRunning=" + maxRunning.get());
+        assertEquals(budget.getReserved(), 0);
+    }
+
+    private TaskControl newTaskControl() {
+        return new TaskControl(4, LogFactory.getLog(this.getClass()));
+    }
+}
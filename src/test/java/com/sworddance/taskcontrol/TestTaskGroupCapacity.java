@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link TaskCapacityPolicy}s for {@link TaskGroup} and {@link TaskControl} capacities.
+ */
+public class TestTaskGroupCapacity {
+
+    @Test
+    public void testReject() {
+        TaskGroup<?> taskGroup = newTaskGroup(newTaskControl());
+        taskGroup.setCapacity(2);
+        taskGroup.setCapacityPolicy(TaskCapacityPolicy.reject);
+        FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        taskGroup.addTask(newTask(gate, null));
+        taskGroup.addTask(newTask(gate, null));
+        try {
+            taskGroup.addTask(newTask(gate, null));
+            fail("should be at capacity");
+        } catch (RejectedExecutionException e) {
+            // good
+        }
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 2);
+    }
+
+    @Test
+    public void testBlockWithTimeout() {
+        TaskGroup<?> taskGroup = newTaskGroup(newTaskControl());
+        taskGroup.setCapacity(1);
+        taskGroup.setCapacityPolicy(TaskCapacityPolicy.blockWithTimeout);
+        taskGroup.setCapacityTimeout(50, TimeUnit.MILLISECONDS);
+        FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        taskGroup.addTask(newTask(gate, null));
+        long start = System.currentTimeMillis();
+        try {
+            taskGroup.addTask(newTask(gate, null));
+            fail("should be at capacity");
+        } catch (RejectedExecutionException e) {
+            // good
+        }
+        assertTrue(System.currentTimeMillis() - start >= 40);
+    }
+
+    /**
+     * the producer is blocked until tasks finish, never more than capacity tasks are outstanding.
+     * @throws Exception
+     */
+    @Test
+    public void testBlock() throws Exception {
+        TaskControl taskControl = newTaskControl();
+        TaskGroup<?> taskGroup = newTaskGroup(taskControl);
+        taskGroup.setCapacity(3);
+        FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        gate.set(null);
+        taskGroup.addTask(newTask(gate, null));
+        taskControl.addTaskGroup(taskGroup);
+        Thread thread = new Thread(taskControl, "TaskControl");
+        thread.start();
+        for (int i = 0; i < 50; i++) {
+            taskGroup.addTask(newTask(gate, null));
+            assertTrue(taskGroup.getUnfinishedTaskCount() <= 3, "unfinished=" + taskGroup.getUnfinishedTaskCount());
+        }
+        taskControl.setStayActive(false);
+        thread.join();
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 0);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * with no room, the producer runs a ready task itself.
+     */
+    @Test
+    public void testCallerRuns() {
+        TaskControl taskControl = newTaskControl();
+        TaskGroup<?> taskGroup = newTaskGroup(taskControl);
+        taskGroup.setCapacity(1);
+        taskGroup.setCapacityPolicy(TaskCapacityPolicy.callerRuns);
+        FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        gate.set(null);
+        Thread[] ranOn = new Thread[1];
+        taskGroup.addTask(newTask(gate, ranOn));
+        // TaskControl is not running so only the producer can run the first task.
+        taskGroup.addTask(newTask(gate, null));
+        assertSame(ranOn[0], Thread.currentThread());
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 1);
+    }
+
+    /**
+     * a running task adding a subtask to a full TaskGroup does not wait for itself to finish.
+     * @throws Exception
+     */
+    @Test
+    public void testSubtaskAtCapacity() throws Exception {
+        TaskControl taskControl = newTaskControl();
+        final TaskGroup<?> taskGroup = newTaskGroup(taskControl);
+        taskGroup.setCapacity(1);
+        final FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        gate.set(null);
+        final Thread[] subtaskRanOn = new Thread[1];
+        DefaultDependentPrioritizedTask<Object> parent = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() {
+                DefaultDependentPrioritizedTask<Object> subtask = newTask(gate, subtaskRanOn);
+                subtask.setParentTask(this);
+                taskGroup.addSubtask(this, subtask);
+                return null;
+            }
+        };
+        taskGroup.addTask(parent);
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread thread = new Thread(taskControl, "TaskControl");
+        thread.start();
+        thread.join(5000);
+        assertFalse(thread.isAlive(), "parent blocked waiting for capacity");
+        assertTrue(subtaskRanOn[0] != null);
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 0);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * the TaskControl capacity applies to all of its TaskGroups.
+     */
+    @Test
+    public void testTaskControlCapacity() {
+        TaskControl taskControl = newTaskControl();
+        taskControl.setCapacity(2);
+        taskControl.setCapacityPolicy(TaskCapacityPolicy.reject);
+        FutureResultImpl<Object> gate = new FutureResultImpl<Object>();
+        TaskGroup<?> first = newTaskGroup(taskControl);
+        first.addTask(newTask(gate, null));
+        first.addTask(newTask(gate, null));
+        TaskGroup<?> second = newTaskGroup(taskControl);
+        try {
+            second.addTask(newTask(gate, null));
+            fail("TaskControl should be at capacity");
+        } catch (RejectedExecutionException e) {
+            // good
+        }
+        assertEquals(second.getUnfinishedTaskCount(), 0);
+    }
+
+    private TaskControl newTaskControl() {
+        return new TaskControl(2, LogFactory.getLog(this.getClass()));
+    }
+
+    private TaskGroup<?> newTaskGroup(TaskControl taskControl) {
+        return taskControl.newTaskGroup("capacity");
+    }
+
+    /**
+     * @param gate task runs after gate is done.
+     * @param ranOn if not null, records the thread the task ran on.
+     */
+    private DefaultDependentPrioritizedTask<Object> newTask(FutureResult<?> gate, final Thread[] ranOn) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(new Runnable() {
+            public void run() {
+                if (ranOn != null) {
+                    ranOn[0] = Thread.currentThread();
+                }
+            }
+        });
+        task.addDependency(gate);
+        return task;
+    }
+}
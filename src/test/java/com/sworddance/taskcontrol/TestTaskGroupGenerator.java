@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test drawing tasks from a {@link TaskGroupGenerator}.
+ */
+public class TestTaskGroupGenerator {
+
+    /**
+     * Only about highWaterMark tasks exist at once, and the TaskGroup completes once the generator is exhausted.
+     * @throws Exception
+     */
+    @Test
+    public void testWindow() throws Exception {
+        TaskControl taskControl = new TaskControl(4, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("generated");
+        taskGroup.setWaterMarks(4, 16);
+        CountingGenerator generator = new CountingGenerator(2000);
+        taskGroup.setTaskGroupGenerator(generator);
+        assertEquals(generator.created.get(), 16);
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        t.join();
+        taskGroup.getResult().get(10, SECONDS);
+        assertEquals(generator.completed.get(), 2000);
+        assertTrue(generator.maxOutstanding <= 16, "maxOutstanding=" + generator.maxOutstanding);
+        assertTrue(taskGroup.isTaskGroupTasksComplete());
+    }
+
+    @Test
+    public void testEmptyGenerator() throws Exception {
+        TaskControl taskControl = new TaskControl(4, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("empty");
+        taskGroup.setTaskGroupGenerator(new CountingGenerator(0));
+        taskControl.addTaskGroup(taskGroup);
+        assertTrue(taskGroup.getResult().isDone());
+    }
+
+    /**
+     * Generated tasks are drawn within the capacity so they are never rejected and never make the only worker
+     * wait for capacity, whatever the policy.
+     * @throws Exception
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        for (TaskCapacityPolicy policy : TaskCapacityPolicy.values()) {
+            TaskControl taskControl = new TaskControl(1, LogFactory.getLog(this.getClass()));
+            TaskGroup<?> taskGroup = taskControl.newTaskGroup("capacity-" + policy);
+            taskGroup.setCapacity(2);
+            taskGroup.setCapacityPolicy(policy);
+            taskGroup.setCapacityTimeout(10, MILLISECONDS);
+            taskGroup.setWaterMarks(3, 4);
+            CountingGenerator generator = new CountingGenerator(20);
+            taskGroup.setTaskGroupGenerator(generator);
+            taskControl.addTaskGroup(taskGroup);
+            taskControl.setStayActive(false);
+            Thread t = new Thread(taskControl, "TaskControl");
+            t.start();
+            taskGroup.getResult().get(10, SECONDS);
+            t.join(10000);
+            assertEquals(generator.completed.get(), 20, policy.toString());
+            assertTrue(generator.maxOutstanding <= 2, policy + " maxOutstanding=" + generator.maxOutstanding);
+        }
+    }
+
+    private static class CountingGenerator extends TaskGroupGenerator {
+        private final int total;
+
+        private final AtomicInteger created = new AtomicInteger();
+
+        private final AtomicInteger completed = new AtomicInteger();
+
+        private int maxOutstanding;
+
+        CountingGenerator(int total) {
+            this.total = total;
+        }
+
+        @Override
+        public List<? extends PrioritizedTask> generateTasks(int maxTasks) {
+            if (created.get() == total) {
+                return null;
+            }
+            List<PrioritizedTask> tasks = new ArrayList<PrioritizedTask>();
+            while (tasks.size() < maxTasks && created.get() < total) {
+                DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+                    @Override
+                    protected Object callBody() throws Exception {
+                        completed.incrementAndGet();
+                        return null;
+                    }
+                };
+                task.setName("generated" + created.incrementAndGet());
+                tasks.add(task);
+            }
+            maxOutstanding = Math.max(maxOutstanding, created.get() - completed.get());
+            return tasks;
+        }
+    }
+}
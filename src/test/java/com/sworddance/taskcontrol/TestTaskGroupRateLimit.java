@@ -0,0 +1,160 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.scheduling.FakeTimeServerImpl;
+
+/**
+ * Test rate limiting the tasks that lock a resource, see {@link TaskGroup#setRateLimit(String, com.sworddance.scheduling.TokenBucket)}.
+ */
+public class TestTaskGroupRateLimit {
+
+    /**
+     * the rate limited tasks wait for tokens while the other task runs.
+     */
+    @Test
+    public void testThrottledTasksWait() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("rateLimit");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        taskGroup.setTimeServer(timeServer);
+        taskGroup.setRateLimit("api", 1, SECONDS, 2);
+        for (String name : Arrays.asList("api1", "api2", "api3", "api4")) {
+            taskGroup.addTask(newTask(name, "api"));
+        }
+        taskGroup.addTask(newTask("other", "db"));
+
+        List<String> order = new ArrayList<String>();
+        run(taskGroup, order);
+        // api1 and api2 use up the burst and run in parallel.
+        assertEquals(order, Arrays.asList("api1", "api2", "other"));
+        assertEquals(taskGroup.getThrottledTaskCount(), 2);
+
+        timeServer.runClock(1, SECONDS);
+        taskGroup.advanceTimers();
+        run(taskGroup, order);
+        assertEquals(order, Arrays.asList("api1", "api2", "other", "api3"));
+        assertEquals(taskGroup.getThrottledTaskCount(), 1);
+
+        timeServer.runClock(1, SECONDS);
+        taskGroup.advanceTimers();
+        run(taskGroup, order);
+        assertEquals(order, Arrays.asList("api1", "api2", "other", "api3", "api4"));
+        assertEquals(taskGroup.getThrottledTaskCount(), 0);
+        assertNull(taskGroup.nextTask());
+    }
+
+    /**
+     * a limit on a resource applies to the resources below it.
+     */
+    @Test
+    public void testHierarchicalRateLimit() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("hierarchicalRateLimit");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        taskGroup.setTimeServer(timeServer);
+        taskGroup.setRateLimit("api", 1, SECONDS, 1);
+        taskGroup.addTask(newTask("orders", "api/orders"));
+        taskGroup.addTask(newTask("users", "api/users"));
+        List<String> order = new ArrayList<String>();
+        run(taskGroup, order);
+        assertEquals(order, Arrays.asList("orders"));
+    }
+
+    /**
+     * a limit on a resource applies to subtasks locking a resource below it.
+     */
+    @Test
+    public void testSubtaskRateLimit() {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        final TaskGroup<Object> taskGroup = new TaskGroup<Object>("subtaskRateLimit");
+        taskGroup.setLog(LogFactory.getLog(this.getClass()));
+        taskGroup.setTimeServer(timeServer);
+        taskGroup.setRateLimit("api/orders", 1, SECONDS, 2);
+        DefaultDependentPrioritizedTask<Object> parent = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() {
+                for (int i = 1; i <= 2; i++) {
+                    DefaultDependentPrioritizedTask<Object> subtask = newTask("order" + i, "api/orders/" + i);
+                    subtask.setParentTask(this);
+                    taskGroup.addSubtask(this, subtask);
+                }
+                return null;
+            }
+        };
+        parent.setName("orders");
+        parent.addLock(new ResourceLock("api/orders", ResourceLock.READNX));
+        taskGroup.addTask(parent);
+        List<String> order = new ArrayList<String>();
+        run(taskGroup, order);
+        assertEquals(order, Arrays.asList("orders", "order1"));
+        assertEquals(taskGroup.getThrottledTaskCount(), 1);
+    }
+
+    /**
+     * the TaskControl waits for the tokens without the TaskGroup being declared finished.
+     * @throws Exception
+     */
+    @Test
+    public void testTaskControl() throws Exception {
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("rateLimitedControl");
+        taskGroup.setRateLimit("api", 50, MILLISECONDS, 1);
+        for (int i = 0; i < 4; i++) {
+            taskGroup.addTask(newTask("api" + i, "api"));
+        }
+        long start = System.currentTimeMillis();
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        taskGroup.getResult().get(5, SECONDS);
+        t.join();
+        assertTrue(System.currentTimeMillis() - start >= 140);
+        assertEquals(taskGroup.getUnfinishedTaskCount(), 0);
+    }
+
+    private static void run(TaskGroup<Object> taskGroup, List<String> order) {
+        PrioritizedTask next;
+        while ((next = taskGroup.nextTask()) != null) {
+            order.add(next.getName());
+            next.run();
+        }
+    }
+
+    private static DefaultDependentPrioritizedTask<Object> newTask(String name, String resourceName) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() {
+                return null;
+            }
+        };
+        task.setName(name);
+        task.addLock(new ResourceLock(resourceName, ResourceLock.READNX));
+        return task;
+    }
+}
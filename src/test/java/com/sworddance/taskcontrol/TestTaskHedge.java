@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test hedging slow idempotent tasks, see {@link TaskGroup#setHedgePercentile(int)}.
+ */
+public class TestTaskHedge {
+
+    @Test
+    public void testPercentile() {
+        TaskDurationHistory history = new TaskDurationHistory();
+        DefaultPrioritizedTask<Object> task = new DefaultPrioritizedTask<Object>();
+        task.setName("task");
+        for (int i = 1; i < TaskDurationHistory.MINIMUM_PERCENTILE_SAMPLES; i++) {
+            history.record(task, i * 10);
+        }
+        assertEquals(history.getPercentile(task, 90), -1);
+        for (int i = TaskDurationHistory.MINIMUM_PERCENTILE_SAMPLES; i <= 10; i++) {
+            history.record(task, i * 10);
+        }
+        assertEquals(history.getPercentile(task, 90), 90);
+        assertEquals(history.getPercentile(task, 50), 50);
+        assertEquals(history.getPercentile(task, 100), 100);
+        assertEquals(history.getPercentile(task, 1), 10);
+    }
+
+    /**
+     * the first run is stuck, the copy's result wins and the first run is interrupted.
+     * @throws Exception
+     */
+    @Test
+    public void testCopyWins() throws Exception {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicInteger runs = new AtomicInteger();
+        DefaultDependentPrioritizedTask<String> task = newTask(new CallBody() {
+            public String call() throws Exception {
+                if (runs.incrementAndGet() == 1) {
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                        throw e;
+                    }
+                }
+                return "copy";
+            }
+        });
+        TaskGroup<?> taskGroup = runTaskGroup(task);
+        assertEquals(task.get(), "copy");
+        assertTrue(task.isSuccessful());
+        assertTrue(interrupted.get());
+        assertEquals(taskGroup.getHedgeCount(), 1);
+        assertEquals(runs.get(), 2);
+    }
+
+    /**
+     * the first run finishes while the copy is stuck, the copy is interrupted.
+     * @throws Exception
+     */
+    @Test
+    public void testOriginalWins() throws Exception {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch copyStarted = new CountDownLatch(1);
+        final AtomicBoolean lockReleasedWhileCopyRan = new AtomicBoolean();
+        final ResourceLock lock = new ResourceLock("fetched", ResourceLock.WRITEX);
+        DefaultDependentPrioritizedTask<String> task = newTask(new CallBody() {
+            public String call() throws Exception {
+                if (runs.incrementAndGet() == 1) {
+                    copyStarted.await(5, SECONDS);
+                    return "original";
+                }
+                copyStarted.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    // slow to stop: the original's locks must still be held.
+                    Thread.sleep(100);
+                    lockReleasedWhileCopyRan.set(lock.isLockReleased());
+                    throw e;
+                }
+                return "copy";
+            }
+        });
+        task.addLock(lock);
+        TaskGroup<?> taskGroup = runTaskGroup(task);
+        assertEquals(task.get(), "original");
+        assertTrue(interrupted.get());
+        assertFalse(lockReleasedWhileCopyRan.get());
+        assertTrue(lock.isLockReleased());
+        assertEquals(taskGroup.getHedgeCount(), 1);
+    }
+
+    /**
+     * tasks that are not idempotent are never hedged.
+     * @throws Exception
+     */
+    @Test
+    public void testNotIdempotent() throws Exception {
+        DefaultDependentPrioritizedTask<String> task = newTask(new CallBody() {
+            public String call() throws Exception {
+                Thread.sleep(300);
+                return "original";
+            }
+        });
+        task.setIdempotent(false);
+        TaskGroup<?> taskGroup = runTaskGroup(task);
+        assertEquals(task.get(), "original");
+        assertEquals(taskGroup.getHedgeCount(), 0);
+    }
+
+    private TaskGroup<?> runTaskGroup(PrioritizedTask task) throws Exception {
+        TaskDurationHistory history = new TaskDurationHistory();
+        for (int i = 0; i < TaskDurationHistory.MINIMUM_PERCENTILE_SAMPLES; i++) {
+            history.record(task, 10);
+        }
+        TaskControl taskControl = new TaskControl(2, TaskExecutorType.workStealing, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("hedge");
+        taskGroup.setTaskDurationHistory(history);
+        taskGroup.setHedgePercentile(90);
+        taskGroup.addTask(task);
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        taskGroup.getResult().get(10, SECONDS);
+        t.join();
+        return taskGroup;
+    }
+
+    private interface CallBody {
+        String call() throws Exception;
+    }
+
+    private static DefaultDependentPrioritizedTask<String> newTask(final CallBody callBody) {
+        DefaultDependentPrioritizedTask<String> task = new DefaultDependentPrioritizedTask<String>() {
+            @Override
+            protected String callBody() throws Exception {
+                return callBody.call();
+            }
+        };
+        task.setName("fetch");
+        task.setIdempotent(true);
+        return task;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.scheduling.FakeTimeServerImpl;
+
+/**
+ * Test {@link TaskTimer}s driven by a fake clock.
+ */
+public class TestTaskTimer {
+
+    @Test
+    public void testDelayedTask() throws Exception {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("delayed");
+        taskGroup.setTimeServer(timeServer);
+        AtomicInteger runs = new AtomicInteger();
+        TaskTimer taskTimer = taskGroup.schedule(newTask(runs), 5, SECONDS);
+        TaskTimer cancelled = taskGroup.schedule(newTask(runs), 5, SECONDS);
+        assertTrue(cancelled.cancel());
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        Thread.sleep(50);
+        assertEquals(runs.get(), 0);
+        assertFalse(taskGroup.getResult().isDone());
+        timeServer.runClock(5, SECONDS);
+        taskGroup.getResult().get(5, SECONDS);
+        t.join();
+        assertEquals(runs.get(), 1);
+        assertTrue(taskTimer.isFinished());
+    }
+
+    @Test
+    public void testPeriodicTask() throws Exception {
+        FakeTimeServerImpl timeServer = new FakeTimeServerImpl();
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("periodic");
+        taskGroup.setTimeServer(timeServer);
+        final AtomicInteger runs = new AtomicInteger();
+        TaskTimer taskTimer = taskGroup.schedulePeriodic(new Callable<PrioritizedTask>() {
+            public PrioritizedTask call() {
+                return newTask(runs);
+            }
+        }, 1, 1, SECONDS);
+        assertTrue(taskTimer.isPeriodic());
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        for (int i = 1; i <= 3; i++) {
+            timeServer.runClock(1, SECONDS);
+            waitFor(runs, i);
+        }
+        assertFalse(taskGroup.getResult().isDone());
+        assertTrue(taskTimer.cancel());
+        taskGroup.getResult().get(5, SECONDS);
+        t.join();
+        assertEquals(runs.get(), 3);
+    }
+
+    /**
+     * the timing wheel keeps the TimeServer it was created with, so the TimeServer can not be changed afterwards.
+     */
+    @Test
+    public void testTimeServerFixedOnceWheelExists() {
+        TaskGroup<Object> taskGroup = new TaskGroup<Object>("fixed");
+        taskGroup.setTimeServer(new FakeTimeServerImpl());
+        taskGroup.schedule(newTask(new AtomicInteger()), 5, SECONDS);
+        try {
+            taskGroup.setTimeServer(new FakeTimeServerImpl());
+            fail("the TimeServer was changed after the timing wheel was created");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void waitFor(AtomicInteger runs, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && runs.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(runs.get(), expected);
+    }
+
+    private static DefaultDependentPrioritizedTask<Object> newTask(final AtomicInteger runs) {
+        return new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                runs.incrementAndGet();
+                return null;
+            }
+        };
+    }
+}
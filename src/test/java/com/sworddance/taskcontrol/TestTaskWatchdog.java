@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import com.sworddance.scheduling.TimeServerImpl;
+import com.sworddance.util.ApplicationTimeoutException;
+
+/**
+ * Test that tasks running longer than their execution timeout are reported and dealt with.
+ */
+public class TestTaskWatchdog {
+
+    @Test
+    public void testInterruptHungTask() throws Exception {
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("interrupt");
+        taskGroup.setTaskWatchdog(new TaskWatchdog(new TimeServerImpl(), 10, MILLISECONDS));
+        taskGroup.setExecutionTimeout(100, MILLISECONDS);
+        DefaultDependentPrioritizedTask<Object> sleeper = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                Thread.sleep(SECONDS.toMillis(30));
+                return null;
+            }
+        };
+        sleeper.setName("sleeper");
+        taskGroup.addTask(sleeper);
+        runTaskControl(taskControl, taskGroup);
+
+        assertTrue(sleeper.getException() instanceof InterruptedException, "" + sleeper.getException());
+        assertEquals(taskGroup.getHungTaskReports().size(), 1);
+        String report = taskGroup.getHungTaskReports().get(0);
+        assertTrue(report.startsWith("Hung task sleeper in TaskGroup interrupt"), report);
+        assertTrue(report.contains("thread history:"), report);
+        assertTrue(report.contains("sleeper"), report);
+    }
+
+    /**
+     * the report shows the most recent history of the thread, which includes the hung task, even when the thread
+     * ran many tasks before.
+     * @throws Exception
+     */
+    @Test
+    public void testHungTaskReportHistory() throws Exception {
+        TaskControl taskControl = new TaskControl(1, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("history");
+        taskGroup.setTaskWatchdog(new TaskWatchdog(new TimeServerImpl(), 10, MILLISECONDS));
+        CountDownLatch stuck = new CountDownLatch(1);
+        DefaultDependentPrioritizedTask<Object> hung = newStuckTask(stuck);
+        hung.setExecutionTimeout(100, MILLISECONDS);
+        for (int i = 0; i < 20; i++) {
+            DefaultDependentPrioritizedTask<Object> quick = new DefaultDependentPrioritizedTask<Object>() {
+                @Override
+                protected Object callBody() {
+                    return null;
+                }
+            };
+            quick.setName("quick" + i);
+            taskGroup.addTask(quick);
+            hung.addDependency(quick);
+        }
+        taskGroup.addTask(hung);
+        Thread t = startTaskControl(taskControl, taskGroup);
+        try {
+            for (int i = 0; i < 1000 && taskGroup.getHungTaskReports().isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            stuck.countDown();
+        }
+        t.join();
+        assertEquals(taskGroup.getHungTaskReports().size(), 1);
+        String report = taskGroup.getHungTaskReports().get(0);
+        String history = report.substring(report.indexOf("thread history:"), report.indexOf("stack:"));
+        // newest first
+        assertTrue(history.contains("hung"), report);
+        assertTrue(history.indexOf("hung") < history.indexOf("quick19"), report);
+    }
+
+    @Test
+    public void testReleaseLocks() throws Exception {
+        TaskControl taskControl = new TaskControl(2, TaskExecutorType.workStealing, LogFactory.getLog(this
+            .getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("release");
+        taskGroup.setTaskWatchdog(new TaskWatchdog(new TimeServerImpl(), 10, MILLISECONDS));
+        taskGroup.setTimeoutActions(TaskTimeoutAction.releaseLocks);
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final CountDownLatch waiterRan = new CountDownLatch(1);
+        DefaultDependentPrioritizedTask<Object> hung = newStuckTask(stuck);
+        hung.setExecutionTimeout(100, MILLISECONDS);
+        hung.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        DefaultDependentPrioritizedTask<Object> waiter = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                waiterRan.countDown();
+                return null;
+            }
+        };
+        waiter.addLock(new ResourceLock("resource", ResourceLock.EXCLUSIVE));
+        taskGroup.addTask(hung);
+        taskGroup.addTask(waiter);
+        Thread t = startTaskControl(taskControl, taskGroup);
+        try {
+            // the waiter runs while the hung task is still stuck because the hung task's lock was released.
+            assertTrue(waiterRan.await(10, SECONDS));
+            assertFalse(hung.isDone());
+            assertEquals(taskGroup.getHungTaskReports().size(), 1);
+            assertTrue(taskGroup.getHungTaskReports().get(0).contains("locks="));
+        } finally {
+            stuck.countDown();
+        }
+        t.join();
+        assertTrue(hung.isSuccessful());
+    }
+
+    @Test
+    public void testFailFuture() throws Exception {
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("fail");
+        taskGroup.setTaskWatchdog(new TaskWatchdog(new TimeServerImpl(), 10, MILLISECONDS));
+        taskGroup.setExecutionTimeout(100, MILLISECONDS);
+        taskGroup.setTimeoutActions(TaskTimeoutAction.failFuture);
+        CountDownLatch stuck = new CountDownLatch(1);
+        DefaultDependentPrioritizedTask<Object> hung = newStuckTask(stuck);
+        taskGroup.addTask(hung);
+        Thread t = startTaskControl(taskControl, taskGroup);
+        try {
+            // the failure is seen while the task is still stuck.
+            hung.get(10, SECONDS);
+            fail("the hung task's future should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApplicationTimeoutException, "" + e.getCause());
+        } finally {
+            stuck.countDown();
+        }
+        t.join();
+        assertTrue(hung.isDone());
+        assertFalse(hung.isSuccessful());
+        assertTrue(taskGroup.getException() instanceof ApplicationTimeoutException);
+    }
+
+    @Test
+    public void testNoTimeoutWhenFinished() throws Exception {
+        TaskControl taskControl = new TaskControl(2, LogFactory.getLog(this.getClass()));
+        TaskGroup<?> taskGroup = taskControl.newTaskGroup("quick");
+        TaskWatchdog watchdog = new TaskWatchdog(new TimeServerImpl(), 10, MILLISECONDS);
+        taskGroup.setTaskWatchdog(watchdog);
+        taskGroup.setExecutionTimeout(5, SECONDS);
+        for (int i = 0; i < 10; i++) {
+            taskGroup.addTask(new DefaultDependentPrioritizedTask<Object>() {
+                @Override
+                protected Object callBody() {
+                    return null;
+                }
+            });
+        }
+        runTaskControl(taskControl, taskGroup);
+        assertTrue(taskGroup.getHungTaskReports().isEmpty());
+        assertEquals(watchdog.size(), 0);
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    private DefaultDependentPrioritizedTask<Object> newStuckTask(final CountDownLatch stuck) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>() {
+            @Override
+            protected Object callBody() throws Exception {
+                stuck.await(30, SECONDS);
+                return null;
+            }
+        };
+        task.setName("hung");
+        return task;
+    }
+
+    private Thread startTaskControl(TaskControl taskControl, TaskGroup<?> taskGroup) {
+        taskControl.addTaskGroup(taskGroup);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        return t;
+    }
+
+    private void runTaskControl(TaskControl taskControl, TaskGroup<?> taskGroup) throws Exception {
+        Thread t = startTaskControl(taskControl, taskGroup);
+        t.join(SECONDS.toMillis(10));
+        assertFalse(t.isAlive(), "TaskControl did not finish");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link ThreadPerTaskExecutor}.
+ */
+public class TestThreadPerTaskExecutor {
+
+    /**
+     * the semaphore, not the number of threads, limits the number of running tasks.
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(new PriorityEligibleWorkItemComparator(), 2,
+            new ThreadFactoryImpl());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(newTask(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    while (now > maxRunning.get()) {
+                        maxRunning.compareAndSet(maxRunning.get(), now);
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }, Thread.NORM_PRIORITY));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2, "maxRunning=" + maxRunning.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * tasks waiting for a permit start in priority order.
+     * @throws Exception
+     */
+    @Test
+    public void testWaitingTasksPriorityOrder() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(new PriorityEligibleWorkItemComparator(), 1,
+            new ThreadFactoryImpl());
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        executor.execute(newTask(new Runnable() {
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        }, Thread.NORM_PRIORITY));
+        for (final int priority : new int[] { Thread.MIN_PRIORITY, Thread.MAX_PRIORITY }) {
+            executor.execute(newTask(new Runnable() {
+                public void run() {
+                    order.add(priority);
+                    done.countDown();
+                }
+            }, priority));
+        }
+        assertEquals(executor.getQueuedTaskCount(), 2);
+        blocker.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(order.get(0).intValue(), Thread.MAX_PRIORITY);
+        assertEquals(order.get(1).intValue(), Thread.MIN_PRIORITY);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private DefaultPrioritizedTask<Object> newTask(Runnable runnable, int priority) {
+        DefaultPrioritizedTask<Object> task = new DefaultPrioritizedTask<Object>(runnable, priority);
+        task.releaseToRun();
+        return task;
+    }
+}
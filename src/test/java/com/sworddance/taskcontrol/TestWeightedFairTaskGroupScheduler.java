@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.taskcontrol;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link WeightedFairTaskGroupScheduler}.
+ */
+public class TestWeightedFairTaskGroupScheduler {
+
+    /**
+     * TaskGroups with the same run time per task get selected in proportion to their weights.
+     */
+    @Test
+    public void testWeightedShares() {
+        WeightedFairTaskGroupScheduler scheduler = new WeightedFairTaskGroupScheduler();
+        TaskGroup<?> light = new TaskGroup<Object>("light");
+        TaskGroup<?> heavy = new TaskGroup<Object>("heavy");
+        heavy.setWeight(3);
+        List<TaskGroup<?>> taskGroups = Arrays.<TaskGroup<?>>asList(light, heavy);
+        int heavyCount = 0;
+        for (int i = 0; i < 400; i++) {
+            TaskGroup<?> selected = scheduler.selectTaskGroup(taskGroups);
+            if (selected == heavy) {
+                heavyCount++;
+            }
+            scheduler.taskComplete(selected, 1000000L);
+        }
+        assertTrue(Math.abs(heavyCount - 300) <= 2, "heavyCount=" + heavyCount);
+    }
+
+    /**
+     * TaskGroups with the same weight get the same worker time, not the same number of tasks.
+     */
+    @Test
+    public void testMeasuredRunTime() {
+        WeightedFairTaskGroupScheduler scheduler = new WeightedFairTaskGroupScheduler();
+        TaskGroup<?> cheap = new TaskGroup<Object>("cheap");
+        TaskGroup<?> expensive = new TaskGroup<Object>("expensive");
+        List<TaskGroup<?>> taskGroups = Arrays.<TaskGroup<?>>asList(cheap, expensive);
+        int cheapCount = 0;
+        for (int i = 0; i < 1100; i++) {
+            TaskGroup<?> selected = scheduler.selectTaskGroup(taskGroups);
+            if (selected == cheap) {
+                cheapCount++;
+                scheduler.taskComplete(selected, 100000L);
+            } else {
+                scheduler.taskComplete(selected, 1000000L);
+            }
+        }
+        // 10 cheap tasks for every expensive task once the averages have settled.
+        assertTrue(cheapCount > 900, "cheapCount=" + cheapCount);
+    }
+
+    /**
+     * A TaskGroup that had nothing to run does not get to monopolize the workers when it becomes ready.
+     */
+    @Test
+    public void testIdleTaskGroupDoesNotBankCredit() {
+        WeightedFairTaskGroupScheduler scheduler = new WeightedFairTaskGroupScheduler();
+        TaskGroup<?> busy = new TaskGroup<Object>("busy");
+        TaskGroup<?> idle = new TaskGroup<Object>("idle");
+        // make the scheduler know about idle before it goes idle.
+        scheduler.getVirtualTime(idle);
+        List<TaskGroup<?>> busyOnly = Collections.<TaskGroup<?>>singletonList(busy);
+        for (int i = 0; i < 100; i++) {
+            scheduler.taskComplete(scheduler.selectTaskGroup(busyOnly), 1000000L);
+        }
+        List<TaskGroup<?>> both = Arrays.<TaskGroup<?>>asList(busy, idle);
+        int idleCount = 0;
+        for (int i = 0; i < 10; i++) {
+            TaskGroup<?> selected = scheduler.selectTaskGroup(both);
+            if (selected == idle) {
+                idleCount++;
+            }
+            scheduler.taskComplete(selected, 1000000L);
+        }
+        assertTrue(idleCount <= 6, "idleCount=" + idleCount);
+    }
+
+    /**
+     * A small TaskGroup sharing a TaskControl with a bulk TaskGroup finishes without waiting for the bulk TaskGroup.
+     * Without a TaskGroupScheduler, all the ready tasks would be dispatched at once and the bulk TaskGroup's higher
+     * priority tasks would all run first.
+     * @throws Exception
+     */
+    @Test
+    public void testSmallTaskGroupNotStarved() throws Exception {
+        TaskControl taskControl = new TaskControl(1, LogFactory.getLog(this.getClass()));
+        taskControl.setDispatchMode(TaskDispatchMode.eventDriven);
+        taskControl.setTaskGroupScheduler(new WeightedFairTaskGroupScheduler());
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        TaskGroup<?> bulk = taskControl.newTaskGroup("bulk");
+        for (int i = 0; i < 200; i++) {
+            bulk.addTask(newTask("bulk", Thread.MAX_PRIORITY, completed));
+        }
+        TaskGroup<?> interactive = taskControl.newTaskGroup("interactive");
+        // weighted so that a pause (gc) while running an interactive task does not push it far behind.
+        interactive.setWeight(10);
+        for (int i = 0; i < 5; i++) {
+            interactive.addTask(newTask("interactive", Thread.NORM_PRIORITY, completed));
+        }
+        taskControl.addTaskGroup(bulk);
+        taskControl.addTaskGroup(interactive);
+        taskControl.setStayActive(false);
+        Thread t = new Thread(taskControl, "TaskControl");
+        t.start();
+        t.join();
+        assertEquals(completed.size(), 205);
+        assertTrue(completed.lastIndexOf("interactive") < 20, "interactive finished at " + completed.lastIndexOf("interactive"));
+        assertTrue(interactive.getResult().isDone());
+        assertTrue(bulk.getResult().isDone());
+    }
+
+    private DefaultDependentPrioritizedTask<Object> newTask(final String name, int priority, final List<String> completed) {
+        DefaultDependentPrioritizedTask<Object> task = new DefaultDependentPrioritizedTask<Object>(priority) {
+            @Override
+            protected Object callBody() throws Exception {
+                Thread.sleep(2);
+                completed.add(name);
+                return null;
+            }
+        };
+        task.setName(name);
+        return task;
+    }
+}
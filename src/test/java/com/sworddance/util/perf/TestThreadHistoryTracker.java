@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.sworddance.util.perf;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ThreadHistoryTracker} retention and snapshots.
+ */
+public class TestThreadHistoryTracker {
+
+    @Test
+    public void testMostRecentFirst() {
+        ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        tracker.addStartHistory(1000L, 1L, "task", "starting", "note");
+        tracker.addHistoryStatus(1001L, 1L, "task", "working", "half done");
+        tracker.addStopHistory(1002L, 1L, "task", "completed", null, 2L);
+        assertNull(tracker.getThreadHistoryCopy(2L));
+        List<ThreadHistory> history = tracker.getThreadHistoryCopy(1L);
+        assertEquals(history.size(), 3);
+        assertEquals(history.get(0).getStatus(), "completed");
+        assertEquals(history.get(0).getThreadInUse(), Boolean.FALSE);
+        assertEquals(history.get(0).getSequentialTime(), 2L);
+        assertEquals(history.get(1).getNote(), "half done");
+        assertEquals(history.get(2).getTimestampInMillis(), 1000L);
+        assertEquals(history.get(2).getThreadId(), Long.valueOf(1L));
+        assertTrue(history.get(0).getSequenceId() > history.get(2).getSequenceId());
+    }
+
+    @Test
+    public void testKeepNewest() {
+        ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        tracker.setRetentionCapacity(4);
+        for (int i = 0; i < 10; i++) {
+            tracker.addHistoryStatus(i, 1L, "task" + i, "status", null);
+        }
+        List<ThreadHistory> history = tracker.getThreadHistoryCopy(1L);
+        assertEquals(history.size(), 4);
+        assertEquals(history.get(0).getTaskName(), "task9");
+        assertEquals(history.get(3).getTaskName(), "task6");
+        assertEquals(tracker.getLostHistoryCount(), 6);
+    }
+
+    @Test
+    public void testKeepOldest() {
+        ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        tracker.setRetentionCapacity(4);
+        tracker.setRetentionPolicy(ThreadHistoryRetentionPolicy.keepOldest);
+        for (int i = 0; i < 10; i++) {
+            tracker.addHistoryStatus(i, 1L, "task" + i, "status", null);
+        }
+        List<ThreadHistory> history = tracker.getThreadHistoryCopy(1L);
+        assertEquals(history.size(), 4);
+        assertEquals(history.get(0).getTaskName(), "task3");
+        assertEquals(history.get(3).getTaskName(), "task0");
+        assertEquals(tracker.getLostHistoryCount(), 6);
+    }
+
+    /**
+     * a thread per task does not leave a buffer behind for every finished thread, but its history is still kept.
+     * @throws Exception
+     */
+    @Test
+    public void testThreadPerTask() throws Exception {
+        final ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        int tasks = 500;
+        for (int i = 0; i < tasks; i++) {
+            final String name = "task" + i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    tracker.addStartHistory(name, "starting", null);
+                    tracker.addStopHistory(name, "completed", null, 1L);
+                }
+            });
+            thread.start();
+            thread.join();
+            assertTrue(tracker.getThreadBufferCount() <= 2 * ThreadHistoryTracker.MINIMUM_RETIRE_THRESHOLD,
+                "buffers=" + tracker.getThreadBufferCount());
+        }
+        assertEquals(tracker.getThreadIds().size(), tasks);
+        int entries = 0;
+        for (Long threadId : tracker.getThreadIds()) {
+            List<ThreadHistory> history = tracker.getThreadHistoryCopy(threadId);
+            assertEquals(history.size(), 2);
+            assertEquals(history.get(0).getThreadId(), threadId);
+            assertEquals(history.get(0).getStatus(), "completed");
+            entries += history.size();
+        }
+        assertEquals(entries, 2 * tasks);
+        assertEquals(tracker.getLostHistoryCount(), 0);
+    }
+
+    /**
+     * snapshots taken while other threads write never contain torn entries.
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+        final ThreadHistoryTracker tracker = new ThreadHistoryTracker();
+        tracker.setRetentionCapacity(64);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String name = Integer.toString(i);
+                        tracker.addStartHistory(name, name, null);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            for (Long threadId : tracker.getThreadIds()) {
+                List<ThreadHistory> history = tracker.getThreadHistoryCopy(threadId);
+                assertTrue(history.size() <= 64);
+                int previous = Integer.MAX_VALUE;
+                for (ThreadHistory threadHistory : history) {
+                    assertEquals(threadHistory.getStatus(), threadHistory.getTaskName());
+                    int current = Integer.parseInt(threadHistory.getTaskName());
+                    assertTrue(current < previous);
+                    previous = current;
+                }
+            }
+        }
+        assertEquals(tracker.getThreadIds().size(), threads);
+    }
+}